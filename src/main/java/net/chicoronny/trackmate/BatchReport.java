@@ -0,0 +1,248 @@
+package net.chicoronny.trackmate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.chicoronny.trackmate.action.CsvEncoder;
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * The Class BatchReport.
+ *
+ * Records the wall time, CPU time, peak heap and spot and track counts of
+ * every stage of every image of a batch and writes them as CSV file. The CPU
+ * time and the heap are those of the whole process, because TrackMate runs
+ * each stage on its own threads; when several images are processed at the
+ * same time, their stages overlap and share these numbers. The heap is
+ * sampled while stages are running.
+ */
+public class BatchReport
+{
+
+	/** The name of the report file. */
+	public static final String FILE_NAME = "TrackMate_batch_report.csv";
+
+	/** The interval of the heap samples in milliseconds. */
+	private static final long SAMPLE_INTERVAL = 50;
+
+	/** The columns of the report. */
+	private static final String[] COLUMNS = { "Image", "Stage", "Status", "WallMs", "CpuMs", "PeakHeapMB", "Spots", "Tracks" };
+
+	/** The finished stages, in the order they ended. */
+	private final List< Stage > stages = Collections.synchronizedList( new ArrayList< Stage >() );
+
+	/** The running stages. */
+	private final Set< Stage > running = Collections.newSetFromMap( new ConcurrentHashMap< Stage, Boolean >() );
+
+	/** The heap sampler. */
+	private final ScheduledExecutorService sampler;
+
+	/**
+	 * Instantiates a new report and starts sampling the heap.
+	 */
+	public BatchReport()
+	{
+		sampler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( final Runnable r )
+			{
+				final Thread t = new Thread( r, "TrackMate-Batch-Report" );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+		sampler.scheduleAtFixedRate( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final long heap = usedHeap();
+				for ( final Stage stage : running )
+					stage.sample( heap );
+			}
+		}, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Starts timing a stage.
+	 *
+	 * @param image
+	 *            the name of the processed image
+	 * @param name
+	 *            the name of the stage
+	 * @return the stage, to be ended with {@link Stage#end(boolean, int, int)}
+	 */
+	public Stage start( final String image, final String name )
+	{
+		final Stage stage = new Stage( image, name );
+		running.add( stage );
+		return stage;
+	}
+
+	/**
+	 * Stops sampling the heap. Stages still running are dropped.
+	 */
+	public void close()
+	{
+		sampler.shutdownNow();
+		running.clear();
+	}
+
+	/**
+	 * Writes all finished stages.
+	 *
+	 * @param file
+	 *            the CSV file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void write( final File file ) throws IOException
+	{
+		final CsvEncoder line = new CsvEncoder( 256 );
+		final OutputStream out = new FileOutputStream( file );
+		try
+		{
+			for ( final String column : COLUMNS )
+				line.field( column );
+			out.write( line.endLine().toByteArray() );
+			synchronized ( stages )
+			{
+				for ( final Stage stage : stages )
+				{
+					line.reset();
+					line.field( stage.image ).field( stage.name ).field( stage.ok ? "OK" : "FAILED" ).field( stage.wall )
+							.field( stage.cpu ).field( stage.peak >> 20 ).field( stage.spots ).field( stage.tracks );
+					out.write( line.endLine().toByteArray() );
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Logs the wall and CPU time summed per stage over all images.
+	 *
+	 * @param logger
+	 *            the logger
+	 */
+	public void logTotals( final Logger logger )
+	{
+		final Map< String, long[] > totals = new LinkedHashMap< String, long[] >();
+		synchronized ( stages )
+		{
+			for ( final Stage stage : stages )
+			{
+				long[] total = totals.get( stage.name );
+				if ( null == total )
+				{
+					total = new long[ 2 ];
+					totals.put( stage.name, total );
+				}
+				total[ 0 ] += stage.wall;
+				total[ 1 ] += stage.cpu;
+			}
+		}
+		for ( final Map.Entry< String, long[] > entry : totals.entrySet() )
+			logger.log( entry.getKey() + ": " + entry.getValue()[ 0 ] / 1000 + "s wall, " + entry.getValue()[ 1 ] / 1000 + "s CPU" );
+	}
+
+	private static long usedHeap()
+	{
+		final Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Gets the CPU time of the process, or of the current thread if the
+	 * platform does not report it.
+	 */
+	private static long cpuNanos()
+	{
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if ( os instanceof com.sun.management.OperatingSystemMXBean )
+			return ( ( com.sun.management.OperatingSystemMXBean ) os ).getProcessCpuTime();
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * A stage of an image.
+	 */
+	public final class Stage
+	{
+
+		private final String image;
+
+		private final String name;
+
+		private final long wallStart;
+
+		private final long cpuStart;
+
+		private volatile long peak;
+
+		private long wall, cpu;
+
+		private int spots, tracks;
+
+		private boolean ok;
+
+		private Stage( final String image, final String name )
+		{
+			this.image = image;
+			this.name = name;
+			this.peak = usedHeap();
+			this.wallStart = System.nanoTime();
+			this.cpuStart = cpuNanos();
+		}
+
+		private void sample( final long heap )
+		{
+			if ( heap > peak )
+				peak = heap;
+		}
+
+		/**
+		 * Ends the stage and adds it to the report.
+		 *
+		 * @param ok
+		 *            whether the stage succeeded
+		 * @param spots
+		 *            the number of spots after the stage
+		 * @param tracks
+		 *            the number of tracks after the stage
+		 */
+		public void end( final boolean ok, final int spots, final int tracks )
+		{
+			if ( !running.remove( this ) )
+				return;
+			sample( usedHeap() );
+			this.wall = ( System.nanoTime() - wallStart ) / 1000000;
+			this.cpu = ( cpuNanos() - cpuStart ) / 1000000;
+			this.ok = ok;
+			this.spots = spots;
+			this.tracks = tracks;
+			stages.add( this );
+		}
+	}
+}
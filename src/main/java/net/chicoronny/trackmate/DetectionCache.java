@@ -0,0 +1,235 @@
+package net.chicoronny.trackmate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.chicoronny.trackmate.io.SpotSnapshotReader;
+import net.chicoronny.trackmate.io.SpotSnapshotWriter;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * The Class DetectionCache.
+ *
+ * Keeps the detected spots of a movie in a spot snapshot next to the movie,
+ * so a batch re-run with other tracking or filter settings skips the
+ * detection. The cache file name holds a key made of the fingerprint of the
+ * movie and the detector with its settings; other detector settings use
+ * other cache files. The spots are stored before the initial filtering,
+ * which runs again on every load.
+ */
+public class DetectionCache
+{
+
+	/** The suffix of cache files. */
+	public static final String SUFFIX = ".tmss";
+
+	/** The version of the cache key, change if the cached content changes. */
+	private static final String VERSION = "2";
+
+	/** The number of blocks read for a fingerprint. */
+	private static final int SAMPLES = 16;
+
+	/** The size of a fingerprint block. */
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	/** The number of key characters in the file name. */
+	private static final int KEY_LENGTH = 16;
+
+	/**
+	 * The features stored in their own double columns or set on load. Radius
+	 * and quality have float columns of their own and are stored again as
+	 * double features, which replace them on load, so cached spots are equal
+	 * to freshly detected ones.
+	 */
+	private static final Set< String > STORED = new LinkedHashSet< String >( Arrays.asList( Spot.POSITION_X, Spot.POSITION_Y,
+			Spot.POSITION_Z, Spot.FRAME, SpotCollection.VISIBILITY ) );
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	/** The cache file. */
+	private final File file;
+
+	/**
+	 * Instantiates a cache for a movie and the detector of the settings.
+	 *
+	 * @param movie
+	 *            the movie file
+	 * @param fingerprint
+	 *            the fingerprint of the movie, see {@link #fingerprint(File)}
+	 * @param settings
+	 *            the settings with detector factory and detector settings
+	 */
+	public DetectionCache( final File movie, final String fingerprint, final Settings settings )
+	{
+		final Map< String, Object > detectorSettings = new TreeMap< String, Object >( settings.detectorSettings );
+		final String key = digest( VERSION, fingerprint, settings.detectorFactory.getKey(), detectorSettings.toString() );
+		String name = movie.getName();
+		if ( name.lastIndexOf( '.' ) > 0 )
+			name = name.substring( 0, name.lastIndexOf( '.' ) );
+		file = new File( movie.getAbsoluteFile().getParentFile(), name + "_" + key.substring( 0, KEY_LENGTH ) + SUFFIX );
+	}
+
+	/**
+	 * Gets the cache file.
+	 *
+	 * @return the file
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Loads the cached spots.
+	 *
+	 * @return the spots, or <code>null</code> if the cache does not exist
+	 * @throws IOException
+	 *             if the cache file is corrupt
+	 */
+	public SpotCollection load() throws IOException
+	{
+		if ( !file.isFile() )
+			return null;
+		return new SpotSnapshotReader( file ).toSpotCollection();
+	}
+
+	/**
+	 * Stores the detected spots with all their features. The file is written
+	 * next to the target and renamed when complete, so an interrupted batch
+	 * never leaves a truncated cache.
+	 *
+	 * @param spots
+	 *            the detected spots
+	 * @throws IOException
+	 *             if the cache cannot be written
+	 */
+	public void save( final SpotCollection spots ) throws IOException
+	{
+		final Set< String > features = new LinkedHashSet< String >();
+		for ( final Spot spot : spots.iterable( false ) )
+			features.addAll( spot.getFeatures().keySet() );
+		features.removeAll( STORED );
+
+		final File part = new File( file.getPath() + ".part" );
+		try
+		{
+			SpotSnapshotWriter.write( spots, features, false, part );
+			try
+			{
+				Files.move( part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+			}
+			catch ( final AtomicMoveNotSupportedException e )
+			{
+				Files.move( part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists( part.toPath() );
+		}
+	}
+
+	/**
+	 * Computes a fingerprint of a file from its length, its modification time
+	 * and {@value #SAMPLES} blocks spread evenly over the file, so large
+	 * movies are not read in full. Renamed or moved movies keep their
+	 * fingerprint; copies keep it only if the copy keeps the modification
+	 * time. The fingerprint is probabilistic: a movie edited in place between
+	 * the sampled blocks is only told apart by its modification time, so a
+	 * tool that restores the time of an edited file of the same length makes
+	 * the cache return the spots of the old content.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the fingerprint as hex string
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static String fingerprint( final File file ) throws IOException
+	{
+		final MessageDigest md = sha256();
+		final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+		try
+		{
+			final long length = channel.size();
+			final ByteBuffer buffer = ByteBuffer.allocate( BLOCK_SIZE );
+			buffer.putLong( length ).putLong( Files.getLastModifiedTime( file.toPath() ).toMillis() ).flip();
+			md.update( buffer );
+			final long last = Math.max( 0, length - BLOCK_SIZE );
+			for ( int i = 0; i < SAMPLES; i++ )
+			{
+				long position = last * i / ( SAMPLES - 1 );
+				buffer.clear();
+				while ( buffer.hasRemaining() && position < length )
+				{
+					final int n = channel.read( buffer, position );
+					if ( n < 0 )
+						break;
+					position += n;
+				}
+				buffer.flip();
+				md.update( buffer );
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+		return hex( md.digest() );
+	}
+
+	/**
+	 * Computes a key from several strings.
+	 *
+	 * @param parts
+	 *            the strings
+	 * @return the SHA-256 digest as hex string
+	 */
+	public static String digest( final String... parts )
+	{
+		final MessageDigest md = sha256();
+		for ( final String part : parts )
+		{
+			md.update( String.valueOf( part ).getBytes( UTF8 ) );
+			md.update( ( byte ) 0 );
+		}
+		return hex( md.digest() );
+	}
+
+	private static MessageDigest sha256()
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// every Java platform has SHA-256
+			throw new IllegalStateException( e );
+		}
+	}
+
+	private static String hex( final byte[] bytes )
+	{
+		final StringBuilder str = new StringBuilder( 2 * bytes.length );
+		for ( final byte b : bytes )
+			str.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+		return str.toString();
+	}
+}
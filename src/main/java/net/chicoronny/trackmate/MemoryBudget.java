@@ -0,0 +1,103 @@
+package net.chicoronny.trackmate;
+
+/**
+ * The Class MemoryBudget.
+ *
+ * Admits jobs while their estimated memory footprints fit a budget and their
+ * number stays below a limit. A job larger than the whole budget is admitted
+ * once nothing else runs, so a single huge movie never blocks the batch.
+ */
+public class MemoryBudget
+{
+
+	/** The budget in bytes. */
+	private final long budget;
+
+	/** The maximal number of admitted jobs. */
+	private final int maxJobs;
+
+	/** The bytes of the admitted jobs. */
+	private long used;
+
+	/** The number of admitted jobs. */
+	private int jobs;
+
+	/**
+	 * Instantiates a new memory budget.
+	 *
+	 * @param budget
+	 *            the budget in bytes
+	 * @param maxJobs
+	 *            the maximal number of jobs admitted at the same time
+	 */
+	public MemoryBudget( final long budget, final int maxJobs )
+	{
+		this.budget = Math.max( 1, budget );
+		this.maxJobs = Math.max( 1, maxJobs );
+	}
+
+	/**
+	 * Waits until a job of the given size fits and admits it.
+	 *
+	 * @param bytes
+	 *            the estimated footprint of the job
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public synchronized void acquire( final long bytes ) throws InterruptedException
+	{
+		while ( jobs > 0 && ( jobs >= maxJobs || used + bytes > budget ) )
+			wait();
+		used += bytes;
+		jobs++;
+	}
+
+	/**
+	 * Returns the bytes of a finished job.
+	 *
+	 * @param bytes
+	 *            the footprint passed to {@link #acquire(long)}
+	 */
+	public synchronized void release( final long bytes )
+	{
+		used -= bytes;
+		jobs--;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until all admitted jobs are released.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public synchronized void awaitIdle() throws InterruptedException
+	{
+		while ( jobs > 0 )
+			wait();
+	}
+
+	/**
+	 * Gets the number of jobs of the given size running side by side when the
+	 * budget is full, at least one and at most the job limit.
+	 *
+	 * @param bytes
+	 *            the estimated footprint of a job
+	 * @return the number of concurrent jobs
+	 */
+	public int concurrency( final long bytes )
+	{
+		final long fit = budget / Math.max( 1, bytes );
+		return ( int ) Math.max( 1, Math.min( maxJobs, fit ) );
+	}
+
+	/**
+	 * Gets the budget.
+	 *
+	 * @return the budget in bytes
+	 */
+	public long getBudget()
+	{
+		return budget;
+	}
+}
@@ -2,6 +2,7 @@ package net.chicoronny.trackmate;
 
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_DO_MEDIAN_FILTERING;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_RADIUS;
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_THRESHOLD;
 import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_GAP_CLOSING;
 import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_MERGING;
@@ -12,6 +13,7 @@ import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_LINKING_MAX_DISTANC
 import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_MERGING_MAX_DISTANCE;
 import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_SPLITTING_MAX_DISTANCE;
 import static fiji.plugin.trackmate.tracking.kalman.KalmanTrackerFactory.KEY_KALMAN_SEARCH_RADIUS;
+import static net.chicoronny.trackmate.lineartracker.LinearTrackerKeys.KEY_ESTIMATE_RADIUS;
 import static net.chicoronny.trackmate.lineartracker.LinearTrackerKeys.KEY_INITIAL_DISTANCE;
 import static net.chicoronny.trackmate.lineartracker.LinearTrackerKeys.KEY_MAX_COST;
 import static net.chicoronny.trackmate.lineartracker.LinearTrackerKeys.KEY_STICK_RADIUS;
@@ -19,23 +21,44 @@ import static net.chicoronny.trackmate.lineartracker.LinearTrackerKeys.KEY_SUCCE
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.io.DirectoryChooser;
+import ij.io.FileInfo;
 import ij.plugin.PlugIn;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
 import loci.plugins.BF;
+import loci.plugins.in.ImporterOptions;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import net.chicoronny.trackmate.action.ExportTracksToCSV;
 import net.chicoronny.trackmate.action.ExportTracksToSQL;
+import net.chicoronny.trackmate.io.BioFormatsPlaneSource;
+import net.chicoronny.trackmate.io.LazyVirtualStack;
+import net.chicoronny.trackmate.io.PlaneSource;
+import net.chicoronny.trackmate.io.RawPlaneCache;
+import net.chicoronny.trackmate.io.SharedReader;
+import net.chicoronny.trackmate.io.SpotXmlStreamReader;
 import net.chicoronny.trackmate.lineartracker.LTUtils;
 import net.chicoronny.trackmate.lineartracker.LinearTrackerFactory;
 import net.imglib2.util.ValuePair;
@@ -43,6 +66,7 @@ import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.detection.DogDetectorFactory;
 import fiji.plugin.trackmate.detection.LogDetectorFactory;
@@ -51,12 +75,11 @@ import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactory;
 import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
 import fiji.plugin.trackmate.features.track.TrackAnalyzer;
-import fiji.plugin.trackmate.providers.DetectorProvider;
-import fiji.plugin.trackmate.providers.TrackerProvider;
 
 import fiji.plugin.trackmate.tracking.sparselap.SparseLAPTrackerFactory;
 import fiji.plugin.trackmate.tracking.kalman.KalmanTrackerFactory;
 import fiji.plugin.trackmate.tracking.sparselap.SimpleSparseLAPTrackerFactory;
+import fiji.plugin.trackmate.util.TMUtils;
 
 /**
  * The Class TrackMateBatchPlugin_.
@@ -154,8 +177,107 @@ public class TrackMateBatchPlugin_ implements PlugIn
 	/** The maximum cost. */
 	private Object MAX_COST;
 
+	/** Estimate spot radii on demand in the linear tracker. */
+	private boolean ESTIMATE_RADIUS;
+
+	/** Also export the tracks to CSV files. */
+	private boolean EXPORT_CSV;
+
+	/** Write the CSV files gzip compressed. */
+	private boolean CSV_GZIP;
+
+	/** Stream tracks to the database while their features are computed. */
+	private boolean STREAM_EXPORT;
+
+	/** The number of tracks per streamed chunk. */
+	private int STREAM_CHUNK;
+
+	/** Build the spatial index and summary tables of each database. */
+	private boolean SPATIAL_INDEX;
+
+	/** Read the planes of a movie on demand instead of loading it whole. */
+	private boolean LAZY_LOADING;
+
+	/** The number of frames read ahead by lazy loading. */
+	private int READ_AHEAD;
+
+	/** Track every channel of a movie separately. */
+	private boolean SPLIT_CHANNELS;
+
+	/** The folder of the raw plane caches, empty to decode every run. */
+	private String RAW_CACHE;
+
+	/** The database collecting all movies, empty for one database per file. */
+	private String CONSOLIDATED_DB;
+
+	/** The number of files computed at the same time. */
+	private int PARALLEL_FILES;
+
+	/** The memory for the admitted files in MB, 0 for most of the heap. */
+	private long MEMORY_BUDGET;
+
+	/** The footprint of a file as multiple of its pixel data. */
+	private double MEMORY_FACTOR;
+
+	/** The pools of the reading, computing and exporting stages. */
+	private ExecutorService readers, workers, exporters;
+
+	/** The memory of the files in the pipeline. */
+	private MemoryBudget admitted;
+
+	/** The images that failed, by file name and tag. */
+	private List< String > failed;
+
+	/** The database collecting all movies, may be null. */
+	private ExportTracksToSQL.Consolidated consolidated;
+
+	/** The pending appends to the consolidated database, by image name. */
+	private Map< String, Future< Long > > appended;
+
+	/** The timing of the stages. */
+	private BatchReport report;
+
+	/** The resolved folder of the raw plane caches, null if not used. */
+	private File rawCacheFolder;
+
+	/** The locks of the raw cache files, so channel jobs decode a series once. */
+	private final ConcurrentHashMap< File, Object > rawCacheLocks = new ConcurrentHashMap< File, Object >();
+
 	private File file;
 	
+	/** The default footprint of a file as multiple of its pixel data. */
+	private static final double DEFAULT_MEMORY_FACTOR = 2.5;
+
+	/** The part of the memory factor taken by the model, for every frame. */
+	private static final double MODEL_SHARE = 0.5;
+
+	/** The default number of frames read ahead. */
+	private static final int DEFAULT_READ_AHEAD = 2;
+
+	/** The share of the maximal heap used by default. */
+	private static final double HEAP_SHARE = 0.75;
+
+	/** Keep the detected spots next to each movie and reuse them. */
+	private boolean DETECTION_CACHE;
+
+	/** Skip files finished by an earlier run with the same parameters. */
+	private boolean RESUME;
+
+	/** Re-track the spots of a TrackMate XML file next to each movie. */
+	private boolean SPOTS_XML;
+
+	/** The digest of all parameters. */
+	private String parametersKey;
+
+	/** The suffix of the marker of a finished file. */
+	private static final String DONE_SUFFIX = ".done";
+
+	/** The folder of the output files, null to write next to the input. */
+	private File outputFolder;
+
+	/** The logger. */
+	private Logger logger = Logger.IJ_LOGGER;
+
 	/** The kalman search radius. */
 	private double KALMAN_SEARCH_RADIUS;
 
@@ -167,6 +289,29 @@ public class TrackMateBatchPlugin_ implements PlugIn
 		super();
 	}
 
+	/**
+	 * Sets the folder the databases and CSV files are written to. By default
+	 * they are written next to the input files.
+	 * 
+	 * @param outputFolder
+	 *            the output folder, null for the input folder
+	 */
+	public void setOutputFolder( final File outputFolder )
+	{
+		this.outputFolder = outputFolder;
+	}
+
+	/**
+	 * Sets the logger of the batch and of the processed models.
+	 * 
+	 * @param logger
+	 *            the logger
+	 */
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -187,7 +332,6 @@ public class TrackMateBatchPlugin_ implements PlugIn
 
 		final File folder = new File( dname );
 		final File parent = folder.getParentFile();
-		final Logger logger = Logger.IJ_LOGGER;
 
 		try
 		{
@@ -202,7 +346,37 @@ public class TrackMateBatchPlugin_ implements PlugIn
 
 		try
 		{
-			final FileReader reader = new FileReader( file );
+			loadProperties( file );
+		}
+		catch ( final FileNotFoundException e1 )
+		{
+			logger.log( e1.getMessage() );
+			return;
+		}
+		catch ( final IOException e1 )
+		{
+			logger.log( e1.getMessage() );
+		}
+
+		process( folder );
+		Locale.setDefault( curLocale );
+	}
+
+	/**
+	 * Loads the parameters from a parameter file.
+	 * 
+	 * @param propertiesFile
+	 *            the parameter file
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void loadProperties( final File propertiesFile ) throws IOException
+	{
+		final FileReader reader = new FileReader( propertiesFile );
+		try
+		{
 			final Properties props = new Properties();
 			props.load( reader );
 			EXTENSIONS = props.getProperty( "EXTENSIONS" ).split( "," );
@@ -210,6 +384,20 @@ public class TrackMateBatchPlugin_ implements PlugIn
 			SUCCEEDING_DISTANCE = Double.parseDouble( props.getProperty( KEY_SUCCEEDING_DISTANCE, DEFAULT_ONE ) );
 			STICK_RADIUS = Double.parseDouble( props.getProperty( KEY_STICK_RADIUS, DEFAULT_ONE ) );
 			MAX_COST = Double.parseDouble( props.getProperty( KEY_MAX_COST, DEFAULT_ONE ) );
+			ESTIMATE_RADIUS = Boolean.parseBoolean( props.getProperty( KEY_ESTIMATE_RADIUS, DEFAULT_FALSE ) );
+			EXPORT_CSV = Boolean.parseBoolean( props.getProperty( "EXPORT_CSV", DEFAULT_FALSE ) );
+			CSV_GZIP = Boolean.parseBoolean( props.getProperty( "CSV_GZIP", DEFAULT_FALSE ) );
+			STREAM_EXPORT = Boolean.parseBoolean( props.getProperty( "STREAM_EXPORT", DEFAULT_FALSE ) );
+			STREAM_CHUNK = Integer.parseInt( props.getProperty( "STREAM_CHUNK", String.valueOf( TrackStreamer.DEFAULT_CHUNK_SIZE ) ) );
+			LAZY_LOADING = Boolean.parseBoolean( props.getProperty( "LAZY_LOADING", DEFAULT_FALSE ) );
+			READ_AHEAD = Integer.parseInt( props.getProperty( "READ_AHEAD", String.valueOf( DEFAULT_READ_AHEAD ) ) );
+			SPLIT_CHANNELS = Boolean.parseBoolean( props.getProperty( "SPLIT_CHANNELS", DEFAULT_FALSE ) );
+			RAW_CACHE = props.getProperty( "RAW_CACHE", "" ).trim();
+			SPATIAL_INDEX = Boolean.parseBoolean( props.getProperty( "SPATIAL_INDEX", DEFAULT_FALSE ) );
+			CONSOLIDATED_DB = props.getProperty( "CONSOLIDATED_DB", "" ).trim();
+			PARALLEL_FILES = Integer.parseInt( props.getProperty( "PARALLEL_FILES", DEFAULT_ONE ) );
+			MEMORY_BUDGET = Long.parseLong( props.getProperty( "MEMORY_BUDGET", "0" ) );
+			MEMORY_FACTOR = Double.parseDouble( props.getProperty( "MEMORY_FACTOR", String.valueOf( DEFAULT_MEMORY_FACTOR ) ) );
 			PRE_QUALITY = Double.parseDouble( props.getProperty( "PRE_QUALITY", DEFAULT_ONE ) );
 			RADIUS = Double.parseDouble( props.getProperty( "RADIUS", DEFAULT_ONE ) );
 			THRESHOLD = Double.parseDouble( props.getProperty( "THRESHOLD", DEFAULT_ONE ) );
@@ -230,16 +418,14 @@ public class TrackMateBatchPlugin_ implements PlugIn
 			TRACKANALYZER = props.getProperty( "TRACKANALYZER", "" ).split( "[,\n]" );
 			EDGEANALYZER = props.getProperty( "EDGEANALYZER", "" ).split( "[,\n]" );
 			KALMAN_SEARCH_RADIUS = Double.parseDouble( props.getProperty( "KALMAN_SEARCH_RADIUS", DEFAULT_ONE ) );
-			reader.close();
+			DETECTION_CACHE = Boolean.parseBoolean( props.getProperty( "DETECTION_CACHE", DEFAULT_FALSE ) );
+			RESUME = Boolean.parseBoolean( props.getProperty( "RESUME", DEFAULT_FALSE ) );
+			SPOTS_XML = Boolean.parseBoolean( props.getProperty( "SPOTS_XML", DEFAULT_FALSE ) );
+			parametersKey = DetectionCache.digest( new TreeMap< Object, Object >( props ).toString() );
 		}
-		catch ( final FileNotFoundException e1 )
+		finally
 		{
-			logger.log( e1.getMessage() );
-			return;
-		}
-		catch ( final IOException e1 )
-		{
-			logger.log( e1.getMessage() );
+			reader.close();
 		}
 
 		trackfilters = new ArrayList< ValuePair< String, Double >>();
@@ -261,80 +447,908 @@ public class TrackMateBatchPlugin_ implements PlugIn
 				spotfilters.add( new ValuePair< String, Double >( splitted[ 0 ], Double.parseDouble( splitted[ 1 ] ) ) );
 			}
 		}
-
-		try
-		{
-			process( folder );
-		}
-		catch ( final IOException e2 )
-		{
-			logger.log( e2.getMessage() );
-		}
-		catch ( final FormatException e3 )
-		{
-			logger.log( e3.getMessage() );
-		}
-		Locale.setDefault( curLocale );
 	}
 
 	/**
 	 * Process.
 	 * 
+	 * Files are processed by {@link FileJob}s in three stages with a pool
+	 * each: reading, computing and exporting. Before a file is opened, its
+	 * footprint is estimated from the Bio-Formats metadata, and it is admitted
+	 * only while the admitted files fit the memory budget and at most twice as
+	 * many files as are computed at the same time are in the pipeline. So the
+	 * next files are read and the last ones exported while others are
+	 * computed, without exhausting the heap. A file failing in any stage is
+	 * reported and skipped. The wall time, CPU time, peak heap and counts of
+	 * every stage are written to {@value BatchReport#FILE_NAME} in the output
+	 * folder or the processed folder.
+	 * <p>
+	 * Every series of a file, and every channel with SPLIT_CHANNELS, is an
+	 * image of its own job sharing the reader of the file. The outputs of an
+	 * image are tagged with _s and the 1-based series if the file has several
+	 * series, and with _c and the channel if channels are split.
+	 * 
 	 * @param folder
 	 *            the name of the directory to process
-	 * @throws FileNotFoundException
-	 *             the file not found exception
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
-	 * @throws FormatException 
+	 * @return the number of failed images, or -1 if the batch could not be
+	 *         started or was interrupted
 	 */
-	private void process( final File folder ) throws IOException, FormatException
+	public int process( final File folder )
 	{
 	// get the directory to work on
 
 	final long start = System.currentTimeMillis();
-	final Logger logger = Logger.IJ_LOGGER; 
 	
 	final Collection<File> fList = LTUtils.listFiles(folder,EXTENSIONS);
 	
-	for (final File file : fList) {
-	    logger.log("Processing " + file.getName());
-	    //final ImagePlus imp = new ImagePlus(file.getAbsolutePath());
-	    final ImagePlus[] imps = BF.openImagePlus(file.getAbsolutePath());
-	    final ImagePlus imp = imps[0]; //only one image per file so far;
+	// all movies into one database
+	consolidated = null;
+	appended = Collections.synchronizedMap(new LinkedHashMap<String, Future<Long>>());
+	if (!CONSOLIDATED_DB.isEmpty()) {
+	    File db = new File(CONSOLIDATED_DB);
+	    if (!db.isAbsolute())
+		db = new File(null == outputFolder ? folder : outputFolder, CONSOLIDATED_DB);
+	    try {
+		consolidated = new ExportTracksToSQL().openConsolidated(db);
+	    } catch (final SQLException e) {
+		logger.error("Cannot open " + db.getName() + ": " + e.getMessage() + "\n");
+		return -1;
+	    }
+	    logger.log("Appending all movies to " + db.getAbsolutePath());
+	}
+	rawCacheFolder = null;
+	if (!RAW_CACHE.isEmpty()) {
+	    rawCacheFolder = new File(RAW_CACHE);
+	    if (!rawCacheFolder.isAbsolute())
+		rawCacheFolder = new File(null == outputFolder ? folder : outputFolder, RAW_CACHE);
+	}
+	
+	final int parallel = Math.max(1, PARALLEL_FILES);
+	final int cores = Runtime.getRuntime().availableProcessors();
+	final long budget = MEMORY_BUDGET > 0 ? MEMORY_BUDGET << 20 : (long) (HEAP_SHARE * Runtime.getRuntime().maxMemory());
+	readers = Executors.newFixedThreadPool(parallel);
+	workers = Executors.newFixedThreadPool(parallel);
+	exporters = Executors.newFixedThreadPool(parallel);
+	admitted = new MemoryBudget(budget, 2 * parallel);
+	failed = Collections.synchronizedList(new ArrayList<String>());
+	report = new BatchReport();
+	logger.log("Processing " + fList.size() + " files, up to " + parallel + " at a time within " + (budget >> 20) + " MB.");
+	
+	int images = 0;
+	try {
+	    for (final File file : fList) {
+		final String fingerprint = fingerprint(file);
+		final List<SeriesInfo> series = inspect(file, fingerprint);
+		// the jobs of a file share its reader
+		final SharedReader shared = new SharedReader(file);
+		for (final SeriesInfo info : series) {
+		    final int channels = SPLIT_CHANNELS ? info.channels : 0;
+		    for (int channel = SPLIT_CHANNELS ? 1 : 0; channel <= channels; channel++) {
+			String tag = series.size() > 1 ? "_s" + (info.series + 1) : "";
+			if (channel > 0)
+			    tag += "_c" + channel;
+			final String key = seriesKey(fingerprint, info.series);
+			images++;
+			if (RESUME && isDone(outputBase(file) + tag, key)) {
+			    logger.log(file.getName() + tag + " was finished by an earlier run, skipped.");
+			    continue;
+			}
+			// fewer images fit side by side, so each gets more threads
+			final int threads = Math.max(1, cores / Math.min(parallel, admitted.concurrency(info.bytes)));
+			if (info.bytes > budget)
+			    logger.log(file.getName() + tag + " needs about " + (info.bytes >> 20) + " MB, more than the budget; it runs alone.");
+			admitted.acquire(info.bytes);
+			readers.execute(new FileJob(file, info.series, channel, tag, shared, key, info.bytes, threads));
+		    }
+		}
+	    }
+	    // every job releases its memory when done
+	    admitted.awaitIdle();
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    logger.error("Batch interrupted.\n");
+	    return -1;
+	} finally {
+	    readers.shutdownNow();
+	    workers.shutdownNow();
+	    exporters.shutdownNow();
+	    if (consolidated != null)
+		closeConsolidated(consolidated, appended, logger);
+	    report.close();
+	}
+	final long end = System.currentTimeMillis();
+	final long seconds = Math.max(1, (end - start) / 1000);
+	logger.log("All Done in " + (end - start)/1000 + "s, " + (images - failed.size()) + " images (" + 3600 * (images - failed.size()) / seconds + " per hour).");
+	report.logTotals(logger);
+	final File reportFile = new File(null == outputFolder ? folder : outputFolder, BatchReport.FILE_NAME);
+	try {
+	    report.write(reportFile);
+	    logger.log("Stage timings written to " + reportFile.getAbsolutePath());
+	} catch (final IOException e) {
+	    logger.error("Cannot write " + reportFile.getName() + ": " + e.getMessage() + "\n");
+	}
+	if (!failed.isEmpty())
+	    logger.error(failed.size() + " images failed: " + failed + "\n");
+	return failed.size();
+    }
+
+	/**
+	 * The work on one series or channel of a file. The job runs one stage at
+	 * a time and submits itself to the pool of the next stage; the admission
+	 * permit is returned after the last stage or on failure. The jobs of a
+	 * file share its reader, which is open while any of them runs.
+	 */
+	private final class FileJob implements Runnable
+	{
+
+		private static final int READ = 0, COMPUTE = 1, EXPORT = 2;
+
+		private final File file;
+
+		/** The series, 0-based. */
+		private final int series;
+
+		/** The tracked channel, 1-based, or 0 for the detector default. */
+		private final int channel;
+
+		/** The suffix of the image name and the output files. */
+		private final String tag;
+
+		/** The reader of the file. */
+		private final SharedReader shared;
+
+		private int stage = READ;
+
+		private long fileStart;
+
+		private TrackMate trackmate;
+
+		/** The estimated footprint. */
+		private final long bytes;
+
+		/** The threads of TrackMate and the exports. */
+		private final int threads;
+
+		/** The fingerprint of the series, null if unknown. */
+		private final String fingerprint;
+
+		/** The whole file and the running stage in the report. */
+		private BatchReport.Stage total, timed;
+
+		/** Whether the spots were filtered, so only visible spots count. */
+		private boolean filtered;
+
+		/** The planes of the movie if loaded lazily. */
+		private LazyVirtualStack stack;
+
+		/** The spots of the TrackMate XML file, null if they are detected. */
+		private SpotCollection xmlSpots;
+
+		private FileJob( final File file, final int series, final int channel, final String tag, final SharedReader shared, final String fingerprint,
+				final long bytes, final int threads )
+		{
+			this.file = file;
+			this.series = series;
+			this.channel = channel;
+			this.tag = tag;
+			this.shared = shared;
+			this.fingerprint = fingerprint;
+			this.bytes = bytes;
+			this.threads = threads;
+			shared.retain();
+		}
+
+		/**
+		 * Gets the name of the image: the file name with the series and
+		 * channel tag.
+		 */
+		private String name()
+		{
+			return file.getName() + tag;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean handedOn = false;
+			try
+			{
+				if ( !runStage() )
+					failed.add( name() );
+				else if ( stage == READ )
+				{
+					stage = COMPUTE;
+					workers.execute( this );
+					handedOn = true;
+				}
+				else if ( stage == COMPUTE )
+				{
+					stage = EXPORT;
+					exporters.execute( this );
+					handedOn = true;
+				}
+			}
+			catch ( final Exception e )
+			{
+				logger.error( name() + " failed: " + e + "\n" );
+				failed.add( name() );
+			}
+			finally
+			{
+				if ( !handedOn )
+				{
+					if ( null != timed )
+						end( timed, false );
+					end( total, !failed.contains( name() ) );
+					// free the movie before the next file is admitted
+					trackmate = null;
+					closeStack();
+					releaseReader();
+					admitted.release( bytes );
+				}
+			}
+		}
+
+		private boolean runStage() throws Exception
+		{
+			switch ( stage )
+			{
+			case READ:
+				return read();
+			case COMPUTE:
+				return compute();
+			default:
+				return export();
+			}
+		}
+
+		private boolean read() throws IOException, FormatException
+		{
+			logger.log( "Processing " + name() + " (about " + ( bytes >> 20 ) + " MB, " + threads + " threads)" );
+			fileStart = System.currentTimeMillis();
+			total = report.start( name(), "total" );
+			timed = report.start( name(), "read" );
+			if ( SPOTS_XML )
+				xmlSpots = readSpotsXml();
+			final ImagePlus imp;
+			if ( null != xmlSpots && !ESTIMATE_RADIUS )
+				// only tracking and export follow, the movie is not opened
+				imp = null;
+			else if ( LAZY_LOADING )
+				imp = openLazy();
+			else
+			{
+				//final ImagePlus imp = new ImagePlus(file.getAbsolutePath());
+				final ImporterOptions options = new ImporterOptions();
+				options.setId( file.getAbsolutePath() );
+				options.setSeriesOn( 0, series == 0 );
+				options.setSeriesOn( series, true );
+				final ImagePlus[] imps = BF.openImagePlus( options );
+				imp = imps[ 0 ]; //only the series of this job
+			}
+			final Settings settings = createSettings( imp, channel );
+			if ( settings == null )
+				return false;
+			end( timed, true );
+
+			final Model model = new Model();
+			model.setLogger( logger );
+			trackmate = new TrackMate( model, settings );
+			trackmate.setNumThreads( threads );
+			return true;
+		}
+
+		/**
+		 * Opens the movie as a virtual stack reading the planes on demand. The
+		 * cache holds a frame per thread and the frames read ahead.
+		 */
+		private ImagePlus openLazy() throws IOException
+		{
+			final PlaneSource source = null != rawCacheFolder && null != fingerprint ? rawCache() : new BioFormatsPlaneSource( shared, series );
+			stack = new LazyVirtualStack( source, threads, READ_AHEAD );
+			final ImagePlus imp = new ImagePlus( name(), stack );
+			imp.setDimensions( source.getSizeC(), source.getSizeZ(), source.getSizeT() );
+			imp.setOpenAsHyperStack( true );
+			imp.setCalibration( source.getCalibration() );
+			// the settings take the image location from the file info
+			final FileInfo fi = new FileInfo();
+			fi.fileName = file.getName();
+			fi.directory = file.getAbsoluteFile().getParent() + File.separator;
+			imp.setFileInfo( fi );
+			return imp;
+		}
+
+		/**
+		 * Gets the planes from the raw cache of the series, and decodes the
+		 * series into the cache first if there is none. The cache is named
+		 * after the fingerprint of the file and the series only, so the
+		 * channel jobs of a series share it, and renamed or moved movies find
+		 * their cache. The fingerprint includes the modification time, so an
+		 * edited or re-acquired movie is decoded again; see
+		 * {@link DetectionCache#fingerprint(File)} for its limit.
+		 * 
+		 * @return the cache, or Bio-Formats if the cache cannot be written
+		 */
+		private PlaneSource rawCache() throws IOException
+		{
+			final File cacheFile = rawCacheFile( fingerprint );
+			final Object lock = new Object();
+			final Object previous = rawCacheLocks.putIfAbsent( cacheFile, lock );
+			// the first channel job decodes, the others wait for its cache
+			synchronized ( null == previous ? lock : previous )
+			{
+				if ( cacheFile.isFile() )
+				{
+					try
+					{
+						return new RawPlaneCache( cacheFile );
+					}
+					catch ( final IOException e )
+					{
+						logger.log( "Cannot read " + cacheFile.getName() + ", decoding again: " + e.getMessage() );
+					}
+				}
+				final int seriesCount;
+				synchronized ( shared )
+				{
+					seriesCount = shared.getReader().getSeriesCount();
+				}
+				final PlaneSource source = new BioFormatsPlaneSource( shared, series );
+				try
+				{
+					cacheFile.getAbsoluteFile().getParentFile().mkdirs();
+					RawPlaneCache.write( source, seriesCount, cacheFile );
+				}
+				catch ( final IOException e )
+				{
+					logger.log( "Cannot write " + cacheFile.getName() + ": " + e.getMessage() );
+					return source;
+				}
+				logger.log( name() + ": decoded into " + cacheFile.getName() );
+				source.close();
+				return new RawPlaneCache( cacheFile );
+			}
+		}
+
+		private void closeStack()
+		{
+			if ( null == stack )
+				return;
+			try
+			{
+				stack.close();
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Cannot close " + name() + ": " + e.getMessage() );
+			}
+			stack = null;
+		}
+
+		private void releaseReader()
+		{
+			try
+			{
+				shared.release();
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Cannot close " + file.getName() + ": " + e.getMessage() );
+			}
+		}
+
+		private boolean compute()
+		{
+			// without the movie there is nothing to detect or measure
+			if ( null != trackmate.getSettings().imp && !trackmate.checkInput() )
+			{
+				logger.log( name() + ": " + trackmate.getErrorMessage() );
+				return false;
+			}
+			timed = report.start( name(), "detection" );
+			if ( !detect() )
+				return false;
+			end( timed, true );
+			if ( consolidated == null && STREAM_EXPORT )
+			{
+				// the tracks are exported while they are computed
+				timed = report.start( name(), "streaming" );
+				final TrackStreamer streamer = new TrackStreamer( trackmate, STREAM_CHUNK );
+				streamer.setDetection( false );
+				streamer.setSpotFeatures( null == xmlSpots );
+				if ( !streamer.process( newExporter(), databaseFile() ) )
+				{
+					logger.log( name() + ": " + streamer.getErrorMessage() );
+					return false;
+				}
+				filtered = true;
+				end( timed, true );
+				return true;
+			}
+			// the stages of TrackMate.process() after the detection
+			timed = report.start( name(), "spot features" );
+			if ( !trackmate.execInitialSpotFiltering() || !computeSpotFeatures() || !trackmate.execSpotFiltering( true ) )
+				return trackMateFailed();
+			filtered = true;
+			end( timed, true );
+			timed = report.start( name(), "tracking" );
+			if ( !trackmate.execTracking() )
+				return trackMateFailed();
+			end( timed, true );
+			timed = report.start( name(), "track features" );
+			if ( !trackmate.computeEdgeFeatures( true ) || !trackmate.computeTrackFeatures( true ) )
+				return trackMateFailed();
+			end( timed, true );
+			timed = report.start( name(), "track filtering" );
+			if ( !trackmate.execTrackFiltering( true ) )
+				return trackMateFailed();
+			end( timed, true );
+			return true;
+		}
+
+		/**
+		 * Computes the spot features. The spots of a TrackMate XML file
+		 * hold their values already, their features are only declared.
+		 */
+		private boolean computeSpotFeatures()
+		{
+			if ( null == xmlSpots )
+				return trackmate.computeSpotFeatures( true );
+			TrackStreamer.declareSpotFeatures( trackmate.getModel().getFeatureModel(), trackmate.getSettings() );
+			return true;
+		}
+
+		private boolean trackMateFailed()
+		{
+			logger.log( name() + ": " + trackmate.getErrorMessage() );
+			return false;
+		}
+
+		/**
+		 * Ends a stage in the report with the current spot and track counts.
+		 */
+		private void end( final BatchReport.Stage timing, final boolean ok )
+		{
+			int spots = 0, tracks = 0;
+			if ( null != trackmate )
+			{
+				spots = trackmate.getModel().getSpots().getNSpots( filtered );
+				tracks = trackmate.getModel().getTrackModel().nTracks( true );
+			}
+			timing.end( ok, spots, tracks );
+			if ( timing == timed )
+				timed = null;
+		}
+
+		/**
+		 * Reads the spots of the TrackMate XML file of the movie.
+		 * 
+		 * @return the spots, or <code>null</code> if there is no readable file
+		 */
+		private SpotCollection readSpotsXml()
+		{
+			final File xml = spotsXmlFile();
+			if ( !xml.isFile() )
+				return null;
+			final SpotXmlStreamReader reader = new SpotXmlStreamReader( xml );
+			final SpotCollection spots = reader.readSpots();
+			if ( null == spots )
+				logger.log( "Cannot read " + xml.getName() + ", detecting again: " + reader.getErrorMessage() );
+			else
+				logger.log( name() + ": " + spots.getNSpots( false ) + " spots from " + xml.getName() );
+			return spots;
+		}
+
+		/**
+		 * Takes the spots of the TrackMate XML file, or loads them from the
+		 * detection cache, or detects them and fills the cache.
+		 */
+		private boolean detect()
+		{
+			if ( null != xmlSpots )
+			{
+				trackmate.getModel().setSpots( xmlSpots, false );
+				return true;
+			}
+			final DetectionCache cache = DETECTION_CACHE && null != fingerprint
+					? new DetectionCache( file, fingerprint, trackmate.getSettings() ) : null;
+			if ( null != cache )
+			{
+				try
+				{
+					final SpotCollection spots = cache.load();
+					if ( null != spots )
+					{
+						trackmate.getModel().setSpots( spots, false );
+						logger.log( name() + ": " + spots.getNSpots( false ) + " spots from " + cache.getFile().getName() );
+						return true;
+					}
+				}
+				catch ( final IOException e )
+				{
+					logger.log( "Cannot read " + cache.getFile().getName() + ", detecting again: " + e.getMessage() );
+				}
+			}
+			if ( !trackmate.execDetection() )
+			{
+				logger.log( name() + ": " + trackmate.getErrorMessage() );
+				return false;
+			}
+			if ( null != cache )
+			{
+				try
+				{
+					cache.save( trackmate.getModel().getSpots() );
+				}
+				catch ( final IOException e )
+				{
+					logger.log( "Cannot write " + cache.getFile().getName() + ": " + e.getMessage() );
+				}
+			}
+			return true;
+		}
+
+		private boolean export() throws InterruptedException
+		{
+			timed = report.start( name(), "export" );
+			boolean ok = true;
+			if ( consolidated != null )
+			{
+				try
+				{
+					final Future< Long > rows = consolidated.append( file, series, channel, trackmate.getModel(), trackmate.getSettings(),
+							System.currentTimeMillis() - fileStart );
+					appended.put( name(), rows );
+					// the model stays in memory until it is written
+					rows.get();
+				}
+				catch ( final SQLException e )
+				{
+					logger.error( "Export of " + name() + " failed: " + e.getMessage() + "\n" );
+					ok = false;
+				}
+				catch ( final ExecutionException e )
+				{
+					// reported when the database is closed
+					ok = false;
+				}
+			}
+			else if ( !STREAM_EXPORT )
+			{
+				ok = newExporter().export( trackmate.getModel(), trackmate.getSettings(), databaseFile() ); // SQLITE
+			}
+
+			if ( EXPORT_CSV )
+			{
+				final String base = outputBase();
+				final String suffix = CSV_GZIP ? ExportTracksToCSV.SUFFIX_GZIP : ExportTracksToCSV.SUFFIX;
+				final ExportTracksToCSV csv = new ExportTracksToCSV();
+				csv.setCompress( CSV_GZIP );
+				csv.setNumThreads( threads );
+				try
+				{
+					csv.export( trackmate.getModel(), new File( base + "_tracks" + suffix ), new File( base + "_spots" + suffix ) );
+				}
+				catch ( final Exception e )
+				{
+					logger.error( "CSV export of " + name() + " failed: " + e.getMessage() + "\n" );
+					ok = false;
+				}
+			}
+			end( timed, ok );
+			if ( ok && null != fingerprint )
+				markDone( outputBase(), fingerprint );
+			return ok;
+		}
+
+		private String outputBase()
+		{
+			return TrackMateBatchPlugin_.this.outputBase( file ) + tag;
+		}
+
+		/**
+		 * Gets the TrackMate XML file of the spots: the movie name without its
+		 * extension and with the tag, next to the movie.
+		 */
+		private File spotsXmlFile()
+		{
+			String name = file.getName();
+			if ( name.lastIndexOf( '.' ) > 0 )
+				name = name.substring( 0, name.lastIndexOf( '.' ) );
+			return new File( file.getAbsoluteFile().getParentFile(), name + tag + ".xml" );
+		}
+
+		private File databaseFile()
+		{
+			return new File( outputBase() + "_B.db" );
+		}
+
+		private ExportTracksToSQL newExporter()
+		{
+			final ExportTracksToSQL ex = new ExportTracksToSQL();
+			ex.setSpatialIndex( SPATIAL_INDEX );
+			ex.setNumThreads( threads );
+			return ex;
+		}
+	}
+
+	/**
+	 * Gets the output path of a file without suffix: the file name without
+	 * its extension, in the output folder or next to the file.
+	 */
+	private String outputBase( final File file )
+	{
+		final String name = file.getName().substring( 0, file.getName().length() - 4 );
+		final File dir = null == outputFolder ? file.getAbsoluteFile().getParentFile() : outputFolder;
+		return new File( dir, name ).getAbsolutePath();
+	}
+
+	/**
+	 * Computes the fingerprint of a file for the detection cache and
+	 * the done markers.
+	 * 
+	 * @return the fingerprint or <code>null</code> if the file cannot be read
+	 */
+	private String fingerprint( final File file )
+	{
+		if ( !DETECTION_CACHE && !RESUME && RAW_CACHE.isEmpty() )
+			return null;
+		try
+		{
+			return DetectionCache.fingerprint( file );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Cannot fingerprint " + file.getName() + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the key of a series for the caches and markers. Other series are
+	 * other content.
+	 * 
+	 * @return the key, or <code>null</code> without fingerprint
+	 */
+	private static String seriesKey( final String fingerprint, final int series )
+	{
+		return null == fingerprint || series == 0 ? fingerprint : DetectionCache.digest( fingerprint, String.valueOf( series ) );
+	}
+
+	/**
+	 * Gets the raw plane cache of a series in the resolved cache folder.
+	 * 
+	 * @param key
+	 *            the key of the series, see {@link #seriesKey(String, int)}
+	 */
+	private File rawCacheFile( final String key )
+	{
+		return new File( rawCacheFolder, key.substring( 0, 16 ) + RawPlaneCache.SUFFIX );
+	}
+
+	/**
+	 * Checks whether an image was finished with the current parameters. The
+	 * marker is written after all exports of the image succeeded and holds
+	 * the digest of the parameters and the content.
+	 * 
+	 * @param base
+	 *            the output path of the image without suffix
+	 */
+	private boolean isDone( final String base, final String fingerprint )
+	{
+		if ( null == fingerprint )
+			return false;
+		final File marker = new File( base + DONE_SUFFIX );
+		try
+		{
+			return marker.isFile() && DetectionCache.digest( parametersKey, fingerprint ).equals( new String( Files.readAllBytes( marker.toPath() ), "UTF-8" ).trim() );
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+
+	private void markDone( final String base, final String fingerprint )
+	{
+		final File marker = new File( base + DONE_SUFFIX );
+		try
+		{
+			Files.write( marker.toPath(), DetectionCache.digest( parametersKey, fingerprint ).getBytes( "UTF-8" ) );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Cannot write " + marker.getName() + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * The size of a series of a file.
+	 */
+	private static final class SeriesInfo
+	{
+
+		/** The series, 0-based. */
+		private final int series;
+
+		/** The number of channels. */
+		private final int channels;
+
+		/** The estimated footprint in bytes. */
+		private final long bytes;
+
+		private SeriesInfo( final int series, final int channels, final long bytes )
+		{
+			this.series = series;
+			this.channels = channels;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Lists the series of a file and estimates the memory needed to process
+	 * each of them from its dimensions and pixel type, without reading
+	 * pixels. The pixel data is multiplied by the memory factor to cover the
+	 * filtered copies of the detectors and the model. If every series has a
+	 * raw cache to be read, the series are taken from the cache headers and
+	 * Bio-Formats does not open the movie. If the metadata cannot be read,
+	 * one series of the file size is assumed.
+	 * 
+	 * @param file
+	 *            the file
+	 * @param fingerprint
+	 *            the fingerprint of the file, may be null
+	 * @return the series
+	 */
+	private List< SeriesInfo > inspect( final File file, final String fingerprint )
+	{
+		if ( LAZY_LOADING && null != rawCacheFolder && null != fingerprint )
+		{
+			final List< SeriesInfo > cached = inspectCaches( fingerprint );
+			if ( null != cached )
+				return cached;
+		}
+		final List< SeriesInfo > series = new ArrayList< SeriesInfo >();
+		final ImageReader reader = new ImageReader();
+		try
+		{
+			reader.setId( file.getAbsolutePath() );
+			for ( int s = 0; s < reader.getSeriesCount(); s++ )
+			{
+				reader.setSeries( s );
+				series.add( new SeriesInfo( s, reader.getSizeC(), footprint( ( long ) reader.getSizeX() * reader.getSizeY() * reader.getSizeZ()
+						* reader.getSizeC() * FormatTools.getBytesPerPixel( reader.getPixelType() ), reader.getSizeT() ) ) );
+			}
+		}
+		catch ( final FormatException e )
+		{
+			logger.log( "Cannot read the metadata of " + file.getName() + ": " + e.getMessage() );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Cannot read the metadata of " + file.getName() + ": " + e.getMessage() );
+		}
+		finally
+		{
+			try
+			{
+				reader.close();
+			}
+			catch ( final IOException e )
+			{
+				// metadata only
+			}
+		}
+		if ( series.isEmpty() )
+			series.add( new SeriesInfo( 0, 1, ( long ) ( file.length() * MEMORY_FACTOR ) ) );
+		return series;
+	}
+
+	/**
+	 * Lists the series of a file from the headers of their raw caches.
+	 * 
+	 * @return the series, or <code>null</code> if a series has no readable
+	 *         cache
+	 */
+	private List< SeriesInfo > inspectCaches( final String fingerprint )
+	{
+		final List< SeriesInfo > series = new ArrayList< SeriesInfo >();
+		int seriesCount = 1;
+		for ( int s = 0; s < seriesCount; s++ )
+		{
+			final File cacheFile = rawCacheFile( seriesKey( fingerprint, s ) );
+			if ( !cacheFile.isFile() )
+				return null;
+			try
+			{
+				// maps the planes, reads only the header
+				final RawPlaneCache cache = new RawPlaneCache( cacheFile );
+				seriesCount = cache.getSeriesCount();
+				series.add( new SeriesInfo( s, cache.getSizeC(), footprint( ( long ) cache.getWidth() * cache.getHeight() * cache.getSizeZ()
+						* cache.getSizeC() * ( cache.getBitDepth() / 8 ), cache.getSizeT() ) ) );
+				cache.close();
+			}
+			catch ( final IOException e )
+			{
+				return null;
+			}
+		}
+		return series;
+	}
+
+	/**
+	 * Estimates the memory needed to process a series. Lazy loading keeps a
+	 * frame per thread and the frames read ahead, but the model still grows
+	 * with every frame, so its share of the memory factor is counted for all
+	 * frames.
+	 * 
+	 * @param frameBytes
+	 *            the pixel data of a frame
+	 * @param frames
+	 *            the number of frames
+	 */
+	private long footprint( final long frameBytes, final long frames )
+	{
+		if ( !LAZY_LOADING )
+			return ( long ) ( frameBytes * frames * MEMORY_FACTOR );
+		final long loaded = Math.min( frames, Runtime.getRuntime().availableProcessors() + READ_AHEAD );
+		final double model = Math.min( MODEL_SHARE, MEMORY_FACTOR );
+		return ( long ) ( frameBytes * loaded * ( MEMORY_FACTOR - model ) + frameBytes * frames * model );
+	}
+
+	/**
+	 * Creates the detection, tracking, analysis and filter settings of a
+	 * movie from the parameter file.
+	 * 
+	 * @param imp
+	 *            the movie, or <code>null</code> if the spots are read from a
+	 *            TrackMate XML file
+	 * @param channel
+	 *            the channel to track, 1-based, or 0 for the detector default
+	 * @return the settings or <code>null</code> if the parameter file names
+	 *         an unknown detector, tracker or analyzer
+	 */
+	private Settings createSettings( final ImagePlus imp, final int channel )
+	{
 	    final Settings settings = new Settings(imp);
 //	    settings.setFromWithoutROI(imp);
+	    if (null != imp)
 		imp.killRoi();
 
 	    // Detection
-	    final DetectorProvider provider = new DetectorProvider();
 	    if (DETECTOR.equalsIgnoreCase("DOG_DETECTOR"))
-		settings.detectorFactory = provider.getFactory(DogDetectorFactory.DETECTOR_KEY);
+		settings.detectorFactory = new DogDetectorFactory<>();
 	    if (DETECTOR.equalsIgnoreCase("LOG_DETECTOR"))
-		settings.detectorFactory = provider.getFactory(LogDetectorFactory.DETECTOR_KEY);
+		settings.detectorFactory = new LogDetectorFactory<>();
 	    if (settings.detectorFactory == null) { 
-		logger.log("No Detector provided!"); return;
+		logger.log("No Detector provided!"); return null;
 	    }
 	    
 	    final Map<String, Object> dmap = settings.detectorFactory.getDefaultSettings();
 	    dmap.put(KEY_RADIUS, RADIUS);
 	    dmap.put(KEY_THRESHOLD, THRESHOLD);
 	    dmap.put(KEY_DO_MEDIAN_FILTERING, MEDIAN_FILTERING);
+	    if (channel > 0)
+		dmap.put(KEY_TARGET_CHANNEL, channel);
 	    settings.detectorSettings = dmap;
 	    settings.initialSpotFilterValue = PRE_QUALITY;
 
 	 // Tracking
-	    final TrackerProvider tp = new TrackerProvider(); 
+	    // factories are created directly, a provider would scan all plugins
 	    if(TRACKER.startsWith("LINEAR_TRACKER")){
-	       	    settings.trackerFactory = tp.getFactory( LinearTrackerFactory.TRACKER_KEY );
+	       	    settings.trackerFactory = new LinearTrackerFactory();
 	    	    final Map<String, Object> ts = settings.trackerFactory.getDefaultSettings();
 	    	    ts.put(KEY_INITIAL_DISTANCE, INITIAL_DISTANCE);
 	    	    ts.put(KEY_SUCCEEDING_DISTANCE, SUCCEEDING_DISTANCE);
 	    	    ts.put(KEY_STICK_RADIUS, STICK_RADIUS);
 	    	    ts.put(KEY_MAX_COST, MAX_COST);
+	    	    ts.put(KEY_ESTIMATE_RADIUS, ESTIMATE_RADIUS);
+	    	    // radii are estimated on demand, no need for a MySpotRadiusEstimatorFactory pass
+	    	    if (ESTIMATE_RADIUS)
+	    		((LinearTrackerFactory) settings.trackerFactory).setImage(TMUtils.rawWraps(imp), Math.max(0, channel - 1));
 	    	    settings.trackerSettings = ts; }
 		else if(TRACKER.startsWith("SIMPLE_FAST_LAP_TRACKER")) {    
-	    	    settings.trackerFactory = tp.getFactory( SimpleSparseLAPTrackerFactory.THIS_TRACKER_KEY);
+	    	    settings.trackerFactory = new SimpleSparseLAPTrackerFactory();
 	    	    final Map<String, Object> sfl = settings.trackerFactory.getDefaultSettings();
 	    	    sfl.put(KEY_ALLOW_GAP_CLOSING, ALLOW_GAP_CLOSING);
 	    	    sfl.put(KEY_GAP_CLOSING_MAX_DISTANCE, GAP_CLOSING_MAX_DISTANCE);
@@ -342,7 +1356,7 @@ public class TrackMateBatchPlugin_ implements PlugIn
 	    	    sfl.put(KEY_LINKING_MAX_DISTANCE, LINKING_MAX_DISTANCE);
 	    	    settings.trackerSettings = sfl; }
 		else if (TRACKER.startsWith("SPARSE_LAP_TRACKER")) {
-	    	    settings.trackerFactory = tp.getFactory( SparseLAPTrackerFactory.THIS_TRACKER_KEY );
+	    	    settings.trackerFactory = new SparseLAPTrackerFactory();
 	    	    final Map<String, Object> slp = settings.trackerFactory.getDefaultSettings();
 	    	    slp.put(KEY_ALLOW_GAP_CLOSING, ALLOW_GAP_CLOSING);
 	    	    slp.put(KEY_ALLOW_TRACK_MERGING, ALLOW_TRACK_MERGING);
@@ -354,7 +1368,7 @@ public class TrackMateBatchPlugin_ implements PlugIn
 	    	    slp.put(KEY_SPLITTING_MAX_DISTANCE, SPLITTING_MAX_DISTANCE);
 	    	    settings.trackerSettings = slp; }
 		else if(TRACKER.startsWith("KALMAN_TRACKER")) {
-    	    settings.trackerFactory = tp.getFactory( KalmanTrackerFactory.KEY );
+    	    settings.trackerFactory = new KalmanTrackerFactory();
     	    final Map<String, Object> ka = settings.trackerFactory.getDefaultSettings();
     	    ka.put(KEY_KALMAN_SEARCH_RADIUS, KALMAN_SEARCH_RADIUS);
     	    ka.put(KEY_GAP_CLOSING_MAX_FRAME_GAP, GAP_CLOSING_MAX_FRAME_GAP );
@@ -363,7 +1377,7 @@ public class TrackMateBatchPlugin_ implements PlugIn
 	    
 		else {
 	    	    logger.log("No Tracker found in TrackMate.properties");
-	    	    return;} 
+	    	    return null;} 
 	    
 	 // Analyzer
 	    ClassLoader cl = ClassLoader.getSystemClassLoader();
@@ -376,7 +1390,7 @@ public class TrackMateBatchPlugin_ implements PlugIn
 		    settings.addSpotAnalyzerFactory(ac.newInstance());
 		} catch (ClassNotFoundException e) {
 		    logger.log(e.getMessage());
-		    return;
+		    return null;
 		} catch (InstantiationException e) {
 			e.printStackTrace();
 		} catch (IllegalAccessException e) {
@@ -391,7 +1405,7 @@ public class TrackMateBatchPlugin_ implements PlugIn
 		    settings.addTrackAnalyzer(ac.newInstance());
 		} catch (ClassNotFoundException e) {
 		    logger.log(e.getMessage());
-		    return;
+		    return null;
 		} catch (InstantiationException e) {
 			e.printStackTrace();
 		} catch (IllegalAccessException e) {
@@ -406,7 +1420,7 @@ public class TrackMateBatchPlugin_ implements PlugIn
 		    settings.addEdgeAnalyzer(ac.newInstance());
 		} catch (ClassNotFoundException e) {
 		    logger.log(e.getMessage());
-		    return;
+		    return null;
 		} catch (InstantiationException e) {
 			e.printStackTrace();
 		} catch (IllegalAccessException e) {
@@ -444,34 +1458,39 @@ public class TrackMateBatchPlugin_ implements PlugIn
 	    }
   
 	    logger.log(settings.toString());
+	    return settings;
+	}
 
-	    // Process
-	    final Model model = new Model();
-	    model.setLogger(Logger.IJ_LOGGER);
-
-	    final TrackMate trackmate = new TrackMate(model, settings);
-	    boolean ok = trackmate.checkInput();
-	    if (!ok) {
-		logger.log(trackmate.getErrorMessage());
-		return;
-	    }
-
-	    ok = ok & trackmate.process();
-	    if (!ok) {
-		logger.log(trackmate.getErrorMessage());
-		continue;
-	    }
-
-	    // Export
-	    final String newName = file.getAbsolutePath().substring(0, file.getAbsolutePath().length()-4) + "_B.db";
-	    final File _file = new File(newName);
-	    
-	    ExportTracksToSQL ex = new  ExportTracksToSQL();
-	    ex.export(trackmate.getModel(), trackmate.getSettings(), _file); // SQLITE
+	/**
+	 * Waits for the consolidated database and reports every movie.
+	 */
+	private static void closeConsolidated( final ExportTracksToSQL.Consolidated consolidated, final Map< String, Future< Long > > appended, final Logger logger )
+	{
+		try
+		{
+			consolidated.close();
+		}
+		catch ( final SQLException e )
+		{
+			logger.error( "Closing the consolidated database failed: " + e.getMessage() + "\n" );
+		}
+		for ( final Map.Entry< String, Future< Long > > entry : appended.entrySet() )
+		{
+			try
+			{
+				logger.log( "Exported " + entry.getKey() + " (" + entry.getValue().get() + " rows)." );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch ( final ExecutionException e )
+			{
+				logger.error( "Export of " + entry.getKey() + " failed: " + e.getCause().getMessage() + "\n" );
+			}
+		}
 	}
-	final long end = System.currentTimeMillis();
-	logger.log("All Done in " + (end - start)/1000 + "s.");
-    }
 
 	/**
 	 * The main method.
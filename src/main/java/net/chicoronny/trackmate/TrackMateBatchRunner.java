@@ -0,0 +1,133 @@
+package net.chicoronny.trackmate;
+
+import java.io.File;
+import java.io.IOException;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * The Class TrackMateBatchRunner.
+ *
+ * Runs the batch of {@link TrackMateBatchPlugin_} from the command line,
+ * without starting ImageJ, opening dialogs or changing the default locale, so
+ * it can be used in cluster jobs. Usage:
+ *
+ * <pre>
+ * TrackMateBatchRunner [-p parameter file] [-o output folder] input folder
+ * </pre>
+ *
+ * The parameter file defaults to <code>TrackMate.properties</code> in the
+ * parent of the input folder, like in the plugin, and the output files are
+ * written next to the input files unless an output folder is given. The exit
+ * code tells whether all files were processed.
+ */
+public class TrackMateBatchRunner
+{
+
+	/** All files were processed. */
+	public static final int EXIT_OK = 0;
+
+	/** Some files failed, the others were processed. */
+	public static final int EXIT_FILES_FAILED = 1;
+
+	/** The arguments are wrong. */
+	public static final int EXIT_USAGE = 2;
+
+	/** The parameter file or the output cannot be used, or the batch was interrupted. */
+	public static final int EXIT_SETUP = 3;
+
+	/** The usage. */
+	private static final String USAGE = "Usage: TrackMateBatchRunner [-p parameter file] [-o output folder] input folder\n";
+
+	private TrackMateBatchRunner()
+	{}
+
+	/**
+	 * Runs the batch and exits with its exit code.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main( final String[] args )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		System.exit( run( args, Logger.DEFAULT_LOGGER ) );
+	}
+
+	/**
+	 * Runs the batch.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @param logger
+	 *            the logger
+	 * @return the exit code
+	 */
+	public static int run( final String[] args, final Logger logger )
+	{
+		File folder = null;
+		File properties = null;
+		File output = null;
+		for ( int i = 0; i < args.length; i++ )
+		{
+			if ( ( args[ i ].equals( "-p" ) || args[ i ].equals( "-o" ) ) && i + 1 < args.length )
+			{
+				final File value = new File( args[ i + 1 ] );
+				if ( args[ i ].equals( "-p" ) )
+					properties = value;
+				else
+					output = value;
+				i++;
+			}
+			else if ( args[ i ].startsWith( "-" ) || null != folder )
+			{
+				logger.error( USAGE );
+				return EXIT_USAGE;
+			}
+			else
+				folder = new File( args[ i ] );
+		}
+		if ( null == folder )
+		{
+			logger.error( USAGE );
+			return EXIT_USAGE;
+		}
+		if ( !folder.isDirectory() )
+		{
+			logger.error( folder + " is not a folder.\n" );
+			return EXIT_USAGE;
+		}
+		if ( null == properties )
+			properties = new File( folder.getAbsoluteFile().getParentFile(), "TrackMate.properties" );
+		if ( null != output && !output.isDirectory() && !output.mkdirs() )
+		{
+			logger.error( "Cannot create " + output + ".\n" );
+			return EXIT_SETUP;
+		}
+
+		final TrackMateBatchPlugin_ batch = new TrackMateBatchPlugin_();
+		batch.setLogger( logger );
+		batch.setOutputFolder( output );
+		logger.log( "Using " + properties.getAbsolutePath() + "\n" );
+		try
+		{
+			batch.loadProperties( properties );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Cannot read " + properties + ": " + e.getMessage() + "\n" );
+			return EXIT_SETUP;
+		}
+		catch ( final RuntimeException e )
+		{
+			// missing or malformed values
+			logger.error( "Invalid parameter file " + properties + ": " + e + "\n" );
+			return EXIT_SETUP;
+		}
+
+		final int failed = batch.process( folder );
+		if ( failed < 0 )
+			return EXIT_SETUP;
+		return failed == 0 ? EXIT_OK : EXIT_FILES_FAILED;
+	}
+}
@@ -0,0 +1,240 @@
+package net.chicoronny.trackmate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import net.chicoronny.trackmate.action.ExportTracksToSQL;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.features.FeatureFilter;
+import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactoryBase;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+
+/**
+ * The Class TrackStreamer.
+ *
+ * Runs the TrackMate stages one by one and streams the tracks into an
+ * {@link ExportTracksToSQL.Stream} while the edge and track features of the
+ * following tracks are still computed. Detection, spot features and tracking
+ * run on the whole movie first, because the tracker links broken tracks in a
+ * second pass over all frames and no track is final before it returns.
+ * Afterwards the tracks are processed in chunks: edge features, track
+ * features and track filters are applied to a chunk and the passing tracks
+ * are handed to the exporter, which writes them in the background. Only
+ * local analyzers run per chunk; analyzers whose values depend on other
+ * tracks, such as the track index, run once over all tracks before the
+ * first chunk, so they are not repeated per chunk and never change tracks
+ * the exporter is writing.
+ * <p>
+ * Only the export overlaps with the computation, the peak memory is the same
+ * as without streaming. Exported tracks are not removed from the model: the
+ * whole model is built by the tracking before the first chunk, and the batch
+ * run still needs it for the CSV export and the track counts.
+ */
+public class TrackStreamer {
+
+	/** The default number of tracks per chunk. */
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+	private final TrackMate trackmate;
+
+	private final int chunkSize;
+
+	private boolean detection = true;
+
+	private boolean spotFeatures = true;
+
+	private String errorMessage;
+
+	/**
+	 * Instantiates a new track streamer.
+	 *
+	 * @param trackmate
+	 *            the trackmate instance holding model and settings
+	 * @param chunkSize
+	 *            the number of tracks per chunk
+	 */
+	public TrackStreamer( final TrackMate trackmate, final int chunkSize )
+	{
+		this.trackmate = trackmate;
+		this.chunkSize = Math.max( 1, chunkSize );
+	}
+
+	/**
+	 * Sets whether the spots are detected. If not, the model must already
+	 * hold the detected spots, for example loaded from a
+	 * {@link DetectionCache}.
+	 *
+	 * @param detection
+	 *            false to skip the detection
+	 */
+	public void setDetection( final boolean detection )
+	{
+		this.detection = detection;
+	}
+
+	/**
+	 * Sets whether the spot features are computed. If not, the spots must
+	 * hold their feature values, for example read from a TrackMate XML file,
+	 * and the features of the spot analyzers are only declared.
+	 *
+	 * @param spotFeatures
+	 *            false to skip the spot analyzers
+	 */
+	public void setSpotFeatures( final boolean spotFeatures )
+	{
+		this.spotFeatures = spotFeatures;
+	}
+
+	/**
+	 * Runs all stages and writes the tracks to the stream. The stream is
+	 * closed on success and aborted on failure.
+	 *
+	 * @param exporter
+	 *            the exporter
+	 * @param file
+	 *            the database file
+	 * @return true, if successful
+	 */
+	public boolean process( final ExportTracksToSQL exporter, final File file )
+	{
+		final Model model = trackmate.getModel();
+		final Settings settings = trackmate.getSettings();
+		final Logger logger = model.getLogger();
+
+		if ( !spotFeatures )
+			declareSpotFeatures( model.getFeatureModel(), settings );
+		if ( ( detection && !trackmate.execDetection() ) || !trackmate.execInitialSpotFiltering()
+				|| ( spotFeatures && !trackmate.computeSpotFeatures( true ) ) || !trackmate.execSpotFiltering( true ) || !trackmate.execTracking() )
+		{
+			errorMessage = trackmate.getErrorMessage();
+			return false;
+		}
+
+		declareFeatures( model.getFeatureModel(), settings );
+		final List< Integer > trackIDs = new ArrayList< Integer >( model.getTrackModel().trackIDs( false ) );
+		computeFeatures( model, settings, trackIDs, false );
+
+		ExportTracksToSQL.Stream stream = null;
+		try
+		{
+			stream = exporter.openStream( model, settings, file );
+			int exported = 0;
+			for ( int from = 0; from < trackIDs.size(); from += chunkSize )
+			{
+				final List< Integer > chunk = trackIDs.subList( from, Math.min( trackIDs.size(), from + chunkSize ) );
+				computeFeatures( model, settings, chunk, true );
+				final List< Integer > passed = filter( model.getFeatureModel(), settings.getTrackFilters(), chunk );
+				stream.append( passed );
+				exported += passed.size();
+				logger.setProgress( ( double ) ( from + chunk.size() ) / trackIDs.size() );
+			}
+			final long rows = stream.close();
+			stream = null;
+			logger.log( "Streamed " + exported + " of " + trackIDs.size() + " tracks (" + rows + " rows) to " + file.getName() + ".\n" );
+		}
+		catch ( final Exception e )
+		{
+			errorMessage = "Streaming export failed: " + e.getMessage();
+			return false;
+		}
+		finally
+		{
+			if ( stream != null )
+				stream.abort();
+		}
+
+		// make the model visibility match the exported tracks
+		return trackmate.execTrackFiltering( false );
+	}
+
+	/**
+	 * Gets the error message.
+	 *
+	 * @return the error message
+	 */
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Declares the features of the spot analyzers without computing them.
+	 *
+	 * @param fm
+	 *            the feature model
+	 * @param settings
+	 *            the settings holding the spot analyzers
+	 */
+	static void declareSpotFeatures( final FeatureModel fm, final Settings settings )
+	{
+		for ( final SpotAnalyzerFactoryBase< ? > factory : settings.getSpotAnalyzerFactories() )
+			fm.declareSpotFeatures( factory.getFeatures(), factory.getFeatureNames(), factory.getFeatureShortNames(),
+					factory.getFeatureDimensions(), factory.getIsIntFeature() );
+	}
+
+	/**
+	 * Declares the edge and track features up front, so the exporter knows
+	 * all columns before the first chunk.
+	 */
+	private static void declareFeatures( final FeatureModel fm, final Settings settings )
+	{
+		for ( final EdgeAnalyzer analyzer : settings.getEdgeAnalyzers() )
+			fm.declareEdgeFeatures( analyzer.getFeatures(), analyzer.getFeatureNames(), analyzer.getFeatureShortNames(),
+					analyzer.getFeatureDimensions(), analyzer.getIsIntFeature() );
+		for ( final TrackAnalyzer analyzer : settings.getTrackAnalyzers() )
+			fm.declareTrackFeatures( analyzer.getFeatures(), analyzer.getFeatureNames(), analyzer.getFeatureShortNames(),
+					analyzer.getFeatureDimensions(), analyzer.getIsIntFeature() );
+	}
+
+	/**
+	 * Runs the local or the non-local edge and track analyzers on tracks.
+	 */
+	private static void computeFeatures( final Model model, final Settings settings, final Collection< Integer > trackIDs, final boolean local )
+	{
+		final List< DefaultWeightedEdge > edges = new ArrayList< DefaultWeightedEdge >();
+		for ( final Integer trackID : trackIDs )
+			edges.addAll( model.getTrackModel().trackEdges( trackID ) );
+		for ( final EdgeAnalyzer analyzer : settings.getEdgeAnalyzers() )
+			if ( analyzer.isLocal() == local )
+				analyzer.process( edges, model );
+		for ( final TrackAnalyzer analyzer : settings.getTrackAnalyzers() )
+			if ( analyzer.isLocal() == local )
+				analyzer.process( trackIDs, model );
+	}
+
+	/**
+	 * Applies the track filters like {@link TrackMate#execTrackFiltering}:
+	 * missing values pass.
+	 */
+	private static List< Integer > filter( final FeatureModel fm, final Collection< FeatureFilter > filters, final Collection< Integer > trackIDs )
+	{
+		final List< Integer > passed = new ArrayList< Integer >( trackIDs.size() );
+		for ( final Integer trackID : trackIDs )
+		{
+			boolean ok = true;
+			for ( final FeatureFilter filter : filters )
+			{
+				final Double value = fm.getTrackFeature( trackID, filter.feature );
+				if ( null == value )
+					continue;
+				if ( filter.isAbove ? value < filter.value : value > filter.value )
+				{
+					ok = false;
+					break;
+				}
+			}
+			if ( ok )
+				passed.add( trackID );
+		}
+		return passed;
+	}
+}
@@ -0,0 +1,114 @@
+package net.chicoronny.trackmate.action;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * The Class BackgroundExports.
+ *
+ * Runs the export actions off the GUI thread. Each export gets its own
+ * daemon thread, so exports to different files run at the same time, while a
+ * second export to a file that is still being written is refused. Running
+ * exports are kept by target file until they finish and can be canceled
+ * from the {@link CancelExports} action. The progress bar of the logger is
+ * shared by all of them, so exports log their progress as lines tagged with
+ * the file name instead.
+ */
+public class BackgroundExports {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+	@Override
+	public Thread newThread(final Runnable r) {
+	    final Thread thread = new Thread(r, "TrackMate-Export-" + THREAD_COUNT.incrementAndGet());
+	    thread.setDaemon(true);
+	    return thread;
+	}
+    });
+
+    /** The running exports by target file. */
+    private static final Map<File, Cancelable> RUNNING = new LinkedHashMap<File, Cancelable>();
+
+    private BackgroundExports() {
+    }
+
+    /**
+     * Starts an export in the background. Unexpected exceptions of the task
+     * are reported to the logger.
+     *
+     * @param file
+     *            the target file, identifying the export
+     * @param export
+     *            the export, canceled by {@link #cancelAll(String)}
+     * @param logger
+     *            the logger
+     * @param task
+     *            the export task
+     * @return the future of the task, or <code>null</code> if the file is
+     *         already being exported
+     */
+    public static Future<?> submit(final File file, final Cancelable export, final Logger logger, final Runnable task) {
+	final File key = file.getAbsoluteFile();
+	synchronized (RUNNING) {
+	    if (RUNNING.containsKey(key))
+		return null;
+	    RUNNING.put(key, export);
+	}
+	return EXECUTOR.submit(new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    task.run();
+		} catch (final RuntimeException e) {
+		    logger.error("Export to " + key.getName() + " failed: " + e + "\n");
+		} finally {
+		    synchronized (RUNNING) {
+			RUNNING.remove(key);
+		    }
+		}
+	    }
+	});
+    }
+
+    /**
+     * Cancels all running exports. They stop after the track being written
+     * and remove their partial files.
+     *
+     * @param reason
+     *            the cancel reason
+     * @return the number of canceled exports
+     */
+    public static int cancelAll(final String reason) {
+	final List<Cancelable> running;
+	synchronized (RUNNING) {
+	    running = new ArrayList<Cancelable>(RUNNING.values());
+	}
+	for (final Cancelable export : running)
+	    export.cancel(reason);
+	return running.size();
+    }
+
+    /**
+     * Gets the target files of the running exports.
+     *
+     * @return the files
+     */
+    public static List<File> running() {
+	synchronized (RUNNING) {
+	    return new ArrayList<File>(RUNNING.keySet());
+	}
+    }
+}
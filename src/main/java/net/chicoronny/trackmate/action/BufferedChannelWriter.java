@@ -0,0 +1,94 @@
+package net.chicoronny.trackmate.action;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The Class BufferedChannelWriter.
+ *
+ * Writes bytes through one large direct buffer to a channel.
+ */
+public class BufferedChannelWriter implements Closeable {
+
+    /** The channel. */
+    private final WritableByteChannel channel;
+
+    /** The buffer. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Instantiates a new buffered channel writer.
+     *
+     * @param channel
+     *            the channel, closed with this writer
+     * @param bufferSize
+     *            the buffer size in bytes
+     */
+    public BufferedChannelWriter(final WritableByteChannel channel, final int bufferSize) {
+	this.channel = channel;
+	this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Writes bytes.
+     *
+     * @param bytes
+     *            the bytes
+     * @param offset
+     *            the offset
+     * @param length
+     *            the length
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void write(final byte[] bytes, int offset, int length) throws IOException {
+	while (length > 0) {
+	    if (!buffer.hasRemaining())
+		flush();
+	    final int n = Math.min(length, buffer.remaining());
+	    buffer.put(bytes, offset, n);
+	    offset += n;
+	    length -= n;
+	}
+    }
+
+    public void write(final byte[] bytes) throws IOException {
+	write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes the encoded bytes of an encoder.
+     *
+     * @param encoder
+     *            the encoder
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void write(final CsvEncoder encoder) throws IOException {
+	write(encoder.buffer(), 0, encoder.length());
+    }
+
+    /**
+     * Writes the buffer content to the channel.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void flush() throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining())
+	    channel.write(buffer);
+	buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+	try {
+	    flush();
+	} finally {
+	    channel.close();
+	}
+    }
+}
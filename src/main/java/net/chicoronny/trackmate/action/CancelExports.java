@@ -0,0 +1,80 @@
+package net.chicoronny.trackmate.action;
+
+import java.awt.Frame;
+import java.io.File;
+import java.util.List;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.AbstractTMAction;
+import fiji.plugin.trackmate.action.TrackMateAction;
+import fiji.plugin.trackmate.action.TrackMateActionFactory;
+import fiji.plugin.trackmate.gui.Icons;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+
+public class CancelExports extends AbstractTMAction {
+
+	public static final String INFO_TEXT = "<html>" +
+		"Cancel the track exports running in the background " +
+		"<p> " +
+		"Each export stops after the track it is writing and removes " +
+		"its partial files. Files written before stay untouched." +
+		"</html>";
+	public static final String NAME = "Cancel running track exports";
+	public static final String KEY = "CANCEL_TRACK_EXPORTS";
+
+	public CancelExports() {
+	}
+
+	@Override
+	public void execute(TrackMate trackmate, SelectionModel selectionModel, DisplaySettings displaySettings, Frame parent) {
+		final List<File> running = BackgroundExports.running();
+		if (running.isEmpty()) {
+			logger.log("No export running.\n");
+			return;
+		}
+		for (final File file : running)
+			logger.log("Canceling export to " + file.getName() + ".\n");
+		BackgroundExports.cancelAll("Canceled by the user.");
+	}
+
+	@Plugin( type = TrackMateActionFactory.class )
+	public static class Factory implements TrackMateActionFactory
+	{
+
+		@Override
+		public String getInfoText()
+		{
+			return INFO_TEXT;
+		}
+
+		@Override
+		public String getName()
+		{
+			return NAME;
+		}
+
+		@Override
+		public String getKey()
+		{
+			return KEY;
+		}
+
+		@Override
+		public TrackMateAction create()
+		{
+			return new CancelExports();
+		}
+
+		@Override
+		public ImageIcon getIcon()
+		{
+			return Icons.CANCEL_ICON;
+		}
+	}
+
+}
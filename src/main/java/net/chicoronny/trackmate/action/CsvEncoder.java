@@ -0,0 +1,215 @@
+package net.chicoronny.trackmate.action;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * The Class CsvEncoder.
+ *
+ * Encodes CSV lines directly into a reusable byte buffer. Integers and fixed
+ * precision decimals are written digit by digit, without
+ * {@link java.util.Formatter}, boxing or intermediate strings. Fields are
+ * separated by <code>", "</code>, lines end with <code>'\n'</code>.
+ */
+public class CsvEncoder {
+
+    /** The field separator. */
+    private static final byte[] SEPARATOR = { ',', ' ' };
+
+    /** Powers of ten up to the maximal precision. */
+    private static final long[] POW10 = { 1l, 10l, 100l, 1000l, 10000l, 100000l, 1000000l, 10000000l, 100000000l };
+
+    /** Largest magnitude written as fixed decimal. */
+    private static final double MAX_FIXED = 1e17;
+
+    /** The buffer. */
+    private byte[] buf;
+
+    /** The number of used bytes. */
+    private int len;
+
+    /** True at the start of a line. */
+    private boolean lineStart = true;
+
+    /** Scratch space for digits. */
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Instantiates a new CSV encoder.
+     *
+     * @param capacity
+     *            the initial buffer size
+     */
+    public CsvEncoder(final int capacity) {
+	buf = new byte[Math.max(64, capacity)];
+    }
+
+    /**
+     * Empties the buffer for reuse.
+     */
+    public void reset() {
+	len = 0;
+	lineStart = true;
+    }
+
+    public byte[] buffer() {
+	return buf;
+    }
+
+    public int length() {
+	return len;
+    }
+
+    /**
+     * Copies the encoded bytes.
+     *
+     * @return the encoded bytes
+     */
+    public byte[] toByteArray() {
+	return Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * Appends a text field, characters are written as Latin-1.
+     *
+     * @param text
+     *            the text
+     * @return this encoder
+     */
+    public CsvEncoder field(final String text) {
+	separate();
+	appendText(text);
+	return this;
+    }
+
+    /**
+     * Appends an integer field.
+     *
+     * @param value
+     *            the value
+     * @return this encoder
+     */
+    public CsvEncoder field(final long value) {
+	separate();
+	appendLong(value);
+	return this;
+    }
+
+    /**
+     * Appends a decimal field with a fixed number of decimals, rounded half
+     * up as by <code>String.format(Locale.US, "%.4f", value)</code>. A null value gives an empty field, so the columns stay in place.
+     *
+     * @param value
+     *            the value, may be null
+     * @param decimals
+     *            the number of decimals, at most 8
+     * @return this encoder
+     */
+    public CsvEncoder field(final Double value, final int decimals) {
+	separate();
+	if (null != value)
+	    appendFixed(value.doubleValue(), decimals);
+	return this;
+    }
+
+    /**
+     * Appends a decimal field with a fixed number of decimals, rounded half
+     * up.
+     *
+     * @param value
+     *            the value
+     * @param decimals
+     *            the number of decimals, at most 8
+     * @return this encoder
+     */
+    public CsvEncoder field(final double value, final int decimals) {
+	separate();
+	appendFixed(value, decimals);
+	return this;
+    }
+
+    /**
+     * Ends the current line.
+     *
+     * @return this encoder
+     */
+    public CsvEncoder endLine() {
+	ensure(1);
+	buf[len++] = '\n';
+	lineStart = true;
+	return this;
+    }
+
+    private void separate() {
+	if (lineStart) {
+	    lineStart = false;
+	    return;
+	}
+	ensure(2);
+	buf[len++] = SEPARATOR[0];
+	buf[len++] = SEPARATOR[1];
+    }
+
+    private void appendFixed(final double value, final int decimals) {
+	if (Double.isNaN(value) || Double.isInfinite(value)) {
+	    appendText(Double.toString(value));
+	    return;
+	}
+	// like Formatter, negative values rounded to zero keep their sign
+	if (Double.doubleToRawLongBits(value) < 0) {
+	    ensure(1);
+	    buf[len++] = '-';
+	}
+	final double magnitude = Math.abs(value);
+	final double shifted = magnitude * POW10[decimals];
+	if (shifted >= MAX_FIXED || Math.abs(shifted - Math.floor(shifted) - 0.5) <= 4 * Math.ulp(shifted)) {
+	    // rare, not worth a garbage free path: Formatter rounds the
+	    // shortest decimal representation half up, not the binary value
+	    appendText(new BigDecimal(Double.toString(magnitude)).setScale(decimals, RoundingMode.HALF_UP).toPlainString());
+	    return;
+	}
+	final long scaled = Math.round(shifted);
+	appendLong(scaled / POW10[decimals]);
+	if (decimals == 0)
+	    return;
+	ensure(decimals + 1);
+	buf[len++] = '.';
+	long fraction = scaled % POW10[decimals];
+	for (int i = len + decimals - 1; i >= len; i--) {
+	    buf[i] = (byte) ('0' + fraction % 10);
+	    fraction /= 10;
+	}
+	len += decimals;
+    }
+
+    private void appendLong(final long value) {
+	if (value == Long.MIN_VALUE) {
+	    // no positive counterpart
+	    appendText(Long.toString(value));
+	    return;
+	}
+	long v = Math.abs(value);
+	int n = 0;
+	do {
+	    digits[n++] = (byte) ('0' + v % 10);
+	    v /= 10;
+	} while (v != 0);
+	ensure(n + 1);
+	if (value < 0)
+	    buf[len++] = '-';
+	while (n > 0)
+	    buf[len++] = digits[--n];
+    }
+
+    private void appendText(final String text) {
+	ensure(text.length());
+	for (int i = 0; i < text.length(); i++)
+	    buf[len++] = (byte) text.charAt(i);
+    }
+
+    private void ensure(final int bytes) {
+	if (len + bytes > buf.length)
+	    buf = Arrays.copyOf(buf, Math.max(2 * buf.length, len + bytes));
+    }
+}
@@ -0,0 +1,175 @@
+package net.chicoronny.trackmate.action;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * The Class ExportPipeline.
+ *
+ * Formats the rows of each track on a pool of worker threads and hands the
+ * formatted batches to a single writer running on the calling thread. The
+ * writer receives the batches in the order of the given track IDs, so the
+ * output is deterministic. At most <code>capacity</code> formatted batches
+ * are held at a time. Progress is reported per written track, either on the
+ * progress bar of the logger or as log lines tagged with a name, and a
+ * cancelable, if set, is checked after each track.
+ *
+ * @param <T>
+ *            the type of a formatted batch
+ */
+public class ExportPipeline<T> {
+
+    /**
+     * Formats the rows of one track, called concurrently.
+     */
+    public interface Formatter<T> {
+	T format(Integer trackID) throws Exception;
+    }
+
+    /**
+     * Writes the rows of one track, called on one thread in track order.
+     */
+    public interface Writer<T> {
+	void write(Integer trackID, T batch) throws Exception;
+    }
+
+    /** The number of worker threads. */
+    private final int numThreads;
+
+    /** The maximal number of batches in flight. */
+    private final int capacity;
+
+    /** The step of the logged progress lines in percent. */
+    private static final int LOG_STEP = 10;
+
+    /** The logger receiving the progress. */
+    private Logger logger = Logger.VOID_LOGGER;
+
+    /** The tag of the progress lines, null to set the progress bar. */
+    private String progressName;
+
+    /** The task checked for cancellation, may be null. */
+    private Cancelable cancelable;
+
+    /**
+     * Instantiates a new export pipeline.
+     *
+     * @param numThreads
+     *            the number of formatting threads
+     * @param capacity
+     *            the maximal number of formatted batches waiting for the
+     *            writer
+     */
+    public ExportPipeline(final int numThreads, final int capacity) {
+	this.numThreads = Math.max(1, numThreads);
+	this.capacity = Math.max(this.numThreads, capacity);
+    }
+
+    /**
+     * Sets the logger receiving the fraction of written tracks.
+     *
+     * @param logger
+     *            the logger
+     */
+    public void setLogger(final Logger logger) {
+	this.logger = logger;
+	progressName = null;
+    }
+
+    /**
+     * Sets the logger receiving the progress as lines tagged with a name,
+     * every {@value #LOG_STEP} percent of the written tracks. Used instead of
+     * the progress bar, which is shared by all pipelines logging to the same
+     * logger.
+     *
+     * @param logger
+     *            the logger
+     * @param name
+     *            the tag of the lines, e.g. the name of the written file
+     */
+    public void setLogger(final Logger logger, final String name) {
+	this.logger = logger;
+	progressName = name;
+    }
+
+    /**
+     * Sets the task whose cancellation stops the pipeline.
+     *
+     * @param cancelable
+     *            the cancelable, may be null
+     */
+    public void setCancelable(final Cancelable cancelable) {
+	this.cancelable = cancelable;
+    }
+
+    /**
+     * Runs the pipeline.
+     *
+     * @param trackIDs
+     *            the tracks to export, in output order
+     * @param formatter
+     *            the formatter
+     * @param writer
+     *            the writer
+     * @throws Exception
+     *             the first exception thrown by the formatter or the writer
+     * @throws CancellationException
+     *             if the cancelable was canceled before all tracks were
+     *             written
+     */
+    public void run(final Collection<Integer> trackIDs, final Formatter<T> formatter, final Writer<T> writer) throws Exception {
+	final ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+	final ArrayDeque<Integer> pendingIDs = new ArrayDeque<Integer>(capacity);
+	final ArrayDeque<Future<T>> pending = new ArrayDeque<Future<T>>(capacity);
+	final double total = trackIDs.size();
+	int done = 0, logged = 0;
+	try {
+	    final Iterator<Integer> it = trackIDs.iterator();
+	    while (it.hasNext() || !pending.isEmpty()) {
+		while (it.hasNext() && pending.size() < capacity) {
+		    final Integer trackID = it.next();
+		    pendingIDs.add(trackID);
+		    pending.add(workers.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+			    return formatter.format(trackID);
+			}
+		    }));
+		}
+		final T batch;
+		try {
+		    batch = pending.poll().get();
+		} catch (final ExecutionException e) {
+		    if (e.getCause() instanceof Exception)
+			throw (Exception) e.getCause();
+		    throw e;
+		}
+		writer.write(pendingIDs.poll(), batch);
+		if (null == progressName) {
+		    logger.setProgress(++done / total);
+		} else {
+		    final int percent = (int) (100 * ++done / total) / LOG_STEP * LOG_STEP;
+		    if (percent > logged) {
+			logged = percent;
+			logger.log(progressName + ": " + percent + "%\n");
+		    }
+		}
+		if (null != cancelable && cancelable.isCanceled())
+		    throw new CancellationException(cancelable.getCancelReason());
+	    }
+	} finally {
+	    workers.shutdownNow();
+	}
+    }
+}
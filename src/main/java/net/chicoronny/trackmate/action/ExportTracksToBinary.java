@@ -0,0 +1,206 @@
+package net.chicoronny.trackmate.action;
+
+import ij.io.SaveDialog;
+
+import java.awt.Frame;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.action.AbstractTMAction;
+import fiji.plugin.trackmate.action.TrackMateAction;
+import fiji.plugin.trackmate.action.TrackMateActionFactory;
+import fiji.plugin.trackmate.gui.Icons;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import net.chicoronny.trackmate.io.TrajectoryReader;
+import net.chicoronny.trackmate.io.TrajectoryWriter;
+
+public class ExportTracksToBinary extends AbstractTMAction {
+
+	public static final String INFO_TEXT = "<html>" +
+		"Export the tracks in the current model content to a compact binary " +
+		"trajectory file " +
+		"<p> " +
+		"Each track stores the frame, spot ID and position of its spots, " +
+		"sorted by frame, as quantized differences packed into varints. " +
+		"A footer index gives random access to every track by its ID." +
+		"</html>";
+	public static final String NAME = "Export tracks to binary trajectory file";
+	public static final String KEY = "EXPORT_TRACKS_TO_BINARY";
+
+	/** The suffix of trajectory files. */
+	public static final String SUFFIX = ".trj";
+
+	/** The suffix of the file written before it replaces the target. */
+	private static final String PART_SUFFIX = ".part";
+
+	/** The number of encoded tracks waiting for the writer. */
+	private static final int QUEUE_CAPACITY = 256;
+
+	/** The number of threads encoding tracks. */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** The quantization step of the coordinates. */
+	private double quantum = TrajectoryWriter.DEFAULT_QUANTUM;
+
+	public ExportTracksToBinary() {
+	}
+
+	@Override
+	public void execute(TrackMate trackmate, SelectionModel selectionModel, DisplaySettings displaySettings, Frame parent) {
+		logger.log("Exporting tracks to binary trajectory file.\n");
+		final long start = System.currentTimeMillis();
+		final Model model = trackmate.getModel();
+		if (model.getTrackModel().nTracks(true) == 0) {
+			logger.log("No visible track found. Aborting.\n");
+			return;
+		}
+
+		File folder;
+		try {
+			folder = new File(trackmate.getSettings().imp.getOriginalFileInfo().directory);
+		} catch (final NullPointerException npe) {
+			folder = new File(System.getProperty("user.dir")).getParentFile().getParentFile();
+		}
+
+		String filename;
+		try {
+			filename = trackmate.getSettings().imageFileName;
+			filename = filename.substring(0, filename.indexOf("."));
+			filename = folder.getPath() + File.separator + filename + SUFFIX;
+		} catch (final NullPointerException npe) {
+			filename = folder.getPath() + File.separator + "Tracks" + SUFFIX;
+		}
+
+		final SaveDialog sd = new SaveDialog("Save Trajectory File", filename, SUFFIX);
+		final String fileName = sd.getFileName();
+		if (fileName == null || fileName.isEmpty())
+			return;
+
+		try {
+			export(model, new File(sd.getDirectory() + fileName));
+		} catch (final Exception e) {
+			logger.error("Export failed: " + e.getMessage() + "\n");
+			return;
+		}
+
+		final long end = System.currentTimeMillis();
+		logger.log("Done in " + (end - start) + " ms.");
+	}
+
+	/**
+	 * Exports the visible tracks to a trajectory file, which can be opened
+	 * with {@link TrajectoryReader}. Tracks are encoded in parallel and
+	 * written in track order. The file is written next to the target and
+	 * renamed when complete; on failure it is removed and the target stays
+	 * untouched.
+	 *
+	 * @param model
+	 *            the model
+	 * @param file
+	 *            the target file
+	 * @throws Exception
+	 *             if encoding or writing fails
+	 */
+	public void export(final Model model, final File file) throws Exception {
+		final Set<Integer> trackIDs = model.getTrackModel().trackIDs(true);
+		final File part = new File(file.getAbsoluteFile().getParentFile(), file.getName() + PART_SUFFIX);
+		try {
+			write(model, trackIDs, part);
+			try {
+				Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			// the writer closes with a valid footer even on failure
+			Files.deleteIfExists(part.toPath());
+		}
+	}
+
+	private void write(final Model model, final Set<Integer> trackIDs, final File file) throws Exception {
+		final TrajectoryWriter writer = new TrajectoryWriter(file, quantum);
+		try {
+			new ExportPipeline<byte[]>(numThreads, QUEUE_CAPACITY).run(trackIDs, new ExportPipeline.Formatter<byte[]>() {
+				@Override
+				public byte[] format(final Integer trackID) {
+					return TrajectoryWriter.encode(model.getTrackModel().trackSpots(trackID), quantum);
+				}
+			}, new ExportPipeline.Writer<byte[]>() {
+				@Override
+				public void write(final Integer trackID, final byte[] block) throws IOException {
+					writer.addTrack(trackID, block);
+				}
+			});
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Sets the number of threads encoding the tracks.
+	 *
+	 * @param numThreads
+	 *            the number of threads
+	 */
+	public void setNumThreads(final int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Sets the quantization step of the coordinates. Positions are stored as
+	 * multiples of this step, in calibrated units.
+	 *
+	 * @param quantum
+	 *            the quantum
+	 */
+	public void setQuantum(final double quantum) {
+		this.quantum = quantum;
+	}
+
+	@Plugin( type = TrackMateActionFactory.class )
+	public static class Factory implements TrackMateActionFactory
+	{
+
+		@Override
+		public String getInfoText()
+		{
+			return INFO_TEXT;
+		}
+
+		@Override
+		public String getName()
+		{
+			return NAME;
+		}
+
+		@Override
+		public String getKey()
+		{
+			return KEY;
+		}
+
+		@Override
+		public TrackMateAction create()
+		{
+			return new ExportTracksToBinary();
+		}
+
+		@Override
+		public ImageIcon getIcon()
+		{
+			return Icons.APPLY_ICON;
+		}
+	}
+
+}
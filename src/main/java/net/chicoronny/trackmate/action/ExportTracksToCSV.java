@@ -4,20 +4,30 @@ import ij.io.SaveDialog;
 
 import java.awt.Frame;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
 
 import javax.swing.ImageIcon;
 
+import org.scijava.Cancelable;
 import org.scijava.plugin.Plugin;
 
+import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.SelectionModel;
 import fiji.plugin.trackmate.Spot;
@@ -27,8 +37,9 @@ import fiji.plugin.trackmate.action.TrackMateAction;
 import fiji.plugin.trackmate.action.TrackMateActionFactory;
 import fiji.plugin.trackmate.gui.Icons;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import net.chicoronny.trackmate.io.ParallelGzipOutputStream;
 
-public class ExportTracksToCSV extends AbstractTMAction {
+public class ExportTracksToCSV extends AbstractTMAction implements Cancelable {
 	
 	public static final String INFO_TEXT = "<html>" +
 		"Export the tracks in the current model content to CSV Files " +
@@ -92,6 +103,41 @@ public class ExportTracksToCSV extends AbstractTMAction {
 			AREA, CIRC, CONTRAST, SNR, MEAN_INTENSITY, MEDIAN_INTENSITY, MIN_INTENSITY, MAX_INTENSITY, 
 			TOTAL_INTENSITY, STANDARD_DEVIATION));
 
+	/** The size of the write buffers. */
+	private static final int BUFFER_SIZE = 1 << 22;
+	
+	/** The number of decimals of float values. */
+	private static final int DECIMALS = 4;
+	
+	/** The encoder of each formatting thread. */
+	private static final ThreadLocal<CsvEncoder> ENCODER = new ThreadLocal<CsvEncoder>() {
+		@Override
+		protected CsvEncoder initialValue() {
+			return new CsvEncoder(1 << 16);
+		}
+	};
+	
+	/** The number of formatted tracks waiting for the writer. */
+	private static final int QUEUE_CAPACITY = 256;
+	
+	/** The suffix of plain files. */
+	public static final String SUFFIX = ".csv";
+	
+	/** The suffix of compressed files. */
+	public static final String SUFFIX_GZIP = ".csv.gz";
+	
+	/** The suffix of the files written before they replace the targets. */
+	private static final String PART_SUFFIX = ".part";
+	
+	/** The number of threads formatting rows. */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	
+	/** Write gzip compressed files. */
+	private boolean compress = false;
+	
+	/** The reason the export was canceled, null while running. */
+	private volatile String cancelReason;
+
 	public ExportTracksToCSV() {
 	}
 
@@ -122,78 +168,264 @@ public class ExportTracksToCSV extends AbstractTMAction {
 		    filename = folder.getPath() + File.separator + "Tracks.csv";
 		}
 		
-		SaveDialog sd = new SaveDialog("Save CSV Files", filename, ".csv");
+		SaveDialog sd = new SaveDialog("Save CSV Files", filename, SUFFIX);
 		String fileName = sd.getFileName();
 		
-		if (fileName.isEmpty()) return;
+		if (fileName == null || fileName.isEmpty()) return;
 		
-		File fileTracks = new File(sd.getDirectory() + fileName.substring(0, fileName.length()-4) + "_tracks.csv"); 
-		File fileSpots  = new File(sd.getDirectory() + fileName.substring(0, fileName.length()-4) + "_spots.csv");
+		// a name ending with .gz selects compressed output
+		if (fileName.endsWith(SUFFIX_GZIP))
+			compress = true;
+		final String base = fileName.substring(0, fileName.length() - (fileName.endsWith(SUFFIX_GZIP) ? SUFFIX_GZIP.length() : SUFFIX.length()));
+		final String suffix = compress ? SUFFIX_GZIP : SUFFIX;
+		final File fileTracks = new File(sd.getDirectory() + base + "_tracks" + suffix); 
+		final File fileSpots  = new File(sd.getDirectory() + base + "_spots" + suffix);
 		
-		if (fileTracks.delete())
+		if (fileTracks.exists())
 			logger.log("File will be overwritten!\n");
 		
+		// the tracks are copied here, the model may be edited while the
+		// export runs; the spot feature values are read by the workers
+		final Set<Integer> trackIDs = model.getTrackModel().trackIDs(true);
+		final Map<Integer, TrackValues> snapshot = new HashMap<Integer, TrackValues>(trackIDs.size() * 2);
+		for (final Integer trackID : trackIDs)
+			snapshot.put(trackID, new TrackValues(model, trackID));
+		
+		// the GUI stays usable, errors go to the logger
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					export(trackIDs, snapshot, fileTracks, fileSpots);
+				} catch (CancellationException e) {
+					logger.log("Export canceled: " + e.getMessage() + "\n");
+					return;
+				} catch (IOException e) {
+					logger.error("IO Error: " + e.getMessage() + "\n");
+					return;
+				} catch (Exception e) {
+					logger.error("Export failed: " + e.getMessage() + "\n");
+					return;
+				}
+				final long end = System.currentTimeMillis();
+				logger.log("Exported " + ntracks + " tracks to " + fileTracks.getName() + " in " + (end-start) + " ms.\n");
+			}
+		};
+		if (null == BackgroundExports.submit(fileTracks, this, logger, task))
+			logger.error(fileTracks.getName() + " is already being exported.\n");
+	}
+    
+	/**
+	 * Exports the visible tracks to a track and a spot table. Tracks are
+	 * formatted in parallel and written in order through large NIO buffers.
+	 * Missing spot features are written as empty fields, so the columns always
+	 * match the header. If compression is enabled, both files are written as
+	 * multi-member gzip streams compressed in parallel blocks. Both files are
+	 * written next to the targets and renamed when complete; on failure or
+	 * cancellation they are removed and the targets stay untouched.
+	 * 
+	 * @param model
+	 *            the model
+	 * @param fileTracks
+	 *            the track table file
+	 * @param fileSpots
+	 *            the spot table file
+	 * @throws Exception
+	 *             if formatting or writing fails
+	 * @throws CancellationException
+	 *             if the export was canceled
+	 */
+	public void export(final Model model, final File fileTracks, final File fileSpots) throws Exception {
+		export(model.getTrackModel().trackIDs(true), new ExportPipeline.Formatter<byte[][]>() {
+			@Override
+			public byte[][] format(final Integer trackID) {
+				return formatTrack(trackID, new TrackValues(model, trackID));
+			}
+		}, fileTracks, fileSpots);
+	}
+	
+	/**
+	 * Exports a snapshot of the tracks.
+	 */
+	private void export(final Collection<Integer> trackIDs, final Map<Integer, TrackValues> snapshot, final File fileTracks, final File fileSpots)
+			throws Exception {
+		export(trackIDs, new ExportPipeline.Formatter<byte[][]>() {
+			@Override
+			public byte[][] format(final Integer trackID) {
+				return formatTrack(trackID, snapshot.get(trackID));
+			}
+		}, fileTracks, fileSpots);
+	}
+	
+	private void export(final Collection<Integer> trackIDs, final ExportPipeline.Formatter<byte[][]> formatter, final File fileTracks,
+			final File fileSpots) throws Exception {
+		final File partTracks = partFile(fileTracks);
+		final File partSpots = partFile(fileSpots);
 		try {
-			final FileWriter writerTracks = new FileWriter(fileTracks);
-			final FileWriter writerSpots = new FileWriter(fileSpots);
-			
-			final Set<Integer> trackIDs = model.getTrackModel().trackIDs(true);
-			
-			String Header_String = "";
+			write(trackIDs, formatter, partTracks, partSpots, fileTracks.getName());
+			commitFile(partTracks, fileTracks);
+			commitFile(partSpots, fileSpots);
+		} finally {
+			Files.deleteIfExists(partTracks.toPath());
+			Files.deleteIfExists(partSpots.toPath());
+		}
+	}
+	
+	private void write(final Collection<Integer> trackIDs, final ExportPipeline.Formatter<byte[][]> formatter, final File fileTracks,
+			final File fileSpots, final String progressName) throws Exception {
+		final BufferedChannelWriter writerTracks = new BufferedChannelWriter(open(fileTracks), BUFFER_SIZE);
+		final BufferedChannelWriter writerSpots;
+		try {
+			writerSpots = new BufferedChannelWriter(open(fileSpots), BUFFER_SIZE);
+		} catch (final IOException e) {
+			writerTracks.close();
+			throw e;
+		}
+		try {
+			final CsvEncoder header = new CsvEncoder(1024);
 			for (String feature : trackFeatures)
-		    	Header_String += feature+ ", ";
-			Header_String = Header_String.substring(0, Header_String.length()-2) + "\n";
-			writerTracks.write(Header_String);
+				header.field(feature);
+			writerTracks.write(header.endLine());
 			
-			Header_String = "TrackID, SpotID, ";
+			header.reset();
+			header.field("TrackID").field("SpotID");
 			for (String feature : spotFeatures)
-		    	Header_String += feature+ ", ";
-			Header_String = Header_String.substring(0, Header_String.length()-2) + "\n";
-			writerSpots.write(Header_String);
+				header.field(feature);
+			writerSpots.write(header.endLine());
 			
-			for (final Integer trackID : trackIDs) {
-				final Set<Spot> trackSpots = model.getTrackModel().trackSpots(trackID);
-			    
-			    // Sort them by time
-			    final TreeSet<Spot> sortedTrack = new TreeSet<Spot>(Spot.timeComparator);
-			    sortedTrack.addAll(trackSpots);
-			    
-			    String Track_String = "";
-			    Iterator<String> it = trackFeatures.iterator();
-			    Double val = model.getFeatureModel().getTrackFeature( trackID, it.next() );
-			    Track_String += String.format(Locale.US, "%d, ", val.intValue()); // first column is integer
-			    
-			    while ( it.hasNext() ){
-					val = model.getFeatureModel().getTrackFeature( trackID, it.next() );
-					if (val==null || Double.isNaN(val) || Double.isInfinite(val))
-				    	val=Double.valueOf(0d);
-					Track_String += String.format(Locale.US, "%.4f, ", val.floatValue());
-			    }
-			    Track_String = Track_String.substring(0, Track_String.length()-2) + "\n";
-			    writerTracks.write(Track_String);
-			     
-			    for (final Spot spot : sortedTrack) {
-			    	String Spot_String = "";
-			    	Spot_String += String.format(Locale.US, "%d, ", trackID.intValue());
-			    	Spot_String += String.format(Locale.US, "%d, ", spot.ID());
-			    	for ( final String feature : spotFeatures ){
-			    		Number value = spot.getFeature(feature);
-			    		if (value==null) continue;
-			    		Spot_String += String.format(Locale.US, "%.4f, ", value.floatValue());
-			    	}
-			    	Spot_String = Spot_String.substring(0, Spot_String.length()-2) + "\n";
-			    	writerSpots.write(Spot_String);
-			    }    
+			// format tracks in parallel, write them in order; the progress
+			// is logged per file, several exports may run at the same time
+			final ExportPipeline<byte[][]> pipeline = new ExportPipeline<byte[][]>(numThreads, QUEUE_CAPACITY);
+			pipeline.setLogger(logger, progressName);
+			pipeline.setCancelable(this);
+			pipeline.run(trackIDs, formatter, new ExportPipeline.Writer<byte[][]>() {
+				@Override
+				public void write(final Integer trackID, final byte[][] lines) throws IOException {
+					writerTracks.write(lines[0]);
+					writerSpots.write(lines[1]);
+				}
+			});
+		} finally {
+			try {
+				writerTracks.close();
+			} finally {
+				writerSpots.close();
 			}
-			writerTracks.close();
-			writerSpots.close();
-			
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
-
-		final long end = System.currentTimeMillis();
-		logger.log("Done in " + (end-start) + " ms.");
+	}
+	
+	private static File partFile(final File file) {
+		return new File(file.getAbsoluteFile().getParentFile(), file.getName() + PART_SUFFIX);
+	}
+	
+	private static void commitFile(final File part, final File file) throws IOException {
+		try {
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	private WritableByteChannel open(final File file) throws IOException {
+		if (compress)
+			return Channels.newChannel(new ParallelGzipOutputStream(new FileOutputStream(file), numThreads));
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+	
+	/**
+	 * Formats the line of a track and the lines of its spots with the encoder
+	 * of the current thread.
+	 * 
+	 * @return the track line and the spot lines
+	 */
+	private static byte[][] formatTrack(final Integer trackID, final TrackValues values) {
+		final CsvEncoder encoder = ENCODER.get();
+		
+		encoder.reset();
+		encoder.field(trackID.intValue()); // first column is integer
+		for (final Double val : values.track) {
+			if (val==null || Double.isNaN(val) || Double.isInfinite(val))
+				encoder.field(0d, DECIMALS);
+			else
+				encoder.field(val.floatValue(), DECIMALS);
+		}
+		final byte[] trackLine = encoder.endLine().toByteArray();
+		
+		// Sort them by time
+		final Spot[] sortedTrack = values.spots.clone();
+		Arrays.sort(sortedTrack, Spot.timeComparator);
+		encoder.reset();
+		for (final Spot spot : sortedTrack) {
+			encoder.field(trackID.intValue());
+			encoder.field(spot.ID());
+			for (final String feature : spotFeatures) {
+				final Double value = spot.getFeature(feature);
+				if (value==null)
+					encoder.field((Double) null, DECIMALS);
+				else
+					encoder.field(value.floatValue(), DECIMALS);
+			}
+			encoder.endLine();
+		}
+		return new byte[][] { trackLine, encoder.toByteArray() };
+	}
+	
+	/**
+	 * The track feature values and the spots of a track, copied on the thread
+	 * editing the model. The spot feature values are read from the concurrent
+	 * feature maps of the spots when the track is formatted.
+	 */
+	private static final class TrackValues {
+		
+		final Double[] track;
+		
+		final Spot[] spots;
+		
+		TrackValues(final Model model, final Integer trackID) {
+			final FeatureModel fm = model.getFeatureModel();
+			final Iterator<String> it = trackFeatures.iterator();
+			it.next();
+			track = new Double[trackFeatures.size() - 1];
+			for (int i = 0; i < track.length; i++)
+				track[i] = fm.getTrackFeature( trackID, it.next() );
+			spots = model.getTrackModel().trackSpots(trackID).toArray(new Spot[0]);
+		}
+	}
+	
+	/**
+	 * Sets the number of threads formatting the rows of the tracks.
+	 * 
+	 * @param numThreads
+	 *            the number of threads
+	 */
+	public void setNumThreads(final int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Sets whether the files are written gzip compressed. The compression
+	 * uses the same number of threads as the formatting.
+	 * 
+	 * @param compress
+	 *            true to write gzip files
+	 */
+	public void setCompress(final boolean compress) {
+		this.compress = compress;
+	}
+	
+	@Override
+	public boolean isCanceled() {
+		return null != cancelReason;
+	}
+	
+	@Override
+	public void cancel(final String reason) {
+		cancelReason = reason;
+	}
+	
+	@Override
+	public String getCancelReason() {
+		return cancelReason;
 	}
     
     @Plugin( type = TrackMateActionFactory.class )
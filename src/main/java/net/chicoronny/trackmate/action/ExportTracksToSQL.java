@@ -4,24 +4,50 @@ import ij.io.SaveDialog;
 
 import java.awt.Frame;
 import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.ImageIcon;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
+import org.scijava.Cancelable;
 import org.scijava.plugin.Plugin;
 
 import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
 import fiji.plugin.trackmate.SelectionModel;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
@@ -33,7 +59,7 @@ import fiji.plugin.trackmate.action.TrackMateActionFactory;
 import fiji.plugin.trackmate.gui.Icons;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
 
-public class ExportTracksToSQL extends AbstractTMAction {
+public class ExportTracksToSQL extends AbstractTMAction implements Cancelable {
 
     public static final String INFO_TEXT = "<html>" +
 		"Export the tracks in the current model content to a SQL database " +
@@ -48,10 +74,244 @@ public class ExportTracksToSQL extends AbstractTMAction {
     public static final String NAME= "Export tracks to SQLITE database";
     public static final String KEY = "EXPORT_TRACKS_TO_SQLITE";;
     
+    /** The number of rows sent to the database at once. */
+    private static final int BATCH_SIZE = 5000;
+    
+    /** The number of rows per transaction. */
+    private static final int COMMIT_SIZE = 100000;
+    
+    /** The number of formatted tracks waiting for the writer. */
+    private static final int QUEUE_CAPACITY = 256;
+    
+    /** The page size of the database file. */
+    private static final int PAGE_SIZE = 4096;
+    
+    /** The page cache size during the bulk load in KiB. */
+    private static final int CACHE_SIZE_KB = 64 * 1024;
+    
+    /** The number of chunks of a stream waiting for the writer. */
+    private static final int STREAM_BACKLOG = 2;
+    
+    /** Fills the track bounding boxes from the spots. */
+    private static final String INSERT_BBOX = "INSERT INTO track_bbox SELECT track_id, MIN(position_x), MAX(position_x), "
+	    + "MIN(position_y), MAX(position_y), MIN(frame), MAX(frame) FROM spots";
+    
+    /** Fills the track summaries from the spots. */
+    private static final String INSERT_TRACK_SUMMARY = "INSERT INTO track_summary SELECT track_id, COUNT(*), MIN(frame), MAX(frame), "
+	    + "MIN(position_x), MAX(position_x), MIN(position_y), MAX(position_y), AVG(position_x), AVG(position_y) FROM spots";
+    
+    /** Fills the frame summaries from the spots. */
+    private static final String INSERT_FRAME_SUMMARY = "INSERT INTO frame_summary SELECT frame, COUNT(*), COUNT(DISTINCT track_id), "
+	    + "MIN(position_x), MAX(position_x), MIN(position_y), MAX(position_y), AVG(position_x), AVG(position_y) FROM spots";
+    
+    /** The number of IDs in one IN clause. */
+    private static final int IN_SIZE = 500;
+    
+    /** The spot ID columns of the edges table. */
+    private static final String[] EDGE_KEYS = { "source_id", "target_id" };
+
+    /** The image columns of the movies table of a consolidated database. */
+    private static final String[] MOVIE_KEYS = { "series", "channel" };
+    
+    /** The suffix of the file written before it replaces the target. */
+    private static final String PART_SUFFIX = ".part";
+    
+    /** Build the database in memory and back it up to the file. */
+    private boolean inMemory = false;
+    
+    /** The number of threads formatting rows. */
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    
+    /** Build the spatial index and the summary tables. */
+    private boolean spatialIndex = false;
+    
+    /** Rewrite only changed tracks when the model was exported to the file before. */
+    private boolean incremental = true;
+    
+    /** The change recorders of the exported models. */
+    private static final Map<Model, ChangeRecorder> RECORDERS = Collections.synchronizedMap(new WeakHashMap<Model, ChangeRecorder>());
+    
+    /** The reason the export was canceled, null while running. */
+    private volatile String cancelReason;
+    
     public ExportTracksToSQL()
     {
     }    
     
+    /**
+     * Sets whether the database is built in memory and then backed up to the
+     * file. By default it is written directly to disk, so memory does not
+     * grow with the size of the database.
+     * 
+     * @param inMemory
+     *            true to build the database in memory
+     */
+    public void setInMemory(final boolean inMemory) {
+	this.inMemory = inMemory;
+    }
+    
+    /**
+     * Sets whether the export from the GUI updates only the tracks changed
+     * since the last export of the same model to the same file. Enabled by
+     * default; the whole file is written if it was modified elsewhere or the
+     * changes cannot be tracked. The track features of the unchanged tracks
+     * are refreshed, as some, such as the track index, depend on all tracks.
+     * 
+     * @param incremental
+     *            true to update changed tracks only
+     */
+    public void setIncremental(final boolean incremental) {
+	this.incremental = incremental;
+    }
+    
+    /**
+     * Sets whether an R*Tree over the track bounding boxes (x, y, frame) and
+     * per-track and per-frame summary tables are built after the export.
+     * 
+     * @param spatialIndex
+     *            true to build the spatial index
+     */
+    public void setSpatialIndex(final boolean spatialIndex) {
+	this.spatialIndex = spatialIndex;
+    }
+    
+    /**
+     * Sets the number of threads collecting and sorting the rows of the
+     * tracks.
+     * 
+     * @param numThreads
+     *            the number of threads
+     */
+    public void setNumThreads(final int numThreads) {
+	this.numThreads = numThreads;
+    }
+    
+    /**
+     * Writes the database to a temporary file next to the target and renames
+     * it atomically when complete, so a crash never leaves a half-written
+     * database behind.
+     * 
+     * @return the number of inserted rows
+     */
+    private long writeDatabase(final Columns columns, final Collection<Integer> trackIDs, final ExportPipeline.Formatter<TrackRows> rows,
+	    final File file) throws SQLException, IOException {
+	final File part = partFile(file);
+	Files.deleteIfExists(part.toPath());
+	Connection connection = null;
+	try {
+	    final long written;
+	    if (inMemory) {
+		connection = createDatabase("jdbc:sqlite::memory:");
+		written = marshall(columns, trackIDs, rows, connection, pipeline(file), spatialIndex);
+		backup(connection, part);
+	    } else {
+		connection = createDatabase("jdbc:sqlite:" + part.getAbsolutePath());
+		prepareBulkLoad(connection);
+		written = marshall(columns, trackIDs, rows, connection, pipeline(file), spatialIndex);
+	    }
+	    connection.close();
+	    connection = null;
+	    if (isCanceled())
+		throw new CancellationException(cancelReason);
+	    commitFile(part, file);
+	    return written;
+	} finally {
+	    if (connection != null)
+		connection.close();
+	    Files.deleteIfExists(part.toPath());
+	}
+    }
+    
+    /**
+     * Creates a pipeline stopping when the action is canceled. It logs its
+     * progress tagged with the file name, several exports may run at the
+     * same time.
+     */
+    private ExportPipeline<TrackRows> pipeline(final File file) {
+	final ExportPipeline<TrackRows> pipeline = new ExportPipeline<TrackRows>(numThreads, QUEUE_CAPACITY);
+	pipeline.setLogger(logger, file.getName());
+	pipeline.setCancelable(this);
+	return pipeline;
+    }
+    
+    private static File partFile(final File file) {
+	return new File(file.getAbsoluteFile().getParentFile(), file.getName() + PART_SUFFIX);
+    }
+    
+    /**
+     * Syncs the complete temporary file and renames it to the target.
+     */
+    private static void commitFile(final File part, final File file) throws IOException {
+	sync(part);
+	try {
+	    Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	} catch (final AtomicMoveNotSupportedException e) {
+	    Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+    
+    /**
+     * Opens a database for streaming export. Tracks are appended in chunks
+     * while the caller goes on computing the next ones, and the file replaces
+     * the target only when the stream is closed.
+     * 
+     * @param model
+     *            the model holding the tracks
+     * @param settings
+     *            the settings
+     * @param file
+     *            the target file
+     * @return the stream
+     * @throws SQLException
+     *             if the database cannot be created
+     * @throws IOException
+     *             if a stale temporary file cannot be removed
+     */
+    public Stream openStream(final Model model, final Settings settings, final File file) throws SQLException, IOException {
+	return new Stream(model, file, inMemory, numThreads, spatialIndex);
+    }
+    
+    /**
+     * Opens or creates a database collecting many movies. Movies are appended
+     * to the existing content.
+     * 
+     * @param file
+     *            the database file
+     * @return the consolidated database
+     * @throws SQLException
+     *             if the database cannot be opened or holds a single movie
+     */
+    public Consolidated openConsolidated(final File file) throws SQLException {
+	return new Consolidated(file, numThreads);
+    }
+    
+    /**
+     * Sets the pragmas for a bulk load into a fresh file. No rollback journal
+     * and no syncing are needed, the file only becomes visible after it is
+     * complete.
+     */
+    private static void prepareBulkLoad(final Connection connection) throws SQLException {
+	final Statement statement = connection.createStatement();
+	try {
+	    statement.executeUpdate("PRAGMA page_size = " + PAGE_SIZE);
+	    statement.executeUpdate("PRAGMA cache_size = -" + CACHE_SIZE_KB);
+	    statement.executeUpdate("PRAGMA journal_mode = OFF");
+	    statement.executeUpdate("PRAGMA synchronous = OFF");
+	    statement.executeUpdate("PRAGMA locking_mode = EXCLUSIVE");
+	} finally {
+	    statement.close();
+	}
+    }
+    
+    private static void sync(final File file) throws IOException {
+	final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+	try {
+	    channel.force(true);
+	} finally {
+	    channel.close();
+	}
+    }
+    
     /**
      * Export.
      * 
@@ -61,29 +321,27 @@ public class ExportTracksToSQL extends AbstractTMAction {
      *            the settings
      * @param file
      *            the file
+     * @return true, if the database was written
      */
-    public void export(final Model model, final Settings settings, final File file) {
+    public boolean export(final Model model, final Settings settings, final File file) {
 	Logger logger = Logger.IJ_LOGGER;
-	file.delete();
-	Statement statement = null;
 	final long start = System.currentTimeMillis();
+	long rows = 0;
 	try {
-	    statement = createDatabase();
-	    marshall(model, settings, statement);
-	    statement.executeUpdate("backup to '"+ file.getAbsolutePath() + "'");
+	    final Columns columns = new Columns(model.getFeatureModel());
+	    rows = writeDatabase(columns, model.getTrackModel().trackIDs(true), rows(model, columns), file);
 	} catch (SQLException e) {
 	    logger.log(e.getMessage());
 	    e.printStackTrace();
-	} finally {
-	    if (statement != null)
-		try {
-		    statement.close();
-		} catch (SQLException e) {
-		    logger.log(e.getMessage());
-		}
+	    return false;
+	} catch (IOException e) {
+	    logger.log(e.getMessage());
+	    e.printStackTrace();
+	    return false;
 	}
 	final long end = System.currentTimeMillis();
-	logger.log("Exported to SQLite " + file.getName() + " in " + (end-start) + " ms.");
+	logger.log("Exported to SQLite " + file.getName() + " in " + (end-start) + " ms " + rate(rows, end - start) + ".");
+	return true;
     }
     
     
@@ -121,167 +379,1284 @@ public class ExportTracksToSQL extends AbstractTMAction {
 	
 	final File file = new File(sd.getDirectory() + fileName); 
 	
-	if (file.delete())
-		logger.log("File will be overwritten!\n");
+	final ChangeRecorder changeRecorder = recorder(model);
+	// the graph is copied here, the model may be edited while the export
+	// runs; the feature values are read by the workers
+	final Snapshot snapshot = new Snapshot(model);
+	final Changes changes = changeRecorder.drain(file);
 
-	Statement statement = null;
-	try {
-	    statement = createDatabase();
-	    marshall(model, trackmate.getSettings(), statement);
-	    statement.executeUpdate("backup to '"+ file.getAbsolutePath() + "'");
-	} catch (SQLException e) {
-	    logger.log("SQL Error:" + e.getMessage());
-	} finally {
-	    if (statement != null)
+	// the GUI stays usable, errors go to the logger
+	final Runnable task = new Runnable() {
+	    @Override
+	    public void run() {
+		final long rows;
 		try {
-		    statement.close();
+		    rows = write(snapshot, changes, changeRecorder, file);
+		} catch (CancellationException e) {
+		    logger.log("Export canceled: " + e.getMessage() + "\n");
+		    return;
 		} catch (SQLException e) {
-		    logger.log("SQL Error:" + e.getMessage());;
+		    logger.log("SQL Error:" + e.getMessage());
+		    return;
+		} catch (IOException e) {
+		    logger.log("IO Error:" + e.getMessage());
+		    return;
 		}
+		final long end = System.currentTimeMillis();
+		logger.log("Done in " + (end-start) + " ms " + rate(rows, end - start) + ".\n");
+	    }
+	};
+	if (null == BackgroundExports.submit(file, this, logger, task)) {
+	    // the drained changes are lost
+	    changeRecorder.invalidate();
+	    logger.error(file.getName() + " is already being exported.\n");
 	}
-	final long end = System.currentTimeMillis();
-	logger.log("Done in " + (end-start) + " ms.");
-    }
-    
-    
-    private static void marshall(final Model model, final Settings settings, Statement statement) throws SQLException{
-	final FeatureModel fm = model.getFeatureModel();
-	final TrackModel tm = model.getTrackModel();
-	final Set<Integer> trackIDs = tm.trackIDs(true);
-	final Collection< String > spotFeatures = fm.getSpotFeatures();
-	final Collection< String > edgeFeatures = fm.getEdgeFeatures();
-	final Collection< String > trackFeatures = fm.getTrackFeatures();
-	final Map<String,Boolean> intMapSpot = fm.getSpotFeatureIsInt();
-	final Map<String,Boolean> intMapEdge = fm.getEdgeFeatureIsInt();
-	final Map<String,Boolean> intMapTrack = fm.getTrackFeatureIsInt();
-	String CREATETSPOTQUERY = "CREATE TABLE spots (id INTEGER PRIMARY KEY, track_id INTEGER, ";
-	String CREATEEDGEQUERY = "CREATE TABLE edges (id INTEGER PRIMARY KEY, track_id INTEGER, ";
-	String CREATETRACKQUERY = "CREATE TABLE tracks (id INTEGER PRIMARY KEY, ";
-	//particle INTEGER, t INTEGER, x FLOAT (5,8), y FLOAT (5,8), z FLOAT (5,8), quality FLOAT (5,8) ,file CHAR(100))";
+    }
+    
+    
+    /**
+     * Exports the visible tracks of a model on the calling thread like the
+     * GUI action does: only the tracks changed since the last export of the
+     * model are rewritten if the file holds that export.
+     * 
+     * @param model
+     *            the model
+     * @param file
+     *            the database file
+     * @return the number of written rows
+     * @throws SQLException
+     *             if the database cannot be written
+     * @throws IOException
+     *             if the file cannot be replaced
+     */
+    long exportChanges(final Model model, final File file) throws SQLException, IOException {
+	final ChangeRecorder changeRecorder = recorder(model);
+	return write(new Snapshot(model), changeRecorder.drain(file), changeRecorder, file);
+    }
+    
+    /**
+     * Gets the change recorder of a model, registering one on first use.
+     */
+    private static ChangeRecorder recorder(final Model model) {
+	synchronized (RECORDERS) {
+	    ChangeRecorder recorder = RECORDERS.get(model);
+	    if (null == recorder) {
+		recorder = new ChangeRecorder(model);
+		model.addModelChangeListener(recorder);
+		RECORDERS.put(model, recorder);
+	    }
+	    return recorder;
+	}
+    }
+    
+    /**
+     * Updates the changed tracks or writes the whole database and records
+     * the export. If it fails, the next export writes the whole database.
+     * 
+     * @return the number of written rows
+     */
+    private long write(final Snapshot snapshot, final Changes changes, final ChangeRecorder changeRecorder, final File file)
+	    throws SQLException, IOException {
+	try {
+	    long rows = -1;
+	    if (incremental && null != changes) {
+		rows = updateDatabase(snapshot, changes, file);
+		if (rows >= 0)
+		    logger.log("Updated " + changes.size() + " changed spots and tracks only.\n");
+	    }
+	    if (rows < 0) {
+		if (file.exists())
+		    logger.log("File will be overwritten!\n");
+		rows = writeDatabase(snapshot.columns, snapshot.trackIDs, snapshot.rows(), file);
+	    }
+	    changeRecorder.exported(file);
+	    return rows;
+	} catch (final Exception e) {
+	    // the drained changes are lost
+	    changeRecorder.invalidate();
+	    throw e;
+	}
+    }
+    
+    /**
+     * Writes the visible tracks with their spots and edges. The rows of each
+     * track are collected and sorted on the worker threads of the pipeline and
+     * inserted in track order by one writer through reusable prepared
+     * statements, in batches of {@value #BATCH_SIZE} rows committed every
+     * {@value #COMMIT_SIZE} rows. Foreign keys are checked and indexes are
+     * created after the bulk load.
+     * 
+     * @return the number of inserted rows
+     */
+    private static long marshall(final Columns columns, final Collection<Integer> trackIDs, final ExportPipeline.Formatter<TrackRows> rows,
+	    final Connection connection, final ExportPipeline<TrackRows> pipeline, final boolean spatialIndex) throws SQLException{
+	createTables(connection, columns);
+	final TrackRowWriter writer = new TrackRowWriter(connection, columns);
+	try {
+	    writeTracks(trackIDs, rows, writer, pipeline);
+	    writer.finish();
+	} finally {
+	    writer.close();
+	}
+	finishTables(connection, spatialIndex);
+	return writer.getRows();
+    }
+    
+    private static void createTables(final Connection connection, final Columns columns) throws SQLException {
+	final Statement statement = connection.createStatement();
+	try {
+	    statement.executeUpdate("PRAGMA foreign_keys = OFF");
+	    connection.setAutoCommit(false);
+	    statement.executeUpdate("CREATE TABLE tracks (id INTEGER PRIMARY KEY" + columnDefinitions(columns.track, columns.intTrack) + ")");
+	    statement.executeUpdate("CREATE TABLE spots (id INTEGER PRIMARY KEY, track_id INTEGER" + columnDefinitions(columns.spot, columns.intSpot)
+		    + ", FOREIGN KEY (track_id) REFERENCES tracks(id))");
+	    statement.executeUpdate("CREATE TABLE edges (id INTEGER PRIMARY KEY, track_id INTEGER, source_id INTEGER, target_id INTEGER" + columnDefinitions(columns.edge, columns.intEdge)
+		    + ", FOREIGN KEY (track_id) REFERENCES tracks(id))");
+	    connection.commit();
+	} finally {
+	    statement.close();
+	}
+    }
+    
+    private static void writeTracks(final Model model, final Columns columns, final Collection<Integer> trackIDs, final TrackRowWriter writer,
+	    final int numThreads) throws SQLException {
+	writeTracks(trackIDs, rows(model, columns), writer, new ExportPipeline<TrackRows>(numThreads, QUEUE_CAPACITY));
+    }
+    
+    private static void writeTracks(final Collection<Integer> trackIDs, final ExportPipeline.Formatter<TrackRows> rows, final TrackRowWriter writer,
+	    final ExportPipeline<TrackRows> pipeline) throws SQLException {
+	try {
+	    pipeline.run(trackIDs, rows, writer);
+	} catch (final SQLException e) {
+	    throw e;
+	} catch (final RuntimeException e) {
+	    throw e;
+	} catch (final Exception e) {
+	    throw new SQLException(e);
+	}
+    }
+    
+    /**
+     * Reads the rows of each track from the model, on the threads of the
+     * pipeline.
+     */
+    private static ExportPipeline.Formatter<TrackRows> rows(final Model model, final Columns columns) {
+	return new ExportPipeline.Formatter<TrackRows>() {
+	    @Override
+	    public TrackRows format(final Integer trackID) {
+		return new TrackRows(model.getFeatureModel(), columns, new TrackGraph(model, columns, trackID));
+	    }
+	};
+    }
+    
+    /**
+     * Creates the indexes and checks the foreign keys after the bulk load.
+     */
+    private static void finishTables(final Connection connection, final boolean spatialIndex) throws SQLException {
+	final Statement statement = connection.createStatement();
+	try {
+	    statement.executeUpdate("CREATE INDEX spots_track_id ON spots (track_id)");
+	    statement.executeUpdate("CREATE INDEX edges_track_id ON edges (track_id)");
+	    if (spatialIndex)
+		createSpatialIndex(connection);
+	    connection.commit();
+	    connection.setAutoCommit(true);
+	    final ResultSet violations = statement.executeQuery("PRAGMA foreign_key_check");
+	    try {
+		if (violations.next())
+		    throw new SQLException("Foreign key violation in table " + violations.getString(1) + ".");
+	    } finally {
+		violations.close();
+	    }
+	    statement.executeUpdate("PRAGMA foreign_keys = ON");
+	} finally {
+	    statement.close();
+	}
+    }
+    
+    /**
+     * Builds the R*Tree <code>track_bbox</code> over the bounding box of each
+     * track in x, y and frame, keyed by the track ID, the summary tables
+     * <code>track_summary</code> and <code>frame_summary</code> and a
+     * (track_id, frame) index on the spots. A region and frame range query
+     * selects the candidate tracks from the R*Tree and refines them through
+     * this index instead of scanning all spots. A plain frame index is left
+     * out on purpose, the query planner would prefer it over the R*Tree.
+     */
+    private static void createSpatialIndex(final Connection connection) throws SQLException {
+	final Set<String> columns = columnNames(connection, "spots");
+	for (final String column : new String[] { "position_x", "position_y", "frame" }) {
+	    if (!columns.contains(column)) {
+		Logger.IJ_LOGGER.log("No " + column + " column, spatial index skipped.\n");
+		return;
+	    }
+	}
+	final Statement statement = connection.createStatement();
+	try {
+	    statement.executeUpdate("CREATE INDEX spots_track_frame ON spots (track_id, frame)");
+	    statement.executeUpdate("CREATE VIRTUAL TABLE track_bbox USING rtree (id, min_x, max_x, min_y, max_y, min_frame, max_frame)");
+	    statement.executeUpdate(INSERT_BBOX + " GROUP BY track_id");
+	    statement.executeUpdate("CREATE TABLE track_summary (track_id INTEGER PRIMARY KEY, spots INTEGER, first_frame INTEGER, last_frame INTEGER, "
+		    + "min_x FLOAT, max_x FLOAT, min_y FLOAT, max_y FLOAT, mean_x FLOAT, mean_y FLOAT, "
+		    + "FOREIGN KEY (track_id) REFERENCES tracks(id))");
+	    statement.executeUpdate(INSERT_TRACK_SUMMARY + " GROUP BY track_id");
+	    statement.executeUpdate("CREATE TABLE frame_summary (frame INTEGER PRIMARY KEY, spots INTEGER, tracks INTEGER, "
+		    + "min_x FLOAT, max_x FLOAT, min_y FLOAT, max_y FLOAT, mean_x FLOAT, mean_y FLOAT)");
+	    statement.executeUpdate(INSERT_FRAME_SUMMARY + " GROUP BY frame");
+	} finally {
+	    statement.close();
+	}
+    }
+    
+    /**
+     * A database receiving tracks in chunks. Every chunk is written on a
+     * background thread, so the caller can compute the next chunk meanwhile.
+     * At most {@value #STREAM_BACKLOG} chunks wait for the writer. The
+     * features of a chunk must be complete when it is appended; its tracks
+     * are only read afterwards.
+     */
+    public static final class Stream {
 	
-	for ( final  String feature : trackFeatures ){
-	    if (intMapTrack.get(feature))
-		CREATETRACKQUERY += feature.toLowerCase() + " INTEGER, ";
-	    else
-		CREATETRACKQUERY += feature.toLowerCase() + " FLOAT (5,8), ";
-	}
-	CREATETRACKQUERY = CREATETRACKQUERY.substring(0, CREATETRACKQUERY.length()-2);
-	CREATETRACKQUERY += ")";
-	statement.executeUpdate(CREATETRACKQUERY);
+	private final Model model;
 	
-	for ( final String feature : spotFeatures ){
-	    if (intMapSpot.get(feature))
-		CREATETSPOTQUERY += feature.toLowerCase() + " INTEGER, ";
-	    else
-		CREATETSPOTQUERY += feature.toLowerCase() + " FLOAT (5,8), ";
-	}
-	CREATETSPOTQUERY = CREATETSPOTQUERY.substring(0, CREATETSPOTQUERY.length()-2);
-	CREATETSPOTQUERY += ", FOREIGN KEY (track_id) REFERENCES tracks(id))";
-	statement.executeUpdate(CREATETSPOTQUERY);
+	private final File file, part;
 	
-	for ( final  String feature : edgeFeatures ){
-	    if (intMapEdge.get(feature))
-		CREATEEDGEQUERY += feature.toLowerCase() + " INTEGER, ";
-	    else
-		CREATEEDGEQUERY += feature.toLowerCase() + " FLOAT (5,8), ";
-	}
-	CREATEEDGEQUERY = CREATEEDGEQUERY.substring(0, CREATEEDGEQUERY.length()-2);
-	CREATEEDGEQUERY += ", FOREIGN KEY (track_id) REFERENCES tracks(id))";
-	statement.executeUpdate(CREATEEDGEQUERY);
-			
-	for (final Integer trackID : trackIDs) {
-	    final Set<Spot> trackSpots = tm.trackSpots(trackID);
-	    final Set<DefaultWeightedEdge> trackEdges = tm.trackEdges( trackID );
-	    
-	    // Sort them by time
-	    final TreeSet<Spot> sortedTrack = new TreeSet<Spot>(Spot.timeComparator);
-	    sortedTrack.addAll(trackSpots);
-	    
-	    String Track_String = "insert into tracks (id, "; 
-	    for ( final String feature : trackFeatures )
-		    Track_String += feature.toLowerCase() + ", ";
-	    Track_String = Track_String.substring(0, Track_String.length()-2);
-	    Track_String += ") values (";
-	    Track_String += trackID.intValue() + ", ";
-	    
-	    for ( final String feature : trackFeatures ){
-		Double val = fm.getTrackFeature( trackID, feature );
-		if (val==null || Double.isNaN(val) || Double.isInfinite(val))
-	    	val=Double.valueOf(0d);
-		if (intMapTrack.get(feature))
-		    Track_String += String.format("%d, ", val.intValue());
-		else
-		    Track_String += String.format(Locale.US,"%.8f, ", val.floatValue());
-	    }
-	    Track_String = Track_String.substring(0, Track_String.length()-2);
-	    Track_String += ")";
-	    
-	    statement.executeUpdate(Track_String);
-	    
-	    for (final Spot spot : sortedTrack) {				
-			String SpotString = "insert into spots (id, track_id, ";
-			for ( final String feature : spotFeatures )
-				SpotString += feature.toLowerCase() + ", ";
-			SpotString = SpotString.substring(0, SpotString.length()-2);
-			SpotString += ") values ("; 
-			SpotString += spot.ID() + ", ";
-			SpotString += trackID.intValue() + ", ";
-						
-			for ( final String feature : spotFeatures ){
-			    Double val = spot.getFeature( feature );
-			    if (val==null || Double.isNaN(val) || Double.isInfinite(val))
-			    	val=Double.valueOf(0d);
-			    if (intMapSpot.get(feature))
-			    	SpotString += String.format("%d, ", val.intValue());
-			    else
-			    	SpotString += String.format(Locale.US, "%.8f, ", val.floatValue());
-			}
-			SpotString = SpotString.substring(0, SpotString.length()-2);
-			SpotString += ")";
-			
-			statement.executeUpdate(SpotString);
-	    }
-	    
-	    for ( final DefaultWeightedEdge edge : trackEdges ){
-		
-			String EdgeString = "insert into edges (track_id, ";
-			for ( final String feature : edgeFeatures )
-				EdgeString += feature.toLowerCase() + ", ";
-			EdgeString = EdgeString.substring(0, EdgeString.length()-2);
-			EdgeString += ") values (";
-			EdgeString += trackID.intValue() + ", ";
-			
-			for ( final String feature : edgeFeatures )
-			{
-			    Double val = fm.getEdgeFeature( edge, feature );
-			    if (val==null || Double.isNaN(val) || Double.isInfinite(val))
-			    	val=Double.valueOf(0d);
-			    if (intMapEdge.get(feature))
-			    	EdgeString += String.format("%d, ", val.intValue());
-			    else
-			    	EdgeString += String.format(Locale.US, "%.8f, ", val.floatValue());
-			}
-			EdgeString = EdgeString.substring(0, EdgeString.length()-2);
-			EdgeString += ")";
-			
-			statement.executeUpdate(EdgeString);
+	private final boolean inMemory;
+	
+	private final int numThreads;
+	
+	private final boolean spatialIndex;
+	
+	private final Columns columns;
+	
+	private final Connection connection;
+	
+	private final TrackRowWriter writer;
+	
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	
+	private final ArrayDeque<Future<?>> pending = new ArrayDeque<Future<?>>();
+	
+	private boolean closed;
+	
+	private Stream(final Model model, final File file, final boolean inMemory, final int numThreads, final boolean spatialIndex)
+		throws SQLException, IOException {
+	    this.model = model;
+	    this.spatialIndex = spatialIndex;
+	    this.file = file;
+	    this.part = partFile(file);
+	    this.inMemory = inMemory;
+	    this.numThreads = numThreads;
+	    Files.deleteIfExists(part.toPath());
+	    columns = new Columns(model.getFeatureModel());
+	    connection = createDatabase(inMemory ? "jdbc:sqlite::memory:" : "jdbc:sqlite:" + part.getAbsolutePath());
+	    try {
+		if (!inMemory)
+		    prepareBulkLoad(connection);
+		createTables(connection, columns);
+		writer = new TrackRowWriter(connection, columns);
+	    } catch (final SQLException e) {
+		abort();
+		throw e;
+	    }
+	}
+	
+	/**
+	 * Appends a chunk of tracks. Returns as soon as the chunk is queued,
+	 * unless too many chunks are waiting.
+	 * 
+	 * @param trackIDs
+	 *            the IDs of the tracks to write
+	 * @throws SQLException
+	 *             if writing an earlier chunk failed
+	 */
+	public void append(final Collection<Integer> trackIDs) throws SQLException {
+	    if (closed)
+		throw new SQLException("Stream closed.");
+	    final List<Integer> chunk = new ArrayList<Integer>(trackIDs);
+	    pending.add(executor.submit(new Callable<Void>() {
+		@Override
+		public Void call() throws SQLException {
+		    writeTracks(model, columns, chunk, writer, numThreads);
+		    return null;
+		}
+	    }));
+	    while (pending.size() > STREAM_BACKLOG || (!pending.isEmpty() && pending.peek().isDone()))
+		await(pending.poll());
+	}
+	
+	/**
+	 * Waits for all chunks, finishes the tables and moves the database to
+	 * the target file.
+	 * 
+	 * @return the number of inserted rows
+	 * @throws SQLException
+	 *             if writing failed
+	 * @throws IOException
+	 *             if the file cannot be moved to the target
+	 */
+	public long close() throws SQLException, IOException {
+	    if (closed)
+		throw new SQLException("Stream closed.");
+	    boolean done = false;
+	    try {
+		while (!pending.isEmpty())
+		    await(pending.poll());
+		writer.finish();
+		writer.close();
+		finishTables(connection, spatialIndex);
+		if (inMemory)
+		    backup(connection, part);
+		connection.close();
+		commitFile(part, file);
+		done = true;
+		return writer.getRows();
+	    } finally {
+		if (!done)
+		    abort();
+		closed = true;
+		executor.shutdownNow();
+	    }
+	}
+	
+	/**
+	 * Stops writing and removes the temporary file. The target file is left
+	 * untouched.
+	 */
+	public void abort() {
+	    closed = true;
+	    executor.shutdownNow();
+	    try {
+		connection.close();
+	    } catch (final SQLException e) {
+		// nothing left to save
+	    }
+	    try {
+		Files.deleteIfExists(part.toPath());
+	    } catch (final IOException e) {
+		Logger.IJ_LOGGER.error("Could not delete " + part.getName() + ".\n");
+	    }
+	}
+	
+	private static void await(final Future<?> future) throws SQLException {
+	    try {
+		future.get();
+	    } catch (final InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new SQLException("Export interrupted.", e);
+	    } catch (final ExecutionException e) {
+		if (e.getCause() instanceof SQLException)
+		    throw (SQLException) e.getCause();
+		throw new SQLException(e.getCause());
+	    }
+	}
+    }
+
+    /**
+     * A database collecting the tracks of many movies. Every movie gets a row
+     * in the movies table and its tracks, spots and edges carry its
+     * <code>movie_id</code>, which leads the primary keys and indexes, so
+     * aggregates across movies are single indexed queries. Appends from
+     * several threads are queued and written by one writer thread, one
+     * transaction per movie. Feature columns missing from the tables are
+     * added when a movie brings new features.
+     */
+    public static final class Consolidated {
+
+	private final int numThreads;
+
+	private final Connection connection;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	private final ArrayDeque<Future<Long>> pending = new ArrayDeque<Future<Long>>();
+
+	private boolean closed;
+
+	private Consolidated(final File file, final int numThreads) throws SQLException {
+	    this.numThreads = numThreads;
+	    connection = createDatabase("jdbc:sqlite:" + file.getAbsolutePath());
+	    try {
+		final Statement statement = connection.createStatement();
+		try {
+		    statement.executeUpdate("PRAGMA journal_mode = WAL");
+		    statement.executeUpdate("PRAGMA synchronous = NORMAL");
+		    statement.executeUpdate("PRAGMA cache_size = -" + CACHE_SIZE_KB);
+		    statement.executeUpdate("PRAGMA foreign_keys = OFF");
+		    statement.executeUpdate("CREATE TABLE IF NOT EXISTS movies (id INTEGER PRIMARY KEY, file TEXT, settings TEXT, "
+			    + "exported INTEGER, processing_ms INTEGER, export_ms INTEGER, tracks INTEGER, rows INTEGER)");
+		    statement.executeUpdate("CREATE TABLE IF NOT EXISTS tracks (movie_id INTEGER, id INTEGER, "
+			    + "PRIMARY KEY (movie_id, id), FOREIGN KEY (movie_id) REFERENCES movies(id))");
+		    statement.executeUpdate("CREATE TABLE IF NOT EXISTS spots (movie_id INTEGER, id INTEGER, track_id INTEGER, "
+			    + "PRIMARY KEY (movie_id, id), FOREIGN KEY (movie_id, track_id) REFERENCES tracks(movie_id, id))");
+		    statement.executeUpdate("CREATE TABLE IF NOT EXISTS edges (id INTEGER PRIMARY KEY, movie_id INTEGER, track_id INTEGER, "
+			    + "source_id INTEGER, target_id INTEGER, "
+			    + "FOREIGN KEY (movie_id, track_id) REFERENCES tracks(movie_id, id))");
+		    for (final String table : new String[] { "tracks", "spots", "edges" })
+			if (!columnNames(connection, table).contains("movie_id"))
+			    throw new SQLException(file.getName() + " is not a consolidated database.");
+		    statement.executeUpdate("CREATE INDEX IF NOT EXISTS spots_movie_track ON spots (movie_id, track_id)");
+		    statement.executeUpdate("CREATE INDEX IF NOT EXISTS edges_movie_track ON edges (movie_id, track_id)");
+		} finally {
+		    statement.close();
+		}
+		connection.setAutoCommit(false);
+	    } catch (final SQLException e) {
+		connection.close();
+		throw e;
+	    }
+	}
+
+	/**
+	 * Queues the visible tracks of a movie. The model must not change until
+	 * the returned future is done. If too many movies are waiting, the call
+	 * blocks until the writer catches up.
+	 * 
+	 * @param source
+	 *            the movie file
+	 * @param model
+	 *            the model
+	 * @param settings
+	 *            the settings, stored as text
+	 * @param processingMillis
+	 *            the time spent processing the movie
+	 * @return the number of inserted rows, when written
+	 * @throws SQLException
+	 *             if the database is closed
+	 */
+	public Future<Long> append(final File source, final Model model, final Settings settings, final long processingMillis)
+		throws SQLException {
+	    return append(source, 0, 0, model, settings, processingMillis);
+	}
+
+	/**
+	 * Queues the visible tracks of one image of a movie file holding several
+	 * series or channels, see {@link #append(File, Model, Settings, long)}.
+	 * 
+	 * @param source
+	 *            the movie file
+	 * @param series
+	 *            the series of the image, 0-based
+	 * @param channel
+	 *            the tracked channel, 1-based, or 0 if not split by channel
+	 * @param model
+	 *            the model
+	 * @param settings
+	 *            the settings, stored as text
+	 * @param processingMillis
+	 *            the time spent processing the image
+	 * @return the number of inserted rows, when written
+	 * @throws SQLException
+	 *             if the database is closed
+	 */
+	public synchronized Future<Long> append(final File source, final int series, final int channel, final Model model,
+		final Settings settings, final long processingMillis) throws SQLException {
+	    if (closed)
+		throw new SQLException("Database closed.");
+	    while (!pending.isEmpty() && (pending.size() >= STREAM_BACKLOG || pending.peek().isDone())) {
+		try {
+		    pending.poll().get();
+		} catch (final InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new SQLException("Export interrupted.", e);
+		} catch (final ExecutionException e) {
+		    // reported to the caller of that movie
+		}
+	    }
+	    final Future<Long> future = executor.submit(new Callable<Long>() {
+		@Override
+		public Long call() throws SQLException {
+		    return write(source, series, channel, model, settings, processingMillis);
+		}
+	    });
+	    pending.add(future);
+	    return future;
+	}
+
+	private long write(final File source, final int series, final int channel, final Model model, final Settings settings,
+		final long processingMillis) throws SQLException {
+	    final long start = System.currentTimeMillis();
+	    final Columns columns = new Columns(model.getFeatureModel());
+	    final Set<Integer> trackIDs = model.getTrackModel().trackIDs(true);
+	    try {
+		addColumns("tracks", columns.track, columns.intTrack);
+		addColumns("spots", columns.spot, columns.intSpot);
+		addColumns("edges", columns.edge, columns.intEdge);
+		addColumns("edges", EDGE_KEYS, new boolean[] { true, true });
+		addColumns("movies", MOVIE_KEYS, new boolean[] { true, true });
+
+		final int movieID;
+		final PreparedStatement insertMovie = connection.prepareStatement(
+			"INSERT INTO movies (file, settings, exported, processing_ms, tracks, series, channel) VALUES (?, ?, ?, ?, ?, ?, ?)");
+		try {
+		    insertMovie.setString(1, source.getAbsolutePath());
+		    insertMovie.setString(2, null == settings ? null : settings.toString());
+		    insertMovie.setLong(3, start);
+		    insertMovie.setLong(4, processingMillis);
+		    insertMovie.setInt(5, trackIDs.size());
+		    insertMovie.setInt(6, series);
+		    insertMovie.setInt(7, channel);
+		    insertMovie.executeUpdate();
+		    final ResultSet key = insertMovie.getGeneratedKeys();
+		    try {
+			key.next();
+			movieID = key.getInt(1);
+		    } finally {
+			key.close();
+		    }
+		} finally {
+		    insertMovie.close();
+		}
+
+		final TrackRowWriter writer = new TrackRowWriter(connection, columns, movieID, Long.MAX_VALUE);
+		try {
+		    writeTracks(model, columns, trackIDs, writer, numThreads);
+		    final PreparedStatement updateMovie = connection.prepareStatement("UPDATE movies SET export_ms = ?, rows = ? WHERE id = ?");
+		    try {
+			updateMovie.setLong(1, System.currentTimeMillis() - start);
+			updateMovie.setLong(2, writer.getRows());
+			updateMovie.setInt(3, movieID);
+			updateMovie.executeUpdate();
+		    } finally {
+			updateMovie.close();
+		    }
+		    writer.finish();
+		} finally {
+		    writer.close();
+		}
+		return writer.getRows();
+	    } catch (final SQLException e) {
+		connection.rollback();
+		throw e;
+	    } catch (final RuntimeException e) {
+		connection.rollback();
+		throw e;
+	    }
+	}
+
+	private void addColumns(final String table, final String[] features, final boolean[] isInt) throws SQLException {
+	    final Set<String> existing = columnNames(connection, table);
+	    final Statement statement = connection.createStatement();
+	    try {
+		for (int i = 0; i < features.length; i++)
+		    if (!existing.contains(features[i].toLowerCase()))
+			statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + features[i].toLowerCase() + columnType(isInt[i]));
+	    } finally {
+		statement.close();
 	    }
+	}
+
+	/**
+	 * Waits for all queued movies, checks the foreign keys and closes the
+	 * database. Failed movies were rolled back and are reported through
+	 * their futures.
+	 * 
+	 * @throws SQLException
+	 *             if the check fails
+	 */
+	public synchronized void close() throws SQLException {
+	    if (closed)
+		return;
+	    closed = true;
+	    executor.shutdown();
+	    try {
+		while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+		    Logger.IJ_LOGGER.log("Waiting for the database writer.\n");
+	    } catch (final InterruptedException e) {
+		Thread.currentThread().interrupt();
+		executor.shutdownNow();
+	    }
+	    pending.clear();
+	    try {
+		connection.setAutoCommit(true);
+		final Statement statement = connection.createStatement();
+		try {
+		    final ResultSet violations = statement.executeQuery("PRAGMA foreign_key_check");
+		    try {
+			if (violations.next())
+			    throw new SQLException("Foreign key violation in table " + violations.getString(1) + ".");
+		    } finally {
+			violations.close();
+		    }
+		} finally {
+		    statement.close();
 		}
+	    } finally {
+		connection.close();
+	    }
+	}
+    }
+
+    @Override
+    public boolean isCanceled() {
+	return null != cancelReason;
+    }
+    
+    @Override
+    public void cancel(final String reason) {
+	cancelReason = reason;
+    }
+    
+    @Override
+    public String getCancelReason() {
+	return cancelReason;
+    }
+
+    /**
+     * Rewrites the tracks touched by the recorded changes in an existing
+     * database, in one transaction. Database tracks holding a changed spot
+     * are deleted together with the current tracks that now hold any of their
+     * spots, until both sets are closed under this relation, so split and
+     * merged tracks are replaced as a whole. The visible tracks among them
+     * are written again, the spatial index and summaries are updated if
+     * present. The track features of the other tracks are refreshed, see
+     * {@link #updateTrackFeatures(Connection, Snapshot, Set)}.
+     * 
+     * @return the number of written rows, or -1 if the database does not
+     *         match the features of the model and must be written anew
+     */
+    private long updateDatabase(final Snapshot snapshot, final Changes changes, final File file) throws SQLException {
+	final Columns columns = snapshot.columns;
+	final Connection connection = createDatabase("jdbc:sqlite:" + file.getAbsolutePath());
+	try {
+	    if (!compatible(connection, columns))
+		return -1;
+	    connection.setAutoCommit(false);
+
+	    final Set<Integer> deleted = new HashSet<Integer>(select(connection, "SELECT DISTINCT track_id FROM spots WHERE id IN ", changes.spotIDs));
+	    final Set<Integer> written = new HashSet<Integer>();
+	    for (final Integer trackID : changes.trackIDs)
+		if (snapshot.allTrackIDs.contains(trackID))
+		    written.add(trackID);
+	    for (final Integer spotID : changes.spotIDs)
+		addTrackOf(snapshot, spotID, written);
+	    boolean grown = true;
+	    while (grown) {
+		grown = deleted.addAll(select(connection, "SELECT id FROM tracks WHERE id IN ", written));
+		for (final Integer spotID : select(connection, "SELECT id FROM spots WHERE track_id IN ", deleted))
+		    grown |= addTrackOf(snapshot, spotID, written);
+	    }
+
+	    final boolean spatial = !columnNames(connection, "track_bbox").isEmpty();
+	    final Set<Integer> frames = new HashSet<Integer>();
+	    if (spatial)
+		frames.addAll(select(connection, "SELECT DISTINCT frame FROM spots WHERE track_id IN ", deleted));
+	    final Statement statement = connection.createStatement();
+	    try {
+		for (final String ids : inLists(deleted)) {
+		    statement.executeUpdate("DELETE FROM spots WHERE track_id IN " + ids);
+		    statement.executeUpdate("DELETE FROM edges WHERE track_id IN " + ids);
+		    statement.executeUpdate("DELETE FROM tracks WHERE id IN " + ids);
+		    if (spatial) {
+			statement.executeUpdate("DELETE FROM track_bbox WHERE id IN " + ids);
+			statement.executeUpdate("DELETE FROM track_summary WHERE track_id IN " + ids);
+		    }
+		}
+
+		final List<Integer> visible = new ArrayList<Integer>();
+		for (final Integer trackID : written)
+		    if (snapshot.isVisible(trackID))
+			visible.add(trackID);
+		final TrackRowWriter writer = new TrackRowWriter(connection, columns, -1, Long.MAX_VALUE);
+		try {
+		    writeTracks(visible, snapshot.rows(), writer, pipeline(file));
+		    writer.flush();
+		} finally {
+		    writer.close();
+		}
+		final long updated = updateTrackFeatures(connection, snapshot, written);
+
+		if (spatial) {
+		    for (final String ids : inLists(visible)) {
+			statement.executeUpdate(INSERT_BBOX + " WHERE track_id IN " + ids + " GROUP BY track_id");
+			statement.executeUpdate(INSERT_TRACK_SUMMARY + " WHERE track_id IN " + ids + " GROUP BY track_id");
+		    }
+		    frames.addAll(select(connection, "SELECT DISTINCT frame FROM spots WHERE track_id IN ", visible));
+		    for (final String ids : inLists(frames)) {
+			statement.executeUpdate("DELETE FROM frame_summary WHERE frame IN " + ids);
+			statement.executeUpdate(INSERT_FRAME_SUMMARY + " WHERE frame IN " + ids + " GROUP BY frame");
+		    }
+		}
+		connection.commit();
+		return writer.getRows() + updated;
+	    } catch (final Exception e) {
+		// also on cancellation, the file stays as it was
+		connection.rollback();
+		throw e;
+	    } finally {
+		statement.close();
+	    }
+	} finally {
+	    connection.close();
+	}
+    }
+    
+    /**
+     * Writes the current track feature values of the visible tracks that
+     * were not rewritten, where they differ from the stored ones. Analyzers
+     * such as the track index depend on all tracks; TrackMate recomputes
+     * them for every track after an edit, while the change events name only
+     * the edited tracks. Edge features are taken as local, as those of all
+     * edge analyzers of TrackMate are.
+     * 
+     * @return the number of updated rows
+     */
+    private static long updateTrackFeatures(final Connection connection, final Snapshot snapshot, final Set<Integer> rewritten)
+	    throws SQLException {
+	final Columns columns = snapshot.columns;
+	if (columns.track.length == 0)
+	    return 0;
+	final StringBuilder select = new StringBuilder("SELECT id");
+	final StringBuilder set = new StringBuilder();
+	for (final String feature : columns.track) {
+	    select.append(", ").append(feature.toLowerCase());
+	    set.append(set.length() == 0 ? "" : ", ").append(feature.toLowerCase()).append(" = ?");
+	}
+	// collected first, the table is not changed while it is read
+	final List<Integer> changed = new ArrayList<Integer>();
+	final Statement statement = connection.createStatement();
+	try {
+	    final ResultSet rs = statement.executeQuery(select.append(" FROM tracks").toString());
+	    while (rs.next()) {
+		final Integer trackID = rs.getInt(1);
+		final double[] values = snapshot.trackValues(trackID);
+		if (null == values || rewritten.contains(trackID))
+		    continue;
+		for (int i = 0; i < values.length; i++)
+		    if (columns.intTrack[i] ? rs.getInt(i + 2) != (int) values[i] : rs.getFloat(i + 2) != (float) values[i]) {
+			changed.add(trackID);
+			break;
+		    }
+	    }
+	    rs.close();
+	} finally {
+	    statement.close();
+	}
+	final PreparedStatement update = connection.prepareStatement("UPDATE tracks SET " + set + " WHERE id = ?");
+	try {
+	    int pending = 0;
+	    for (final Integer trackID : changed) {
+		final double[] values = snapshot.trackValues(trackID);
+		for (int i = 0; i < values.length; i++)
+		    bind(update, i + 1, values[i], columns.intTrack[i]);
+		update.setInt(values.length + 1, trackID.intValue());
+		update.addBatch();
+		if (++pending == BATCH_SIZE) {
+		    update.executeBatch();
+		    pending = 0;
+		}
+	    }
+	    update.executeBatch();
+	} finally {
+	    update.close();
+	}
+	return changed.size();
+    }
+    
+    private static boolean addTrackOf(final Snapshot snapshot, final Integer spotID, final Set<Integer> trackIDs) {
+	final Integer trackID = snapshot.trackOfSpot.get(spotID);
+	return null != trackID && trackIDs.add(trackID);
+    }
+    
+    /**
+     * Checks that the database is a single movie export with exactly the
+     * columns of the current features.
+     */
+    private static boolean compatible(final Connection connection, final Columns columns) throws SQLException {
+	final Set<String> tracks = columnNames(connection, "tracks");
+	final Set<String> spots = columnNames(connection, "spots");
+	final Set<String> edges = columnNames(connection, "edges");
+	if (spots.contains("movie_id") || !edges.contains("source_id") || tracks.size() != columns.track.length + 1
+		|| spots.size() != columns.spot.length + 2 || edges.size() != columns.edge.length + 4)
+	    return false;
+	return tracks.containsAll(lowerCase(columns.track)) && spots.containsAll(lowerCase(columns.spot))
+		&& edges.containsAll(lowerCase(columns.edge));
+    }
+    
+    private static List<String> lowerCase(final String[] names) {
+	final List<String> lower = new ArrayList<String>(names.length);
+	for (final String name : names)
+	    lower.add(name.toLowerCase());
+	return lower;
     }
     
+    /**
+     * Runs a query ending in <code>IN </code> for the IDs, in chunks of
+     * {@value #IN_SIZE}, and collects the integers of the first column.
+     */
+    private static List<Integer> select(final Connection connection, final String query, final Collection<Integer> ids) throws SQLException {
+	final List<Integer> result = new ArrayList<Integer>();
+	final Statement statement = connection.createStatement();
+	try {
+	    for (final String list : inLists(ids)) {
+		final ResultSet rs = statement.executeQuery(query + list);
+		while (rs.next())
+		    result.add(rs.getInt(1));
+		rs.close();
+	    }
+	} finally {
+	    statement.close();
+	}
+	return result;
+    }
+    
+    private static List<String> inLists(final Collection<Integer> ids) {
+	final List<String> lists = new ArrayList<String>();
+	final StringBuilder str = new StringBuilder();
+	int n = 0;
+	for (final Integer id : ids) {
+	    str.append(n == 0 ? "(" : ", ").append(id.intValue());
+	    if (++n == IN_SIZE) {
+		lists.add(str.append(')').toString());
+		str.setLength(0);
+		n = 0;
+	    }
+	}
+	if (n > 0)
+	    lists.add(str.append(')').toString());
+	return lists;
+    }
+    
+    /**
+     * The spots and tracks changed since the last export.
+     */
+    private static final class Changes {
+
+	final Set<Integer> spotIDs;
+
+	final Set<Integer> trackIDs;
+
+	Changes(final Set<Integer> spotIDs, final Set<Integer> trackIDs) {
+	    this.spotIDs = spotIDs;
+	    this.trackIDs = trackIDs;
+	}
+
+	int size() {
+	    return spotIDs.size() + trackIDs.size();
+	}
+    }
+
+    /**
+     * Records the spots and tracks modified after an export of a model. Only
+     * model modifications can be followed; recomputed spots, tracks or track
+     * visibility require a full export.
+     */
+    private static final class ChangeRecorder implements ModelChangeListener {
+
+	/** Weak, the recorder is kept in a map keyed by the model. */
+	private final WeakReference<Model> model;
+
+	private Set<Integer> spotIDs = new HashSet<Integer>();
+
+	private Set<Integer> trackIDs = new HashSet<Integer>();
+
+	private File file;
+
+	private long length, modified;
+
+	private boolean valid;
+
+	ChangeRecorder(final Model model) {
+	    this.model = new WeakReference<Model>(model);
+	}
+
+	@Override
+	public synchronized void modelChanged(final ModelChangeEvent event) {
+	    if (event.getEventID() == ModelChangeEvent.SPOTS_FILTERED)
+		return;
+	    if (event.getEventID() != ModelChangeEvent.MODEL_MODIFIED) {
+		valid = false;
+		return;
+	    }
+	    if (null != event.getSpots())
+		for (final Spot spot : event.getSpots())
+		    spotIDs.add(spot.ID());
+	    final Model m = model.get();
+	    if (null != event.getEdges() && null != m) {
+		for (final DefaultWeightedEdge edge : event.getEdges()) {
+		    try {
+			spotIDs.add(m.getTrackModel().getEdgeSource(edge).ID());
+			spotIDs.add(m.getTrackModel().getEdgeTarget(edge).ID());
+		    } catch (final RuntimeException e) {
+			// removed edge, its tracks are in the updated tracks
+		    }
+		}
+	    }
+	    if (null != event.getTrackUpdated())
+		trackIDs.addAll(event.getTrackUpdated());
+	}
+
+	/**
+	 * Takes the recorded changes and starts recording anew.
+	 * 
+	 * @return the changes, or <code>null</code> if the target is not the
+	 *         unmodified file of the last export
+	 */
+	synchronized Changes drain(final File target) {
+	    final boolean same = valid && null != file && file.equals(target.getAbsoluteFile()) && target.length() == length
+		    && target.lastModified() == modified;
+	    final Changes changes = same ? new Changes(spotIDs, trackIDs) : null;
+	    spotIDs = new HashSet<Integer>();
+	    trackIDs = new HashSet<Integer>();
+	    valid = true;
+	    return changes;
+	}
+
+	synchronized void exported(final File target) {
+	    file = target.getAbsoluteFile();
+	    length = target.length();
+	    modified = target.lastModified();
+	}
+
+	synchronized void invalidate() {
+	    valid = false;
+	}
+    }
+
+    /**
+     * The exported features and their types.
+     */
+    private static final class Columns {
+
+	final String[] spot, edge, track;
+
+	final boolean[] intSpot, intEdge, intTrack;
+
+	Columns(final FeatureModel fm) {
+	    spot = toArray(fm.getSpotFeatures());
+	    edge = toArray(fm.getEdgeFeatures());
+	    track = toArray(fm.getTrackFeatures());
+	    intSpot = isInt(spot, fm.getSpotFeatureIsInt());
+	    intEdge = isInt(edge, fm.getEdgeFeatureIsInt());
+	    intTrack = isInt(track, fm.getTrackFeatureIsInt());
+	}
+    }
+
+    /**
+     * A copy of the structure of the model, taken on the thread editing it,
+     * so a background export neither sees nor disturbs later edits of the
+     * graph: the visible tracks with their spots and edges, and the track of
+     * every spot. The spot and edge feature values are not copied, they are
+     * read from the concurrent feature maps by the threads of the pipeline.
+     */
+    private static final class Snapshot {
+
+	final Columns columns;
+
+	/** The visible tracks, in model order. */
+	final List<Integer> trackIDs;
+
+	final Set<Integer> allTrackIDs;
+
+	final Map<Integer, Integer> trackOfSpot = new HashMap<Integer, Integer>();
+
+	private final FeatureModel fm;
+
+	private final Map<Integer, TrackGraph> graphs = new HashMap<Integer, TrackGraph>();
+
+	Snapshot(final Model model) {
+	    final TrackModel tm = model.getTrackModel();
+	    fm = model.getFeatureModel();
+	    columns = new Columns(fm);
+	    trackIDs = new ArrayList<Integer>(tm.trackIDs(true));
+	    allTrackIDs = new HashSet<Integer>(tm.trackIDs(false));
+	    for (final Integer trackID : allTrackIDs)
+		for (final Spot spot : tm.trackSpots(trackID))
+		    trackOfSpot.put(spot.ID(), trackID);
+	    for (final Integer trackID : trackIDs)
+		graphs.put(trackID, new TrackGraph(model, columns, trackID));
+	}
+
+	boolean isVisible(final Integer trackID) {
+	    return graphs.containsKey(trackID);
+	}
+
+	/**
+	 * Gets the track feature values of a visible track, in column order.
+	 * 
+	 * @return the values, or <code>null</code> if the track is not visible
+	 */
+	double[] trackValues(final Integer trackID) {
+	    final TrackGraph graph = graphs.get(trackID);
+	    return null == graph ? null : graph.track;
+	}
+
+	ExportPipeline.Formatter<TrackRows> rows() {
+	    return new ExportPipeline.Formatter<TrackRows>() {
+		@Override
+		public TrackRows format(final Integer trackID) {
+		    return new TrackRows(fm, columns, graphs.get(trackID));
+		}
+	    };
+	}
+    }
+
+    /**
+     * The spots and edges of one track and its track feature values. The
+     * edge ends are resolved here, the graph must not be read by other
+     * threads while it is edited.
+     */
+    private static final class TrackGraph {
+
+	final double[] track;
+
+	final Spot[] spots;
+
+	final DefaultWeightedEdge[] edges;
+
+	final int[] sourceIDs, targetIDs;
+
+	TrackGraph(final Model model, final Columns columns, final Integer trackID) {
+	    final FeatureModel fm = model.getFeatureModel();
+	    final TrackModel tm = model.getTrackModel();
+	    track = new double[columns.track.length];
+	    for (int i = 0; i < track.length; i++)
+		track[i] = value(fm.getTrackFeature(trackID, columns.track[i]));
+	    spots = tm.trackSpots(trackID).toArray(new Spot[0]);
+	    edges = tm.trackEdges(trackID).toArray(new DefaultWeightedEdge[0]);
+	    sourceIDs = new int[edges.length];
+	    targetIDs = new int[edges.length];
+	    for (int j = 0; j < edges.length; j++) {
+		sourceIDs[j] = tm.getEdgeSource(edges[j]).ID();
+		targetIDs[j] = tm.getEdgeTarget(edges[j]).ID();
+	    }
+	}
+    }
+
+    /**
+     * The feature values of one track, its spots sorted by time and its edges.
+     */
+    private static final class TrackRows {
+
+	final double[] track;
+
+	final int[] spotIDs;
+
+	final double[][] spots;
+
+	final int[] sourceIDs, targetIDs;
+
+	final double[][] edges;
+
+	TrackRows(final FeatureModel fm, final Columns columns, final TrackGraph graph) {
+	    track = graph.track;
+
+	    // Sort them by time
+	    final Spot[] sortedTrack = graph.spots.clone();
+	    Arrays.sort(sortedTrack, Spot.timeComparator);
+	    spotIDs = new int[sortedTrack.length];
+	    spots = new double[sortedTrack.length][columns.spot.length];
+	    for (int j = 0; j < sortedTrack.length; j++) {
+		spotIDs[j] = sortedTrack[j].ID();
+		for (int i = 0; i < columns.spot.length; i++)
+		    spots[j][i] = value(sortedTrack[j].getFeature(columns.spot[i]));
+	    }
+
+	    sourceIDs = graph.sourceIDs;
+	    targetIDs = graph.targetIDs;
+	    edges = new double[graph.edges.length][columns.edge.length];
+	    for (int j = 0; j < edges.length; j++)
+		for (int i = 0; i < columns.edge.length; i++)
+		    edges[j][i] = value(fm.getEdgeFeature(graph.edges[j], columns.edge[i]));
+	}
+
+	int size() {
+	    return 1 + spots.length + edges.length;
+	}
+    }
+
+    /**
+     * Inserts the rows of whole tracks through reusable prepared statements.
+     * If a movie ID is given, it is written as first key of every row. Rows
+     * are committed every <code>commitSize</code> rows and on
+     * {@link #finish()}.
+     */
+    private static final class TrackRowWriter implements ExportPipeline.Writer<TrackRows> {
+
+	private final Connection connection;
+
+	private final Columns columns;
+
+	private final PreparedStatement insertTrack, insertSpot, insertEdge;
+
+	private final int movieID;
+
+	private final int keys;
+
+	private final long commitSize;
+
+	private long rows, pending, uncommitted;
 
-    private static Statement createDatabase() throws SQLException {
+	TrackRowWriter(final Connection connection, final Columns columns) throws SQLException {
+	    this(connection, columns, -1, COMMIT_SIZE);
+	}
+
+	TrackRowWriter(final Connection connection, final Columns columns, final int movieID, final long commitSize) throws SQLException {
+	    this.connection = connection;
+	    this.columns = columns;
+	    this.movieID = movieID;
+	    this.commitSize = commitSize;
+	    final String movie = movieID < 0 ? "" : "movie_id, ";
+	    keys = movieID < 0 ? 0 : 1;
+	    insertTrack = connection.prepareStatement(insertQuery("tracks", movie + "id", columns.track));
+	    insertSpot = connection.prepareStatement(insertQuery("spots", movie + "id, track_id", columns.spot));
+	    insertEdge = connection.prepareStatement(insertQuery("edges", movie + "track_id, source_id, target_id", columns.edge));
+	}
+
+	@Override
+	public void write(final Integer trackID, final TrackRows batch) throws SQLException {
+	    if (keys > 0) {
+		insertTrack.setInt(1, movieID);
+		insertSpot.setInt(1, movieID);
+		insertEdge.setInt(1, movieID);
+	    }
+	    insertTrack.setInt(keys + 1, trackID.intValue());
+	    for (int i = 0; i < columns.track.length; i++)
+		bind(insertTrack, keys + i + 2, batch.track[i], columns.intTrack[i]);
+	    insertTrack.addBatch();
+
+	    for (int j = 0; j < batch.spots.length; j++) {
+		insertSpot.setInt(keys + 1, batch.spotIDs[j]);
+		insertSpot.setInt(keys + 2, trackID.intValue());
+		for (int i = 0; i < columns.spot.length; i++)
+		    bind(insertSpot, keys + i + 3, batch.spots[j][i], columns.intSpot[i]);
+		insertSpot.addBatch();
+	    }
+
+	    for (int j = 0; j < batch.edges.length; j++) {
+		insertEdge.setInt(keys + 1, trackID.intValue());
+		insertEdge.setInt(keys + 2, batch.sourceIDs[j]);
+		insertEdge.setInt(keys + 3, batch.targetIDs[j]);
+		for (int i = 0; i < columns.edge.length; i++)
+		    bind(insertEdge, keys + i + 4, batch.edges[j][i], columns.intEdge[i]);
+		insertEdge.addBatch();
+	    }
+
+	    rows += batch.size();
+	    pending += batch.size();
+	    if (pending >= BATCH_SIZE) {
+		executeBatches();
+		if (uncommitted >= commitSize) {
+		    connection.commit();
+		    uncommitted = 0;
+		}
+	    }
+	}
+
+	private void executeBatches() throws SQLException {
+	    insertTrack.executeBatch();
+	    insertSpot.executeBatch();
+	    insertEdge.executeBatch();
+	    uncommitted += pending;
+	    pending = 0;
+	}
+
+	void flush() throws SQLException {
+	    executeBatches();
+	}
+
+	void finish() throws SQLException {
+	    executeBatches();
+	    connection.commit();
+	    uncommitted = 0;
+	}
+
+	long getRows() {
+	    return rows;
+	}
+
+	void close() throws SQLException {
+	    insertTrack.close();
+	    insertSpot.close();
+	    insertEdge.close();
+	}
+    }
+
+    private static String[] toArray(final Collection<String> features) {
+	return features.toArray(new String[features.size()]);
+    }
+
+    private static boolean[] isInt(final String[] features, final Map<String, Boolean> intMap) {
+	final boolean[] isInt = new boolean[features.length];
+	for (int i = 0; i < features.length; i++)
+	    isInt[i] = Boolean.TRUE.equals(intMap.get(features[i]));
+	return isInt;
+    }
+
+    private static String columnDefinitions(final String[] features, final boolean[] isInt) {
+	final StringBuilder str = new StringBuilder();
+	for (int i = 0; i < features.length; i++)
+	    str.append(", ").append(features[i].toLowerCase()).append(columnType(isInt[i]));
+	return str.toString();
+    }
+
+    private static String columnType(final boolean isInt) {
+	return isInt ? " INTEGER" : " FLOAT (5,8)";
+    }
+
+    private static Set<String> columnNames(final Connection connection, final String table) throws SQLException {
+	final Set<String> names = new HashSet<String>();
+	final Statement statement = connection.createStatement();
+	try {
+	    // no result set at all for a missing table
+	    if (statement.execute("PRAGMA table_info(" + table + ")")) {
+		final ResultSet columns = statement.getResultSet();
+		while (columns.next())
+		    names.add(columns.getString("name").toLowerCase());
+		columns.close();
+	    }
+	} finally {
+	    statement.close();
+	}
+	return names;
+    }
+
+    private static String insertQuery(final String table, final String keys, final String[] features) {
+	final StringBuilder columns = new StringBuilder(keys);
+	final StringBuilder values = new StringBuilder();
+	for (int i = 0; i < keys.split(",").length; i++)
+	    values.append(i == 0 ? "?" : ", ?");
+	for (final String feature : features) {
+	    columns.append(", ").append(feature.toLowerCase());
+	    values.append(", ?");
+	}
+	return "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")";
+    }
+
+    /**
+     * Null, NaN and infinite values are stored as 0.
+     */
+    private static double value(final Double val) {
+	return (val == null || Double.isNaN(val) || Double.isInfinite(val)) ? 0d : val.doubleValue();
+    }
+
+    private static void bind(final PreparedStatement statement, final int index, final double value, final boolean isInt) throws SQLException {
+	if (isInt)
+	    statement.setInt(index, (int) value);
+	else
+	    statement.setFloat(index, (float) value);
+    }
+
+    private static String rate(final long rows, final long millis) {
+	return String.format(Locale.US, "(%d rows, %.0f rows/s)", rows, rows * 1000d / Math.max(1, millis));
+    }
+
+    private static void backup(final Connection connection, final File file) throws SQLException {
+	final Statement statement = connection.createStatement();
+	try {
+	    statement.executeUpdate("backup to '"+ file.getAbsolutePath() + "'");
+	} finally {
+	    statement.close();
+	}
+    }
+
+    private static Connection createDatabase(final String url) throws SQLException {
 	try {
 		Class.forName("org.sqlite.JDBC");
 	} catch (ClassNotFoundException e) {
 		System.err.println(e.getMessage());
 	}
-	Connection connection = null;
-	connection = DriverManager.getConnection("jdbc:sqlite::memory:");
-	Statement statement = connection.createStatement();
-	statement.setQueryTimeout(30);
-	statement.executeUpdate("PRAGMA foreign_keys = ON");
-	return statement;
+	return DriverManager.getConnection(url);
     }
 
 
@@ -0,0 +1,180 @@
+package net.chicoronny.trackmate.io;
+
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.units.quantity.Time;
+
+/**
+ * The Class BioFormatsPlaneSource.
+ *
+ * Reads the planes of one series of a movie with Bio-Formats. RGB images are
+ * split into channels. Several sources may share the reader of a file, so
+ * planes are read one at a time under the lock of the {@link SharedReader}.
+ */
+public class BioFormatsPlaneSource implements PlaneSource {
+
+    /** The reader. */
+    private final SharedReader shared;
+
+    /** The series. */
+    private final int series;
+
+    /** The dimensions of the series. */
+    private final int width, height, sizeC, sizeZ, sizeT;
+
+    /** The pixel type of the series. */
+    private final int pixelType;
+
+    /** The calibration from the OME metadata. */
+    private final Calibration calibration;
+
+    /** Whether the reader was released. */
+    private boolean closed;
+
+    /**
+     * Opens the first series of a movie.
+     *
+     * @param file
+     *            the movie file
+     * @throws IOException
+     *             if the file cannot be read or its format is unknown
+     */
+    public BioFormatsPlaneSource(final File file) throws IOException {
+	this(new SharedReader(file), 0);
+    }
+
+    /**
+     * Opens a series of a shared reader. The source is a user of the reader
+     * until it is closed.
+     *
+     * @param shared
+     *            the reader
+     * @param series
+     *            the series, 0-based
+     * @throws IOException
+     *             if the file cannot be read or has no such series
+     */
+    public BioFormatsPlaneSource(final SharedReader shared, final int series) throws IOException {
+	this.shared = shared;
+	this.series = series;
+	shared.retain();
+	try {
+	    synchronized (shared) {
+		final ImageProcessorReader reader = shared.getReader();
+		if (series >= reader.getSeriesCount())
+		    throw new IOException(shared.getFile().getName() + " has no series " + series + ".");
+		reader.setSeries(series);
+		width = reader.getSizeX();
+		height = reader.getSizeY();
+		sizeC = reader.getSizeC();
+		sizeZ = reader.getSizeZ();
+		sizeT = reader.getSizeT();
+		pixelType = reader.getPixelType();
+		calibration = calibration(shared.getMetadata(), series);
+	    }
+	} catch (final IOException e) {
+	    shared.release();
+	    throw e;
+	}
+    }
+
+    private static Calibration calibration(final IMetadata meta, final int series) {
+	final Calibration calibration = new Calibration();
+	final Length x = meta.getPixelsPhysicalSizeX(series);
+	final Length y = meta.getPixelsPhysicalSizeY(series);
+	final Length z = meta.getPixelsPhysicalSizeZ(series);
+	final Time dt = meta.getPixelsTimeIncrement(series);
+	calibration.pixelWidth = micron(x, 1);
+	calibration.pixelHeight = micron(y, calibration.pixelWidth);
+	calibration.pixelDepth = micron(z, 1);
+	if (null != x)
+	    calibration.setUnit("micron");
+	if (null != dt && null != dt.value(UNITS.SECOND)) {
+	    calibration.frameInterval = dt.value(UNITS.SECOND).doubleValue();
+	    calibration.setTimeUnit("sec");
+	}
+	return calibration;
+    }
+
+    private static double micron(final Length length, final double fallback) {
+	if (null == length || null == length.value(UNITS.MICROMETER))
+	    return fallback;
+	return length.value(UNITS.MICROMETER).doubleValue();
+    }
+
+    @Override
+    public int getWidth() {
+	return width;
+    }
+
+    @Override
+    public int getHeight() {
+	return height;
+    }
+
+    @Override
+    public int getSizeC() {
+	return sizeC;
+    }
+
+    @Override
+    public int getSizeZ() {
+	return sizeZ;
+    }
+
+    @Override
+    public int getSizeT() {
+	return sizeT;
+    }
+
+    @Override
+    public int getBitDepth() {
+	switch (pixelType) {
+	case FormatTools.INT8:
+	case FormatTools.UINT8:
+	    return 8;
+	case FormatTools.INT16:
+	case FormatTools.UINT16:
+	    return 16;
+	default:
+	    // 32 bit and double are read as float
+	    return 32;
+	}
+    }
+
+    @Override
+    public Calibration getCalibration() {
+	return calibration.copy();
+    }
+
+    @Override
+    public ImageProcessor openPlane(final int c, final int z, final int t) throws IOException {
+	synchronized (shared) {
+	    final ImageProcessorReader reader = shared.getReader();
+	    reader.setSeries(series);
+	    try {
+		return reader.openProcessors(reader.getIndex(z, c, t))[0];
+	    } catch (final FormatException e) {
+		throw new IOException(e.getMessage(), e);
+	    }
+	}
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+	if (closed)
+	    return;
+	closed = true;
+	shared.release();
+    }
+}
@@ -0,0 +1,195 @@
+package net.chicoronny.trackmate.io;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Class LazyVirtualStack.
+ *
+ * A virtual stack reading its planes from a {@link PlaneSource} on demand.
+ * The last planes are kept in a small LRU cache, and a request for a plane
+ * reads the same plane of the next frames in the background, since
+ * TrackMate processes a movie frame by frame. The memory used stays
+ * constant in the number of frames. Planes are in the hyperstack order of
+ * ImageJ: channels first, then slices, then frames.
+ * <p>
+ * The returned processors are shared with the cache and must not be
+ * modified.
+ */
+public class LazyVirtualStack extends VirtualStack {
+
+    /** The source of the planes. */
+    private final PlaneSource source;
+
+    /** The number of channels, slices and frames. */
+    private final int sizeC, sizeZ, sizeT;
+
+    /** The number of frames read ahead. */
+    private final int readAhead;
+
+    /** The loaded and loading planes by 0-based index, in access order. */
+    private final Map<Integer, FutureTask<ImageProcessor>> cache;
+
+    /** The thread reading ahead. */
+    private final ExecutorService prefetch;
+
+    /**
+     * Instantiates a new lazy stack.
+     *
+     * @param source
+     *            the source of the planes
+     * @param cacheFrames
+     *            the number of frames kept in the cache, all their channels
+     *            and slices
+     * @param readAhead
+     *            the number of frames read ahead, 0 for none
+     */
+    public LazyVirtualStack(final PlaneSource source, final int cacheFrames, final int readAhead) {
+	super(source.getWidth(), source.getHeight(), null, null);
+	this.source = source;
+	this.sizeC = source.getSizeC();
+	this.sizeZ = source.getSizeZ();
+	this.sizeT = source.getSizeT();
+	this.readAhead = Math.max(0, readAhead);
+	final int capacity = Math.max(1, cacheFrames + this.readAhead) * sizeC * sizeZ;
+	cache = new LinkedHashMap<Integer, FutureTask<ImageProcessor>>(16, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected boolean removeEldestEntry(final Map.Entry<Integer, FutureTask<ImageProcessor>> eldest) {
+		return size() > capacity;
+	    }
+	};
+	prefetch = Executors.newSingleThreadExecutor(new ThreadFactory() {
+	    @Override
+	    public Thread newThread(final Runnable r) {
+		final Thread t = new Thread(r, "TrackMate-Read-Ahead");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+    }
+
+    @Override
+    public int getSize() {
+	return sizeC * sizeZ * sizeT;
+    }
+
+    @Override
+    public int getBitDepth() {
+	return source.getBitDepth();
+    }
+
+    @Override
+    public String getSliceLabel(final int n) {
+	return null;
+    }
+
+    @Override
+    public ImageProcessor getProcessor(final int n) {
+	final int index = n - 1;
+	final int t = index / (sizeC * sizeZ);
+	for (int ahead = 1; ahead <= readAhead && t + ahead < sizeT; ahead++) {
+	    final FutureTask<ImageProcessor> task = task(index + ahead * sizeC * sizeZ, false);
+	    if (null != task)
+		prefetch.execute(task);
+	}
+	while (true) {
+	    final FutureTask<ImageProcessor> task = task(index, true);
+	    // runs only once, if the plane is neither loaded nor loading
+	    task.run();
+	    try {
+		return task.get();
+	    } catch (final InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new IllegalStateException("Interrupted while reading plane " + n, e);
+	    } catch (final CancellationException e) {
+		// a read ahead that was stopped, read the plane again
+		evict(index, task);
+	    } catch (final ExecutionException e) {
+		// the next request reads the plane again
+		evict(index, task);
+		if (e.getCause() instanceof IOException)
+		    throw new UncheckedIOException((IOException) e.getCause());
+		throw new IllegalStateException("Cannot read plane " + n, e.getCause());
+	    }
+	}
+    }
+
+    /**
+     * Gets the task loading a plane, and creates it if the plane is not in
+     * the cache.
+     *
+     * @return the task, or <code>null</code> if it exists and
+     *         <code>existing</code> is false
+     */
+    private FutureTask<ImageProcessor> task(final int index, final boolean existing) {
+	synchronized (cache) {
+	    FutureTask<ImageProcessor> task = cache.get(index);
+	    if (null != task)
+		return existing ? task : null;
+	    final int c = index % sizeC;
+	    final int z = (index / sizeC) % sizeZ;
+	    final int t = index / (sizeC * sizeZ);
+	    task = new FutureTask<ImageProcessor>(new Callable<ImageProcessor>() {
+		@Override
+		public ImageProcessor call() throws IOException {
+		    return source.openPlane(c, z, t);
+		}
+	    });
+	    cache.put(index, task);
+	    return task;
+	}
+    }
+
+    /**
+     * Removes a failed or cancelled task from the cache, unless it was
+     * replaced meanwhile.
+     */
+    private void evict(final int index, final FutureTask<ImageProcessor> task) {
+	synchronized (cache) {
+	    cache.remove(index, task);
+	}
+    }
+
+    @Override
+    public Object getPixels(final int n) {
+	return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public void setPixels(final Object pixels, final int n) {
+	// read only
+    }
+
+    @Override
+    public void deleteSlice(final int n) {
+	throw new UnsupportedOperationException("The planes of a lazy stack cannot be removed.");
+    }
+
+    /**
+     * Stops reading ahead, drops the cache and closes the source.
+     *
+     * @throws IOException
+     *             if the source cannot be closed
+     */
+    public void close() throws IOException {
+	prefetch.shutdownNow();
+	synchronized (cache) {
+	    cache.clear();
+	}
+	source.close();
+    }
+}
@@ -0,0 +1,168 @@
+package net.chicoronny.trackmate.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The Class ParallelGzipOutputStream.
+ * 
+ * Compresses its input in independent blocks on several threads. Each block
+ * becomes a complete gzip member and the members are written in input order,
+ * so the output is a valid multi-member gzip stream that standard
+ * <code>gunzip</code> and {@link java.util.zip.GZIPInputStream} read as one
+ * file. Only <code>java.util.zip</code> is used.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /** The default block size. */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    /** The underlying stream. */
+    private final OutputStream out;
+
+    /** The compression threads. */
+    private final ExecutorService executor;
+
+    /** The block size. */
+    private final int blockSize;
+
+    /** The maximal number of blocks in flight. */
+    private final int maxPending;
+
+    /** The compressed blocks in input order. */
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    /** The current block. */
+    private byte[] block;
+
+    /** The number of bytes in the current block. */
+    private int count;
+
+    /** True if at least one member was started. */
+    private boolean started;
+
+    /** True when closed. */
+    private boolean closed;
+
+    /**
+     * Instantiates a new parallel gzip output stream with blocks of
+     * {@value #DEFAULT_BLOCK_SIZE} bytes.
+     * 
+     * @param out
+     *            the underlying stream, closed with this stream
+     * @param numThreads
+     *            the number of compression threads
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final int numThreads) {
+	this(out, numThreads, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Instantiates a new parallel gzip output stream.
+     * 
+     * @param out
+     *            the underlying stream, closed with this stream
+     * @param numThreads
+     *            the number of compression threads
+     * @param blockSize
+     *            the number of uncompressed bytes per gzip member
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final int numThreads, final int blockSize) {
+	this.out = out;
+	this.executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+	this.blockSize = blockSize;
+	this.maxPending = 2 * Math.max(1, numThreads);
+	this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+	if (count == blockSize)
+	    submit();
+	block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+	while (len > 0) {
+	    if (count == blockSize)
+		submit();
+	    final int n = Math.min(len, blockSize - count);
+	    System.arraycopy(b, off, block, count, n);
+	    count += n;
+	    off += n;
+	    len -= n;
+	}
+    }
+
+    /**
+     * Writes all completed members. Data of the current block stays buffered,
+     * a flush does not cut a new member.
+     */
+    @Override
+    public void flush() throws IOException {
+	while (!pending.isEmpty())
+	    writeNext();
+	out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+	if (closed)
+	    return;
+	closed = true;
+	try {
+	    if (count > 0 || !started)
+		submit();
+	    flush();
+	} finally {
+	    executor.shutdownNow();
+	    out.close();
+	}
+    }
+
+    /**
+     * Hands the current block to the compression threads.
+     */
+    private void submit() throws IOException {
+	final byte[] data = block;
+	final int length = count;
+	pending.add(executor.submit(new Callable<byte[]>() {
+	    @Override
+	    public byte[] call() throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2 + 64);
+		final GZIPOutputStream gz = new GZIPOutputStream(bos, 1 << 16);
+		gz.write(data, 0, length);
+		gz.close();
+		return bos.toByteArray();
+	    }
+	}));
+	started = true;
+	block = new byte[blockSize];
+	count = 0;
+	while (pending.size() >= maxPending)
+	    writeNext();
+    }
+
+    /**
+     * Writes the oldest member, waiting for its compression if needed.
+     */
+    private void writeNext() throws IOException {
+	try {
+	    out.write(pending.poll().get());
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Compression interrupted.", e);
+	} catch (final ExecutionException e) {
+	    throw new IOException("Compression failed.", e.getCause());
+	}
+    }
+}
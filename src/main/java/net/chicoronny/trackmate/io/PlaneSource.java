@@ -0,0 +1,82 @@
+package net.chicoronny.trackmate.io;
+
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The Interface PlaneSource.
+ *
+ * Provides the planes of a movie one at a time, addressed by channel, slice
+ * and frame, so a {@link LazyVirtualStack} can read them on demand.
+ * Implementations must allow {@link #openPlane(int, int, int)} from several
+ * threads.
+ */
+public interface PlaneSource extends Closeable {
+
+    /**
+     * Gets the width of the planes.
+     *
+     * @return the width in pixels
+     */
+    int getWidth();
+
+    /**
+     * Gets the height of the planes.
+     *
+     * @return the height in pixels
+     */
+    int getHeight();
+
+    /**
+     * Gets the number of channels.
+     *
+     * @return the number of channels
+     */
+    int getSizeC();
+
+    /**
+     * Gets the number of slices.
+     *
+     * @return the number of slices
+     */
+    int getSizeZ();
+
+    /**
+     * Gets the number of frames.
+     *
+     * @return the number of frames
+     */
+    int getSizeT();
+
+    /**
+     * Gets the bit depth of the planes.
+     *
+     * @return 8, 16 or 32
+     */
+    int getBitDepth();
+
+    /**
+     * Gets the spatial and temporal calibration.
+     *
+     * @return the calibration
+     */
+    Calibration getCalibration();
+
+    /**
+     * Reads a plane.
+     *
+     * @param c
+     *            the channel, 0-based
+     * @param z
+     *            the slice, 0-based
+     * @param t
+     *            the frame, 0-based
+     * @return a new processor holding the plane
+     * @throws IOException
+     *             if the plane cannot be read
+     */
+    ImageProcessor openPlane(int c, int z, int t) throws IOException;
+}
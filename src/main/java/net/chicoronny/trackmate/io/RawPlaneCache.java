@@ -0,0 +1,298 @@
+package net.chicoronny.trackmate.io;
+
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The Class RawPlaneCache.
+ *
+ * A local copy of a movie as uncompressed planes in a memory-mapped file, so
+ * repeated runs on the same movie skip the decoding of compressed formats.
+ * The file holds a header of {@value #HEADER_SIZE} bytes with the dimensions,
+ * the calibration and the number of series of the movie, followed by the little-endian planes in the
+ * hyperstack order of ImageJ: channels first, then slices, then frames.
+ * Files larger than 2 GiB are mapped in several segments of whole planes.
+ * The planes are not used in place: {@link #openPlane(int, int, int)} copies
+ * each plane from the mapping into a new pixel array, as the processors of
+ * ImageJ need one. The cache saves the decoding, not the copy or the
+ * allocation.
+ */
+public class RawPlaneCache implements PlaneSource {
+
+    /** The suffix of cache files. */
+    public static final String SUFFIX = ".tmraw";
+
+    /** The magic number, "TMRW". */
+    private static final int MAGIC = 0x544D5257;
+
+    /** The file format version. */
+    private static final int VERSION = 2;
+
+    /** The size of the header, the planes start page aligned. */
+    private static final int HEADER_SIZE = 4096;
+
+    /** The maximal size of a mapped segment. */
+    private static final long SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    /** The maximal bytes of a unit in the header. */
+    private static final int MAX_STRING = 256;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The dimensions. */
+    private final int width, height, sizeC, sizeZ, sizeT;
+
+    /** The bit depth. */
+    private final int bitDepth;
+
+    /** The number of series of the decoded movie. */
+    private final int seriesCount;
+
+    /** The calibration. */
+    private final Calibration calibration;
+
+    /** The bytes of a plane. */
+    private final int planeBytes;
+
+    /** The planes per segment. */
+    private final int planesPerSegment;
+
+    /** The mapped segments. */
+    private final ByteBuffer[] segments;
+
+    /**
+     * Opens a cache file.
+     *
+     * @param file
+     *            the file written by {@link #write(PlaneSource, File)}
+     * @throws IOException
+     *             if the file cannot be read or is not a complete cache
+     */
+    public RawPlaneCache(final File file) throws IOException {
+	final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	    while (header.hasRemaining())
+		if (channel.read(header, header.position()) < 0)
+		    break;
+	    header.flip();
+	    if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+		throw new IOException(file.getName() + " is not a raw plane cache.");
+	    width = header.getInt();
+	    height = header.getInt();
+	    sizeC = header.getInt();
+	    sizeZ = header.getInt();
+	    sizeT = header.getInt();
+	    bitDepth = header.getInt();
+	    seriesCount = header.getInt();
+	    calibration = new Calibration();
+	    calibration.pixelWidth = header.getDouble();
+	    calibration.pixelHeight = header.getDouble();
+	    calibration.pixelDepth = header.getDouble();
+	    calibration.frameInterval = header.getDouble();
+	    calibration.setUnit(getString(header));
+	    calibration.setTimeUnit(getString(header));
+
+	    planeBytes = width * height * (bitDepth / 8);
+	    final long planes = (long) sizeC * sizeZ * sizeT;
+	    if (channel.size() != HEADER_SIZE + planes * planeBytes)
+		throw new IOException(file.getName() + " is truncated.");
+	    planesPerSegment = (int) Math.max(1, SEGMENT_SIZE / planeBytes);
+	    segments = new ByteBuffer[(int) ((planes + planesPerSegment - 1) / planesPerSegment)];
+	    for (int i = 0; i < segments.length; i++) {
+		final long first = (long) i * planesPerSegment;
+		final long count = Math.min(planesPerSegment, planes - first);
+		segments[i] = channel.map(MapMode.READ_ONLY, HEADER_SIZE + first * planeBytes, count * planeBytes);
+	    }
+	} finally {
+	    // the mappings stay valid
+	    channel.close();
+	}
+    }
+
+    /**
+     * Decodes all planes of a single series source into a cache file.
+     *
+     * @param source
+     *            the source
+     * @param file
+     *            the cache file
+     * @throws IOException
+     *             if a plane cannot be read or the file cannot be written
+     * @see #write(PlaneSource, int, File)
+     */
+    public static void write(final PlaneSource source, final File file) throws IOException {
+	write(source, 1, file);
+    }
+
+    /**
+     * Decodes all planes of a source into a cache file. The file is written
+     * next to the target and renamed when complete, so an interrupted
+     * conversion never leaves a truncated cache.
+     *
+     * @param source
+     *            the source
+     * @param seriesCount
+     *            the number of series of the movie holding the source
+     * @param file
+     *            the cache file
+     * @throws IOException
+     *             if a plane cannot be read or the file cannot be written
+     */
+    public static void write(final PlaneSource source, final int seriesCount, final File file) throws IOException {
+	final int bitDepth = source.getBitDepth();
+	final Calibration cal = source.getCalibration();
+	final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	header.putInt(MAGIC).putInt(VERSION);
+	header.putInt(source.getWidth()).putInt(source.getHeight());
+	header.putInt(source.getSizeC()).putInt(source.getSizeZ()).putInt(source.getSizeT()).putInt(bitDepth);
+	header.putInt(seriesCount);
+	header.putDouble(cal.pixelWidth).putDouble(cal.pixelHeight).putDouble(cal.pixelDepth).putDouble(cal.frameInterval);
+	putString(header, cal.getUnit());
+	putString(header, cal.getTimeUnit());
+	header.position(HEADER_SIZE).flip();
+
+	final File part = new File(file.getPath() + ".part");
+	final FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+		StandardOpenOption.WRITE);
+	try {
+	    try {
+		writeFully(channel, header);
+		final ByteBuffer plane = ByteBuffer.allocateDirect(source.getWidth() * source.getHeight() * (bitDepth / 8)).order(
+			ByteOrder.LITTLE_ENDIAN);
+		for (int t = 0; t < source.getSizeT(); t++)
+		    for (int z = 0; z < source.getSizeZ(); z++)
+			for (int c = 0; c < source.getSizeC(); c++) {
+			    final Object pixels = source.openPlane(c, z, t).getPixels();
+			    plane.clear();
+			    if (bitDepth == 8 && pixels instanceof byte[])
+				plane.put((byte[]) pixels);
+			    else if (bitDepth == 16 && pixels instanceof short[])
+				plane.asShortBuffer().put((short[]) pixels);
+			    else if (bitDepth == 32 && pixels instanceof float[])
+				plane.asFloatBuffer().put((float[]) pixels);
+			    else
+				throw new IOException("Unsupported pixels of " + bitDepth + " bit in plane " + c + "," + z + "," + t + ".");
+			    plane.position(plane.capacity()).flip();
+			    writeFully(channel, plane);
+			}
+	    } finally {
+		channel.close();
+	    }
+	    try {
+		Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	    } catch (final AtomicMoveNotSupportedException e) {
+		Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	    }
+	} finally {
+	    Files.deleteIfExists(part.toPath());
+	}
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+	while (buffer.hasRemaining())
+	    channel.write(buffer);
+    }
+
+    private static void putString(final ByteBuffer buffer, final String text) {
+	final byte[] bytes = (null == text ? "" : text).getBytes(UTF8);
+	final int length = Math.min(bytes.length, MAX_STRING);
+	buffer.putShort((short) length).put(bytes, 0, length);
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+	final byte[] bytes = new byte[buffer.getShort()];
+	buffer.get(bytes);
+	return new String(bytes, UTF8);
+    }
+
+    @Override
+    public int getWidth() {
+	return width;
+    }
+
+    @Override
+    public int getHeight() {
+	return height;
+    }
+
+    @Override
+    public int getSizeC() {
+	return sizeC;
+    }
+
+    @Override
+    public int getSizeZ() {
+	return sizeZ;
+    }
+
+    @Override
+    public int getSizeT() {
+	return sizeT;
+    }
+
+    @Override
+    public int getBitDepth() {
+	return bitDepth;
+    }
+
+    /**
+     * Gets the number of series of the movie the cache was decoded from, so
+     * the series of a movie can be listed without opening it.
+     *
+     * @return the number of series
+     */
+    public int getSeriesCount() {
+	return seriesCount;
+    }
+
+    @Override
+    public Calibration getCalibration() {
+	return calibration.copy();
+    }
+
+    @Override
+    public ImageProcessor openPlane(final int c, final int z, final int t) throws IOException {
+	final int index = (t * sizeZ + z) * sizeC + c;
+	// a duplicate per call, the mapped buffers are shared by all threads
+	final ByteBuffer plane = segments[index / planesPerSegment].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	plane.position((index % planesPerSegment) * planeBytes);
+	switch (bitDepth) {
+	case 8: {
+	    final byte[] pixels = new byte[width * height];
+	    plane.get(pixels);
+	    return new ByteProcessor(width, height, pixels, null);
+	}
+	case 16: {
+	    final short[] pixels = new short[width * height];
+	    plane.asShortBuffer().get(pixels);
+	    return new ShortProcessor(width, height, pixels, null);
+	}
+	default: {
+	    final float[] pixels = new float[width * height];
+	    plane.asFloatBuffer().get(pixels);
+	    return new FloatProcessor(width, height, pixels, null);
+	}
+	}
+    }
+
+    @Override
+    public void close() {
+	// the mappings are released by the garbage collector
+    }
+}
@@ -0,0 +1,113 @@
+package net.chicoronny.trackmate.io;
+
+import java.io.File;
+import java.io.IOException;
+
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+
+/**
+ * The Class SharedReader.
+ *
+ * A Bio-Formats reader of one file shared by the jobs working on its series
+ * and channels. The reader is opened by the first user and closed when the
+ * last one releases it. A Bio-Formats reader has one current series, so
+ * every access must hold the lock of this object from setting the series to
+ * the last read.
+ */
+public class SharedReader {
+
+    /** The file. */
+    private final File file;
+
+    /** The reader, null while closed. */
+    private ImageProcessorReader reader;
+
+    /** The OME metadata of all series. */
+    private IMetadata meta;
+
+    /** The number of users. */
+    private int users;
+
+    /**
+     * Instantiates a shared reader. The file is opened on first use.
+     *
+     * @param file
+     *            the file
+     */
+    public SharedReader(final File file) {
+	this.file = file;
+    }
+
+    /**
+     * Gets the file.
+     *
+     * @return the file
+     */
+    public File getFile() {
+	return file;
+    }
+
+    /**
+     * Registers a user, who must call {@link #release()} when done.
+     */
+    public synchronized void retain() {
+	users++;
+    }
+
+    /**
+     * Unregisters a user and closes the reader if it was the last one.
+     *
+     * @throws IOException
+     *             if the reader cannot be closed
+     */
+    public synchronized void release() throws IOException {
+	if (--users > 0 || null == reader)
+	    return;
+	final ImageProcessorReader r = reader;
+	reader = null;
+	meta = null;
+	r.close();
+    }
+
+    /**
+     * Gets the reader, opening the file if needed. Callers must hold the lock
+     * of this object while they use it.
+     *
+     * @return the reader, with RGB images split into channels
+     * @throws IOException
+     *             if the file cannot be read or its format is unknown
+     */
+    public synchronized ImageProcessorReader getReader() throws IOException {
+	if (null != reader)
+	    return reader;
+	final ImageProcessorReader r = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader()));
+	final IMetadata m = MetadataTools.createOMEXMLMetadata();
+	r.setMetadataStore(m);
+	try {
+	    r.setId(file.getAbsolutePath());
+	} catch (final FormatException e) {
+	    r.close();
+	    throw new IOException(e.getMessage(), e);
+	}
+	reader = r;
+	meta = m;
+	return reader;
+    }
+
+    /**
+     * Gets the OME metadata, opening the file if needed.
+     *
+     * @return the metadata of all series
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public synchronized IMetadata getMetadata() throws IOException {
+	getReader();
+	return meta;
+    }
+}
@@ -0,0 +1,257 @@
+package net.chicoronny.trackmate.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * The Class SpotSnapshotReader.
+ * 
+ * Opens a spot snapshot written by {@link SpotSnapshotWriter}. The columns are
+ * memory-mapped and read in place, nothing is copied onto the heap until
+ * {@link #toSpotCollection()} is called.
+ */
+public class SpotSnapshotReader {
+
+    /** The number of spots. */
+    private final int nSpots;
+
+    /** The frame numbers. */
+    private final int[] frames;
+
+    /** The index of the first spot of each frame. */
+    private final int[] frameStart;
+
+    /** The number of spots of each frame. */
+    private final int[] frameSize;
+
+    /** The feature names. */
+    private final String[] featureNames;
+
+    /** The spot IDs. */
+    private final IntBuffer ids;
+
+    /** The positions. */
+    private final DoubleBuffer x, y, z;
+
+    /** The radii. */
+    private final FloatBuffer radius;
+
+    /** The qualities. */
+    private final FloatBuffer quality;
+
+    /** The feature columns. */
+    private final DoubleBuffer[] features;
+
+    /**
+     * Memory-maps a snapshot file.
+     * 
+     * @param file
+     *            the snapshot file
+     * @throws IOException
+     *             if the file cannot be read or is not a spot snapshot
+     */
+    public SpotSnapshotReader(final File file) throws IOException {
+	final RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    final FileChannel channel = raf.getChannel();
+	    final ByteBuffer header = map(channel, 0, Math.min(channel.size(), 1 << 16));
+	    if (header.getInt() != SpotSnapshotWriter.MAGIC)
+		throw new IOException(file.getName() + " is not a spot snapshot.");
+	    final int version = header.getInt();
+	    if (version != SpotSnapshotWriter.VERSION)
+		throw new IOException("Unsupported spot snapshot version " + version + ".");
+	    nSpots = header.getInt();
+	    final int nFrames = header.getInt();
+	    featureNames = new String[header.getInt()];
+	    for (int i = 0; i < featureNames.length; i++) {
+		final byte[] bytes = new byte[header.getShort()];
+		header.get(bytes);
+		featureNames[i] = new String(bytes, SpotSnapshotWriter.UTF8);
+	    }
+	    long position = align(header.position());
+
+	    final IntBuffer table = map(channel, position, 12l * nFrames).asIntBuffer();
+	    frames = new int[nFrames];
+	    frameStart = new int[nFrames];
+	    frameSize = new int[nFrames];
+	    for (int i = 0; i < nFrames; i++) {
+		frames[i] = table.get();
+		frameStart[i] = table.get();
+		frameSize[i] = table.get();
+	    }
+	    position = align(position + 12l * nFrames);
+
+	    ids = map(channel, position, 4l * nSpots).asIntBuffer();
+	    position = align(position + 4l * nSpots);
+	    x = map(channel, position, 8l * nSpots).asDoubleBuffer();
+	    position += 8l * nSpots;
+	    y = map(channel, position, 8l * nSpots).asDoubleBuffer();
+	    position += 8l * nSpots;
+	    z = map(channel, position, 8l * nSpots).asDoubleBuffer();
+	    position += 8l * nSpots;
+	    radius = map(channel, position, 4l * nSpots).asFloatBuffer();
+	    position += 4l * nSpots;
+	    quality = map(channel, position, 4l * nSpots).asFloatBuffer();
+	    position = align(position + 4l * nSpots);
+	    features = new DoubleBuffer[featureNames.length];
+	    for (int i = 0; i < features.length; i++) {
+		features[i] = map(channel, position, 8l * nSpots).asDoubleBuffer();
+		position += 8l * nSpots;
+	    }
+	} finally {
+	    // mappings stay valid after the channel is closed
+	    raf.close();
+	}
+    }
+
+    private static ByteBuffer map(final FileChannel channel, final long position, final long size) throws IOException {
+	if (position + size > channel.size())
+	    throw new IOException("Truncated spot snapshot.");
+	return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long align(final long position) {
+	return (position + 7) & ~7l;
+    }
+
+    /**
+     * Gets the number of spots.
+     * 
+     * @return the number of spots
+     */
+    public int numSpots() {
+	return nSpots;
+    }
+
+    /**
+     * Gets the number of non-empty frames.
+     * 
+     * @return the number of frames
+     */
+    public int numFrames() {
+	return frames.length;
+    }
+
+    /**
+     * Gets the frame number of a frame table entry.
+     * 
+     * @param i
+     *            the frame table index
+     * @return the frame
+     */
+    public int getFrame(final int i) {
+	return frames[i];
+    }
+
+    /**
+     * Gets the index of the first spot of a frame table entry.
+     * 
+     * @param i
+     *            the frame table index
+     * @return the spot index
+     */
+    public int getFrameStart(final int i) {
+	return frameStart[i];
+    }
+
+    /**
+     * Gets the number of spots of a frame table entry.
+     * 
+     * @param i
+     *            the frame table index
+     * @return the number of spots
+     */
+    public int getFrameSize(final int i) {
+	return frameSize[i];
+    }
+
+    /**
+     * Gets the stored feature names.
+     * 
+     * @return the feature names
+     */
+    public List<String> getFeatureNames() {
+	return Collections.unmodifiableList(Arrays.asList(featureNames));
+    }
+
+    public int getID(final int spot) {
+	return ids.get(spot);
+    }
+
+    public double getX(final int spot) {
+	return x.get(spot);
+    }
+
+    public double getY(final int spot) {
+	return y.get(spot);
+    }
+
+    public double getZ(final int spot) {
+	return z.get(spot);
+    }
+
+    public float getRadius(final int spot) {
+	return radius.get(spot);
+    }
+
+    public float getQuality(final int spot) {
+	return quality.get(spot);
+    }
+
+    /**
+     * Gets a stored feature value.
+     * 
+     * @param spot
+     *            the spot index
+     * @param feature
+     *            the feature index, see {@link #getFeatureNames()}
+     * @return the value, NaN if it was missing
+     */
+    public double getFeature(final int spot, final int feature) {
+	return features[feature].get(spot);
+    }
+
+    /**
+     * Creates the spots of the snapshot, for example to feed the
+     * {@link net.chicoronny.trackmate.lineartracker.LinearTracker}. Spot IDs
+     * are kept, missing feature values are skipped.
+     * 
+     * @return a new spot collection
+     */
+    public SpotCollection toSpotCollection() {
+	final SpotCollection spots = new SpotCollection();
+	for (int f = 0; f < frames.length; f++) {
+	    final int end = frameStart[f] + frameSize[f];
+	    for (int i = frameStart[f]; i < end; i++) {
+		final Spot spot = new Spot(ids.get(i));
+		spot.putFeature(Spot.POSITION_X, x.get(i));
+		spot.putFeature(Spot.POSITION_Y, y.get(i));
+		spot.putFeature(Spot.POSITION_Z, z.get(i));
+		spot.putFeature(Spot.RADIUS, (double) radius.get(i));
+		spot.putFeature(Spot.QUALITY, (double) quality.get(i));
+		for (int j = 0; j < features.length; j++) {
+		    final double val = features[j].get(i);
+		    if (!Double.isNaN(val))
+			spot.putFeature(featureNames[j], val);
+		}
+		spots.add(spot, frames[f]);
+		spot.putFeature(SpotCollection.VISIBILITY, SpotCollection.ONE);
+	    }
+	}
+	return spots;
+    }
+}
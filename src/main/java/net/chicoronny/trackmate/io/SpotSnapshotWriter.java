@@ -0,0 +1,161 @@
+package net.chicoronny.trackmate.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * The Class SpotSnapshotWriter.
+ * 
+ * Writes a {@link SpotCollection} to the binary spot snapshot format read by
+ * {@link SpotSnapshotReader}. The file holds a header with the feature names,
+ * a per-frame offset table and one column per value: spot IDs, x, y, z,
+ * radius, quality and the selected features. Spots are stored sorted by
+ * frame, so the spots of one frame form a contiguous range in every column.
+ * 
+ * <pre>
+ * int    magic, version, nSpots, nFrames, nFeatures
+ * nFeatures x (short length, UTF-8 name)
+ * nFrames x (int frame, int first spot, int number of spots)
+ * int[nSpots]    IDs
+ * double[nSpots] x, y, z
+ * float[nSpots]  radius, quality
+ * double[nSpots] one column per feature
+ * </pre>
+ * 
+ * All values are little endian, every column starts at a multiple of 8 bytes.
+ */
+public class SpotSnapshotWriter {
+
+    /** The magic number, "TMSS". */
+    public static final int MAGIC = 0x544D5353;
+
+    /** The format version. */
+    public static final int VERSION = 1;
+
+    /** The charset of the feature names. */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The size of the write buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Write a snapshot of the spots.
+     * 
+     * @param spots
+     *            the spot collection
+     * @param features
+     *            the spot features to store in addition to position, radius
+     *            and quality; missing values are stored as NaN
+     * @param visibleOnly
+     *            if true only visible spots are written
+     * @param file
+     *            the target file
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static void write(final SpotCollection spots, final Collection<String> features, final boolean visibleOnly, final File file)
+	    throws IOException {
+	final List<Spot> ordered = new ArrayList<Spot>(spots.getNSpots(visibleOnly));
+	final List<int[]> frameTable = new ArrayList<int[]>();
+	for (final Integer frame : spots.keySet()) {
+	    final int first = ordered.size();
+	    final Iterator<Spot> it = spots.iterator(frame, visibleOnly);
+	    while (it.hasNext())
+		ordered.add(it.next());
+	    if (ordered.size() > first)
+		frameTable.add(new int[] { frame, first, ordered.size() - first });
+	}
+	final String[] featureNames = features.toArray(new String[features.size()]);
+	final int nSpots = ordered.size();
+
+	final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    raf.setLength(0);
+	    final FileChannel channel = raf.getChannel();
+	    final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	    buffer.putInt(MAGIC).putInt(VERSION).putInt(nSpots).putInt(frameTable.size()).putInt(featureNames.length);
+	    for (final String name : featureNames) {
+		final byte[] bytes = name.getBytes(UTF8);
+		ensure(channel, buffer, 2 + bytes.length);
+		buffer.putShort((short) bytes.length).put(bytes);
+	    }
+	    pad(channel, buffer);
+
+	    for (final int[] entry : frameTable) {
+		ensure(channel, buffer, 12);
+		buffer.putInt(entry[0]).putInt(entry[1]).putInt(entry[2]);
+	    }
+	    pad(channel, buffer);
+
+	    for (final Spot spot : ordered) {
+		ensure(channel, buffer, 4);
+		buffer.putInt(spot.ID());
+	    }
+	    pad(channel, buffer);
+
+	    for (final String feature : new String[] { Spot.POSITION_X, Spot.POSITION_Y, Spot.POSITION_Z }) {
+		for (final Spot spot : ordered) {
+		    ensure(channel, buffer, 8);
+		    buffer.putDouble(spot.getFeature(feature));
+		}
+	    }
+	    for (final String feature : new String[] { Spot.RADIUS, Spot.QUALITY }) {
+		for (final Spot spot : ordered) {
+		    ensure(channel, buffer, 4);
+		    buffer.putFloat(spot.getFeature(feature).floatValue());
+		}
+	    }
+	    pad(channel, buffer);
+
+	    for (final String feature : featureNames) {
+		for (final Spot spot : ordered) {
+		    ensure(channel, buffer, 8);
+		    final Double val = spot.getFeature(feature);
+		    buffer.putDouble(null == val ? Double.NaN : val.doubleValue());
+		}
+	    }
+	    flush(channel, buffer);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Flushes the buffer if it cannot take the given number of bytes.
+     */
+    private static void ensure(final FileChannel channel, final ByteBuffer buffer, final int bytes) throws IOException {
+	if (buffer.remaining() < bytes)
+	    flush(channel, buffer);
+    }
+
+    private static void flush(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining())
+	    channel.write(buffer);
+	buffer.clear();
+    }
+
+    /**
+     * Pads the output to the next multiple of 8 bytes.
+     */
+    private static void pad(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+	final long position = channel.position() + buffer.position();
+	final int padding = (int) ((8 - position % 8) % 8);
+	ensure(channel, buffer, padding);
+	for (int i = 0; i < padding; i++)
+	    buffer.put((byte) 0);
+    }
+}
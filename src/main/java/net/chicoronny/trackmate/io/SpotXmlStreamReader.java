@@ -0,0 +1,167 @@
+package net.chicoronny.trackmate.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * The Class SpotXmlStreamReader.
+ * 
+ * Reads the spots of a TrackMate XML file with a StAX parser straight into a
+ * {@link SpotCollection}, without building the DOM, the {@link fiji.plugin.trackmate.Model}
+ * or the feature model. Every numeric attribute of a spot is stored as a
+ * feature, so the spots keep their time, intensities and estimated diameter;
+ * missing position, radius, quality, frame, time and visibility get the
+ * defaults of TrackMate. Parsing stops at the end of the <code>AllSpots</code>
+ * element, tracks are ignored.
+ */
+public class SpotXmlStreamReader {
+
+    /** The spot collection element. */
+    private static final String ALL_SPOTS = "AllSpots";
+
+    /** The frame element. */
+    private static final String SPOTS_IN_FRAME = "SpotsInFrame";
+
+    /** The frame attribute. */
+    private static final String FRAME_ATTRIBUTE = "frame";
+
+    /** The spot element. */
+    private static final String SPOT = "Spot";
+
+    /** The spot ID attribute. */
+    private static final String ID_ATTRIBUTE = "ID";
+
+    /** The spot name attribute. */
+    private static final String NAME_ATTRIBUTE = "name";
+
+    /** The file. */
+    private final File file;
+
+    /** The error message. */
+    private String errorMessage;
+
+    /**
+     * Instantiates a new spot XML stream reader.
+     * 
+     * @param file
+     *            the TrackMate XML file
+     */
+    public SpotXmlStreamReader(final File file) {
+	this.file = file;
+    }
+
+    /**
+     * Reads the spots.
+     * 
+     * @return the spot collection, or <code>null</code> if reading failed
+     */
+    public SpotCollection readSpots() {
+	final XMLInputFactory factory = XMLInputFactory.newInstance();
+	factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+
+	final SpotCollection spots = new SpotCollection();
+	InputStream in = null;
+	XMLStreamReader reader = null;
+	try {
+	    in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+	    reader = factory.createXMLStreamReader(in);
+	    int frame = 0;
+	    boolean inSpots = false;
+	    while (reader.hasNext()) {
+		final int event = reader.next();
+		if (event == XMLStreamConstants.START_ELEMENT) {
+		    final String name = reader.getLocalName();
+		    if (ALL_SPOTS.equals(name)) {
+			inSpots = true;
+		    } else if (inSpots && SPOTS_IN_FRAME.equals(name)) {
+			frame = Integer.parseInt(reader.getAttributeValue(null, FRAME_ATTRIBUTE));
+		    } else if (inSpots && SPOT.equals(name)) {
+			final Spot spot = readSpot(reader, frame);
+			spots.add(spot, spot.getFeature(Spot.FRAME).intValue());
+		    }
+		} else if (event == XMLStreamConstants.END_ELEMENT && ALL_SPOTS.equals(reader.getLocalName())) {
+		    break;
+		}
+	    }
+	} catch (final IOException e) {
+	    errorMessage = "Error reading " + file.getName() + ": " + e.getMessage();
+	    return null;
+	} catch (final XMLStreamException e) {
+	    errorMessage = "Error parsing " + file.getName() + ": " + e.getMessage();
+	    return null;
+	} catch (final NumberFormatException e) {
+	    errorMessage = "Malformed number in " + file.getName() + ": " + e.getMessage();
+	    return null;
+	} finally {
+	    try {
+		if (null != reader)
+		    reader.close();
+		if (null != in)
+		    in.close();
+	    } catch (final Exception e) {
+		errorMessage = e.getMessage();
+	    }
+	}
+	return spots;
+    }
+
+    /**
+     * Creates a spot from the attributes of the current <code>Spot</code>
+     * element. Every attribute but the ID and the name is a feature value.
+     */
+    private static Spot readSpot(final XMLStreamReader reader, final int frame) {
+	int id = -1;
+	final Map<String, Double> features = new HashMap<String, Double>(2 * reader.getAttributeCount());
+	for (int i = 0; i < reader.getAttributeCount(); i++) {
+	    final String key = reader.getAttributeLocalName(i);
+	    final String value = reader.getAttributeValue(i);
+	    if (ID_ATTRIBUTE.equals(key))
+		id = Integer.parseInt(value);
+	    else if (!NAME_ATTRIBUTE.equals(key))
+		features.put(key, Double.valueOf(value));
+	}
+	putDefault(features, Spot.POSITION_X, 0);
+	putDefault(features, Spot.POSITION_Y, 0);
+	putDefault(features, Spot.POSITION_Z, 0);
+	putDefault(features, Spot.RADIUS, 0.5);
+	putDefault(features, Spot.QUALITY, -1);
+	putDefault(features, Spot.FRAME, frame);
+	// without calibration, the time of a spot is its frame
+	putDefault(features, Spot.POSITION_T, features.get(Spot.FRAME));
+	putDefault(features, SpotCollection.VISIBILITY, 1);
+
+	final Spot spot = id < 0 ? new Spot(features.get(Spot.POSITION_X), features.get(Spot.POSITION_Y), features.get(Spot.POSITION_Z),
+		features.get(Spot.RADIUS), features.get(Spot.QUALITY)) : new Spot(id);
+	for (final Map.Entry<String, Double> feature : features.entrySet())
+	    spot.putFeature(feature.getKey(), feature.getValue());
+	return spot;
+    }
+
+    private static void putDefault(final Map<String, Double> features, final String feature, final double value) {
+	if (!features.containsKey(feature))
+	    features.put(feature, value);
+    }
+
+    /**
+     * Gets the error message.
+     * 
+     * @return the error message
+     */
+    public String getErrorMessage() {
+	return errorMessage;
+    }
+}
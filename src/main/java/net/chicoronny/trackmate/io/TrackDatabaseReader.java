@@ -0,0 +1,489 @@
+package net.chicoronny.trackmate.io;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+
+/**
+ * The Class TrackDatabaseReader.
+ *
+ * Loads a database written by
+ * {@link net.chicoronny.trackmate.action.ExportTracksToSQL} back into a new
+ * {@link Model}, so it can go through the analyzers or the exporters again
+ * without detection and tracking. The spot, edge and track tables are split
+ * into rowid ranges; each worker reads its range over its own connection,
+ * decodes the rows and, for the spots, creates them and fills their feature
+ * maps. Only the graph is built on the calling thread, as it is not thread
+ * safe, together with the feature model entries of the edges and tracks,
+ * which need the new edges and track IDs. Edges are restored from their
+ * source and target spot IDs.
+ * Databases exported before these columns existed are linked by frame order
+ * within each track, which is exact for non-branching tracks.
+ * <p>
+ * Spot IDs are kept. Track IDs are assigned anew by the track model; the
+ * track features are moved over to the new IDs. Values exported as 0 for
+ * missing features cannot be told apart and are loaded as 0.
+ */
+public class TrackDatabaseReader {
+
+    /** The smallest rowid range handed to a worker. */
+    private static final long MIN_RANGE = 10000;
+
+    /** The file. */
+    private final File file;
+
+    /** The movie to read from a consolidated database. */
+    private int movieID = -1;
+
+    /** The number of threads reading the tables. */
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The error message. */
+    private String errorMessage;
+
+    /**
+     * Instantiates a new track database reader.
+     *
+     * @param file
+     *            the database file
+     */
+    public TrackDatabaseReader(final File file) {
+	this.file = file;
+    }
+
+    /**
+     * Selects the movie to read from a consolidated database.
+     *
+     * @param movieID
+     *            the ID of the movie in the movies table
+     */
+    public void setMovie(final int movieID) {
+	this.movieID = movieID;
+    }
+
+    /**
+     * Sets the number of threads reading the tables.
+     *
+     * @param numThreads
+     *            the number of threads
+     */
+    public void setNumThreads(final int numThreads) {
+	this.numThreads = numThreads;
+    }
+
+    /**
+     * Gets the error message.
+     *
+     * @return the error message
+     */
+    public String getErrorMessage() {
+	return errorMessage;
+    }
+
+    /**
+     * Reads the spots, edges and tracks with their features.
+     *
+     * @return a new model, or <code>null</code> if reading failed
+     */
+    public Model readModel() {
+	try {
+	    Class.forName("org.sqlite.JDBC");
+	} catch (final ClassNotFoundException e) {
+	    errorMessage = "SQLite driver not found.";
+	    return null;
+	}
+	final ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, numThreads));
+	final String url = "jdbc:sqlite:" + file.getAbsolutePath();
+	Connection connection = null;
+	try {
+	    connection = DriverManager.getConnection(url);
+	    final Table spotTable = new Table(connection, "spots");
+	    final Table edgeTable = new Table(connection, "edges");
+	    final Table trackTable = new Table(connection, "tracks");
+	    final String where;
+	    if (spotTable.has("movie_id")) {
+		if (movieID < 0) {
+		    errorMessage = file.getName() + " holds several movies, select one.";
+		    return null;
+		}
+		where = " WHERE movie_id = " + movieID;
+	    } else {
+		where = "";
+	    }
+
+	    final Model model = new Model();
+	    final FeatureModel fm = model.getFeatureModel();
+	    final Map<String, String> known = knownFeatures(fm);
+	    final String[] spotFeatures = spotTable.features(known, "id", "track_id");
+	    final String[] edgeFeatures = edgeTable.features(known, "id", "track_id", "source_id", "target_id");
+	    final String[] trackFeatures = trackTable.features(known, "id");
+	    declare(fm, spotTable, spotFeatures, edgeTable, edgeFeatures, trackTable, trackFeatures);
+
+	    // all tables read on the workers, each range over its own connection
+	    final Statement statement = connection.createStatement();
+	    final boolean linked = edgeTable.has("source_id") && edgeTable.has("target_id");
+	    final List<Future<RowRange>> spotRanges = new ArrayList<Future<RowRange>>();
+	    final List<Future<RowRange>> edgeRanges = new ArrayList<Future<RowRange>>();
+	    final List<Future<RowRange>> trackRanges = new ArrayList<Future<RowRange>>();
+	    final String spotQuery = "SELECT " + spotTable.select("id, track_id") + " FROM spots" + ranged(where);
+	    for (final long[] range : ranges(statement, "spots", where))
+		spotRanges.add(workers.submit(new SpotRange(url, spotQuery, range, spotFeatures)));
+	    if (linked) {
+		final String edgeQuery = "SELECT " + edgeTable.select("source_id, target_id") + " FROM edges" + ranged(where);
+		for (final long[] range : ranges(statement, "edges", where))
+		    edgeRanges.add(workers.submit(new RowRange(url, edgeQuery, range, 2, edgeFeatures.length)));
+	    }
+	    final String trackQuery = "SELECT " + trackTable.select("id") + " FROM tracks" + ranged(where);
+	    for (final long[] range : ranges(statement, "tracks", where))
+		trackRanges.add(workers.submit(new RowRange(url, trackQuery, range, 1, trackFeatures.length)));
+	    statement.close();
+
+	    final SpotCollection spots = new SpotCollection();
+	    final Map<Integer, Spot> spotByID = new HashMap<Integer, Spot>();
+	    final Map<Integer, List<Spot>> spotsByTrack = new HashMap<Integer, List<Spot>>();
+	    final SimpleWeightedGraph<Spot, DefaultWeightedEdge> graph = new SimpleWeightedGraph<Spot, DefaultWeightedEdge>(
+		    DefaultWeightedEdge.class);
+	    for (final Future<RowRange> future : spotRanges) {
+		final SpotRange done = (SpotRange) future.get();
+		for (int i = 0; i < done.spots.size(); i++) {
+		    final Spot spot = done.spots.get(i);
+		    final int trackID = done.keys.get(i)[1];
+		    final Double frame = spot.getFeature(Spot.FRAME);
+		    spots.add(spot, null == frame ? 0 : frame.intValue());
+		    spotByID.put(spot.ID(), spot);
+		    graph.addVertex(spot);
+		    List<Spot> track = spotsByTrack.get(trackID);
+		    if (null == track) {
+			track = new ArrayList<Spot>();
+			spotsByTrack.put(trackID, track);
+		    }
+		    track.add(spot);
+		}
+	    }
+
+	    // edges
+	    final Map<DefaultWeightedEdge, double[]> edgeValues = new HashMap<DefaultWeightedEdge, double[]>();
+	    if (linked) {
+		final int cost = Arrays.asList(edgeFeatures).indexOf(EdgeTargetAnalyzer.EDGE_COST);
+		for (final Future<RowRange> future : edgeRanges) {
+		    final RowRange done = future.get();
+		    for (int i = 0; i < done.keys.size(); i++) {
+			final Spot source = spotByID.get(done.keys.get(i)[0]);
+			final Spot target = spotByID.get(done.keys.get(i)[1]);
+			if (null == source || null == target || source == target)
+			    continue;
+			final DefaultWeightedEdge edge = graph.addEdge(source, target);
+			if (null == edge)
+			    continue;
+			final double[] values = done.values.get(i);
+			if (cost >= 0)
+			    graph.setEdgeWeight(edge, values[cost]);
+			edgeValues.put(edge, values);
+		    }
+		}
+	    } else {
+		model.getLogger().log("No source and target IDs in " + file.getName() + ", linking spots by frame.\n");
+		for (final List<Spot> track : spotsByTrack.values()) {
+		    final Spot[] sorted = track.toArray(new Spot[track.size()]);
+		    Arrays.sort(sorted, Spot.timeComparator);
+		    for (int i = 1; i < sorted.length; i++)
+			graph.addEdge(sorted[i - 1], sorted[i]);
+		}
+	    }
+
+	    model.beginUpdate();
+	    try {
+		model.setSpots(spots, false);
+		model.setTracks(graph, false);
+	    } finally {
+		model.endUpdate();
+	    }
+
+	    for (final Map.Entry<DefaultWeightedEdge, double[]> entry : edgeValues.entrySet())
+		for (int i = 0; i < edgeFeatures.length; i++)
+		    fm.putEdgeFeature(entry.getKey(), edgeFeatures[i], entry.getValue()[i]);
+
+	    // track features, moved to the new track IDs
+	    for (final Future<RowRange> future : trackRanges) {
+		final RowRange done = future.get();
+		for (int i = 0; i < done.keys.size(); i++) {
+		    final List<Spot> track = spotsByTrack.get(done.keys.get(i)[0]);
+		    if (null == track)
+			continue;
+		    final Integer trackID = model.getTrackModel().trackIDOf(track.get(0));
+		    if (null == trackID)
+			continue;
+		    final double[] values = done.values.get(i);
+		    for (int j = 0; j < trackFeatures.length; j++)
+			fm.putTrackFeature(trackID, trackFeatures[j], values[j]);
+		}
+	    }
+	    return model;
+	} catch (final SQLException e) {
+	    errorMessage = "Reading " + file.getName() + " failed: " + e.getMessage();
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    errorMessage = "Reading " + file.getName() + " interrupted.";
+	} catch (final ExecutionException e) {
+	    errorMessage = "Reading " + file.getName() + " failed: " + e.getCause().getMessage();
+	} finally {
+	    workers.shutdownNow();
+	    if (null != connection) {
+		try {
+		    connection.close();
+		} catch (final SQLException e) {
+		    // read only, nothing to lose
+		}
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Maps lower case column names to the feature names known to TrackMate.
+     */
+    private static Map<String, String> knownFeatures(final FeatureModel fm) {
+	final Map<String, String> known = new HashMap<String, String>();
+	for (final String feature : Spot.FEATURES)
+	    known.put(feature.toLowerCase(), feature);
+	for (final Collection<String> features : Arrays.asList(fm.getSpotFeatures(), fm.getEdgeFeatures(), fm.getTrackFeatures()))
+	    for (final String feature : features)
+		known.put(feature.toLowerCase(), feature);
+	return known;
+    }
+
+    /**
+     * Splits the rowids of the selected rows into one range per thread, each
+     * at least {@value #MIN_RANGE} rowids wide.
+     */
+    private List<long[]> ranges(final Statement statement, final String table, final String where) throws SQLException {
+	final List<long[]> ranges = new ArrayList<long[]>();
+	final ResultSet rs = statement.executeQuery("SELECT MIN(rowid), MAX(rowid) FROM " + table + where);
+	try {
+	    if (!rs.next())
+		return ranges;
+	    final long min = rs.getLong(1);
+	    if (rs.wasNull())
+		return ranges;
+	    final long max = rs.getLong(2);
+	    final long span = max - min + 1;
+	    final long n = Math.max(1, Math.min(Math.max(1, numThreads), span / MIN_RANGE));
+	    final long width = (span + n - 1) / n;
+	    for (long from = min; from <= max; from += width)
+		ranges.add(new long[] { from, Math.min(max, from + width - 1) });
+	} finally {
+	    rs.close();
+	}
+	return ranges;
+    }
+
+    /**
+     * Appends the rowid range to the movie selection.
+     */
+    private static String ranged(final String where) {
+	return (where.isEmpty() ? " WHERE" : where + " AND") + " rowid BETWEEN ? AND ?";
+    }
+
+    private static void declare(final FeatureModel fm, final Table spotTable, final String[] spotFeatures, final Table edgeTable,
+	    final String[] edgeFeatures, final Table trackTable, final String[] trackFeatures) {
+	final Collection<String> spotNew = new ArrayList<String>();
+	final Collection<String> edgeNew = new ArrayList<String>();
+	final Collection<String> trackNew = new ArrayList<String>();
+	final Map<String, String> names = new HashMap<String, String>();
+	final Map<String, Dimension> dimensions = new HashMap<String, Dimension>();
+	final Map<String, Boolean> isInt = new HashMap<String, Boolean>();
+	collect(spotFeatures, spotTable, fm.getSpotFeatures(), spotNew, names, dimensions, isInt);
+	collect(edgeFeatures, edgeTable, fm.getEdgeFeatures(), edgeNew, names, dimensions, isInt);
+	collect(trackFeatures, trackTable, fm.getTrackFeatures(), trackNew, names, dimensions, isInt);
+	fm.declareSpotFeatures(spotNew, names, names, dimensions, isInt);
+	fm.declareEdgeFeatures(edgeNew, names, names, dimensions, isInt);
+	fm.declareTrackFeatures(trackNew, names, names, dimensions, isInt);
+    }
+
+    private static void collect(final String[] features, final Table table, final Collection<String> declared, final Collection<String> undeclared,
+	    final Map<String, String> names, final Map<String, Dimension> dimensions, final Map<String, Boolean> isInt) {
+	for (final String feature : features) {
+	    if (declared.contains(feature))
+		continue;
+	    undeclared.add(feature);
+	    names.put(feature, feature);
+	    dimensions.put(feature, Dimension.NONE);
+	    isInt.put(feature, table.isInt(feature));
+	}
+    }
+
+    /**
+     * The columns of a table and their declared types.
+     */
+    private static final class Table {
+
+	private final Map<String, String> types = new HashMap<String, String>();
+
+	private final List<String> columns = new ArrayList<String>();
+
+	private String[] features;
+
+	Table(final Connection connection, final String name) throws SQLException {
+	    final Statement statement = connection.createStatement();
+	    try {
+		// no result set at all for a missing table
+		if (statement.execute("PRAGMA table_info(" + name + ")")) {
+		    final ResultSet rs = statement.getResultSet();
+		    while (rs.next()) {
+			final String column = rs.getString("name").toLowerCase();
+			columns.add(column);
+			types.put(column, rs.getString("type"));
+		    }
+		    rs.close();
+		}
+	    } finally {
+		statement.close();
+	    }
+	    if (columns.isEmpty())
+		throw new SQLException("No table " + name + ".");
+	}
+
+	boolean has(final String column) {
+	    return types.containsKey(column);
+	}
+
+	boolean isInt(final String feature) {
+	    return "INTEGER".equalsIgnoreCase(types.get(feature.toLowerCase()));
+	}
+
+	/**
+	 * The feature columns, named as TrackMate features.
+	 */
+	String[] features(final Map<String, String> known, final String... keys) {
+	    final List<String> keyList = Arrays.asList(keys);
+	    final List<String> result = new ArrayList<String>();
+	    for (final String column : columns) {
+		if (keyList.contains(column) || column.equals("movie_id"))
+		    continue;
+		final String feature = known.get(column);
+		result.add(null == feature ? column.toUpperCase() : feature);
+	    }
+	    features = result.toArray(new String[result.size()]);
+	    return features;
+	}
+
+	/**
+	 * The select list: the given keys followed by the feature columns.
+	 */
+	String select(final String keys) {
+	    final StringBuilder str = new StringBuilder(keys);
+	    for (final String feature : features)
+		str.append(", \"").append(feature.toLowerCase()).append('"');
+	    return str.toString();
+	}
+    }
+
+    /**
+     * The rows of a rowid range, read and decoded on a worker thread over its
+     * own connection: the integer keys first, then the feature values.
+     */
+    private static class RowRange implements Callable<RowRange> {
+
+	private final String url;
+
+	private final String query;
+
+	private final long[] range;
+
+	private final int nKeys;
+
+	private final int nValues;
+
+	final List<int[]> keys = new ArrayList<int[]>();
+
+	final List<double[]> values = new ArrayList<double[]>();
+
+	RowRange(final String url, final String query, final long[] range, final int nKeys, final int nValues) {
+	    this.url = url;
+	    this.query = query;
+	    this.range = range;
+	    this.nKeys = nKeys;
+	    this.nValues = nValues;
+	}
+
+	@Override
+	public RowRange call() throws SQLException {
+	    final Connection connection = DriverManager.getConnection(url);
+	    try {
+		final PreparedStatement statement = connection.prepareStatement(query);
+		statement.setLong(1, range[0]);
+		statement.setLong(2, range[1]);
+		final ResultSet rs = statement.executeQuery();
+		while (rs.next()) {
+		    final int[] key = new int[nKeys];
+		    for (int i = 0; i < nKeys; i++)
+			key[i] = rs.getInt(i + 1);
+		    final double[] row = new double[nValues];
+		    for (int i = 0; i < nValues; i++)
+			row[i] = rs.getDouble(nKeys + i + 1);
+		    add(key, row);
+		}
+		rs.close();
+		statement.close();
+	    } finally {
+		connection.close();
+	    }
+	    return this;
+	}
+
+	void add(final int[] key, final double[] row) {
+	    keys.add(key);
+	    values.add(row);
+	}
+    }
+
+    /**
+     * A rowid range of the spots table, turned into spots on the worker.
+     */
+    private static final class SpotRange extends RowRange {
+
+	private final String[] features;
+
+	final List<Spot> spots = new ArrayList<Spot>();
+
+	SpotRange(final String url, final String query, final long[] range, final String[] features) {
+	    super(url, query, range, 2, features.length);
+	    this.features = features;
+	}
+
+	@Override
+	void add(final int[] key, final double[] row) {
+	    final Spot spot = new Spot(key[0]);
+	    for (int j = 0; j < features.length; j++)
+		spot.putFeature(features[j], row[j]);
+	    spot.putFeature(SpotCollection.VISIBILITY, SpotCollection.ONE);
+	    spots.add(spot);
+	    keys.add(key);
+	}
+    }
+}
@@ -0,0 +1,249 @@
+package net.chicoronny.trackmate.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Class TrajectoryReader.
+ *
+ * Opens a trajectory file written by {@link TrajectoryWriter}. The file is
+ * memory-mapped and the footer is loaded into a hash map, so any track is
+ * located in constant time and decoded without parsing text. Files larger
+ * than 2 GiB are mapped in several segments, each holding whole tracks.
+ */
+public class TrajectoryReader {
+
+    /** The maximal size of a mapped segment. */
+    private static final long SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    /** The quantization step. */
+    private final double quantum;
+
+    /** The track IDs in file order. */
+    private final int[] trackIDs;
+
+    /** The segment of each track. */
+    private final int[] segment;
+
+    /** The position of each track within its segment. */
+    private final int[] start;
+
+    /** The index of each track ID. */
+    private final Map<Integer, Integer> index;
+
+    /** The mapped segments. */
+    private final ByteBuffer[] segments;
+
+    /**
+     * The decoded spots of a track, sorted by frame.
+     */
+    public static class Trajectory {
+
+	/** The track ID. */
+	public final int trackID;
+
+	/** The frames. */
+	public final int[] frames;
+
+	/** The spot IDs. */
+	public final int[] spotIDs;
+
+	/** The positions, rounded to the quantum of the file. */
+	public final double[] x, y, z;
+
+	Trajectory(final int trackID, final int size) {
+	    this.trackID = trackID;
+	    frames = new int[size];
+	    spotIDs = new int[size];
+	    x = new double[size];
+	    y = new double[size];
+	    z = new double[size];
+	}
+
+	/**
+	 * Gets the number of spots.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+	    return frames.length;
+	}
+    }
+
+    /**
+     * Memory-maps a trajectory file.
+     *
+     * @param file
+     *            the trajectory file
+     * @throws IOException
+     *             if the file cannot be read or is not a trajectory file
+     */
+    public TrajectoryReader(final File file) throws IOException {
+	this(file, SEGMENT_SIZE);
+    }
+
+    /**
+     * Memory-maps a trajectory file in segments of the given size. A track
+     * larger than the segment size gets a segment of its own.
+     *
+     * @param file
+     *            the trajectory file
+     * @param segmentSize
+     *            the maximal size of a mapped segment
+     * @throws IOException
+     *             if the file cannot be read or is not a trajectory file
+     */
+    TrajectoryReader(final File file, final long segmentSize) throws IOException {
+	final RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    final FileChannel channel = raf.getChannel();
+	    final long size = channel.size();
+	    if (size < 16 + TrajectoryWriter.TRAILER_SIZE)
+		throw new IOException(file.getName() + " is not a trajectory file.");
+	    final ByteBuffer header = map(channel, 0, 16);
+	    if (header.getInt() != TrajectoryWriter.MAGIC)
+		throw new IOException(file.getName() + " is not a trajectory file.");
+	    final int version = header.getInt();
+	    if (version != TrajectoryWriter.VERSION)
+		throw new IOException("Unsupported trajectory file version " + version + ".");
+	    quantum = header.getDouble();
+
+	    final ByteBuffer trailer = map(channel, size - TrajectoryWriter.TRAILER_SIZE, TrajectoryWriter.TRAILER_SIZE);
+	    final long footer = trailer.getLong();
+	    final int nTracks = trailer.getInt();
+	    if (trailer.getInt() != TrajectoryWriter.MAGIC || footer + (long) nTracks * TrajectoryWriter.ENTRY_SIZE > size)
+		throw new IOException("Truncated trajectory file.");
+
+	    trackIDs = new int[nTracks];
+	    segment = new int[nTracks];
+	    start = new int[nTracks];
+	    index = new HashMap<Integer, Integer>(2 * nTracks);
+	    final List<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+	    long segmentStart = 16, segmentEnd = 16;
+	    final int chunk = (int) (SEGMENT_SIZE / TrajectoryWriter.ENTRY_SIZE);
+	    ByteBuffer entries = null;
+	    // entries are in file order, cut segments at track boundaries
+	    for (int i = 0; i < nTracks; i++) {
+		if (i % chunk == 0)
+		    entries = map(channel, footer + (long) i * TrajectoryWriter.ENTRY_SIZE,
+			    (long) Math.min(chunk, nTracks - i) * TrajectoryWriter.ENTRY_SIZE);
+		trackIDs[i] = entries.getInt();
+		final int length = entries.getInt();
+		final long offset = entries.getLong();
+		if (offset < segmentEnd || offset + length > footer)
+		    throw new IOException("Corrupt trajectory index.");
+		if (offset + length - segmentStart > segmentSize && segmentEnd > segmentStart) {
+		    mapped.add(map(channel, segmentStart, segmentEnd - segmentStart));
+		    segmentStart = offset;
+		}
+		segment[i] = mapped.size();
+		start[i] = (int) (offset - segmentStart);
+		segmentEnd = offset + length;
+		index.put(trackIDs[i], i);
+	    }
+	    mapped.add(map(channel, segmentStart, segmentEnd - segmentStart));
+	    segments = mapped.toArray(new ByteBuffer[mapped.size()]);
+	} finally {
+	    // mappings stay valid after the channel is closed
+	    raf.close();
+	}
+    }
+
+    private static ByteBuffer map(final FileChannel channel, final long position, final long size) throws IOException {
+	return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Gets the quantization step of the coordinates.
+     *
+     * @return the quantum
+     */
+    public double getQuantum() {
+	return quantum;
+    }
+
+    /**
+     * Gets the number of tracks.
+     *
+     * @return the number of tracks
+     */
+    public int numTracks() {
+	return trackIDs.length;
+    }
+
+    /**
+     * Gets the track IDs in file order.
+     *
+     * @return the track IDs
+     */
+    public int[] getTrackIDs() {
+	return Arrays.copyOf(trackIDs, trackIDs.length);
+    }
+
+    /**
+     * Checks if the file holds a track.
+     *
+     * @param trackID
+     *            the track ID
+     * @return true, if the track exists
+     */
+    public boolean contains(final int trackID) {
+	return index.containsKey(trackID);
+    }
+
+    /**
+     * Decodes a track. Can be called concurrently.
+     *
+     * @param trackID
+     *            the track ID
+     * @return the trajectory or <code>null</code> if the track does not exist
+     */
+    public Trajectory getTrack(final int trackID) {
+	final Integer i = index.get(trackID);
+	if (null == i)
+	    return null;
+	final ByteBuffer data = segments[segment[i]].duplicate();
+	data.position(start[i]);
+	final Trajectory t = new Trajectory(trackID, (int) getVarLong(data));
+	long frame = 0, id = 0, x = 0, y = 0, z = 0;
+	for (int k = 0; k < t.size(); k++) {
+	    frame += unzigzag(getVarLong(data));
+	    id += unzigzag(getVarLong(data));
+	    x += unzigzag(getVarLong(data));
+	    y += unzigzag(getVarLong(data));
+	    z += unzigzag(getVarLong(data));
+	    t.frames[k] = (int) frame;
+	    t.spotIDs[k] = (int) id;
+	    t.x[k] = x * quantum;
+	    t.y[k] = y * quantum;
+	    t.z[k] = z * quantum;
+	}
+	return t;
+    }
+
+    private static long unzigzag(final long v) {
+	return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static long getVarLong(final ByteBuffer data) {
+	long v = 0;
+	int shift = 0;
+	byte b;
+	do {
+	    b = data.get();
+	    v |= (long) (b & 0x7F) << shift;
+	    shift += 7;
+	} while (b < 0);
+	return v;
+    }
+}
@@ -0,0 +1,216 @@
+package net.chicoronny.trackmate.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * The Class TrajectoryWriter.
+ *
+ * Writes tracks to the compact binary trajectory format read by
+ * {@link TrajectoryReader}. The spots of a track are sorted by frame and
+ * stored as differences to the previous spot: frame, spot ID and the
+ * coordinates quantized to multiples of a fixed step. Every difference is
+ * zigzag encoded and packed as a varint, so small steps take one or two
+ * bytes. A footer maps each track ID to the position of its block.
+ *
+ * <pre>
+ * int    magic, version
+ * double quantum
+ * per track: varint nSpots, nSpots x (frame, ID, x, y, z differences)
+ * nTracks x (int track ID, int length, long offset)
+ * long   footer offset
+ * int    nTracks, magic
+ * </pre>
+ *
+ * All fixed size values are little endian.
+ */
+public class TrajectoryWriter implements Closeable {
+
+    /** The magic number, "TMTR". */
+    public static final int MAGIC = 0x544D5452;
+
+    /** The format version. */
+    public static final int VERSION = 1;
+
+    /** The default quantization step of the coordinates. */
+    public static final double DEFAULT_QUANTUM = 1e-3;
+
+    /** The size of a footer entry. */
+    static final int ENTRY_SIZE = 16;
+
+    /** The size of the trailer. */
+    static final int TRAILER_SIZE = 16;
+
+    /** The size of the write buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** The target channel. */
+    private final FileChannel channel;
+
+    /** The write buffer. */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /** The quantization step. */
+    private final double quantum;
+
+    /** The file position of the write buffer. */
+    private long position;
+
+    /** The track IDs. */
+    private int[] trackIDs = new int[1024];
+
+    /** The block lengths. */
+    private int[] lengths = new int[1024];
+
+    /** The block offsets. */
+    private long[] offsets = new long[1024];
+
+    /** The number of tracks. */
+    private int nTracks;
+
+    /**
+     * Creates a trajectory file.
+     *
+     * @param file
+     *            the target file
+     * @param quantum
+     *            the quantization step of the coordinates, in calibrated
+     *            units
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public TrajectoryWriter(final File file, final double quantum) throws IOException {
+	if (!(quantum > 0))
+	    throw new IllegalArgumentException("Quantum must be positive.");
+	this.quantum = quantum;
+	channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		StandardOpenOption.TRUNCATE_EXISTING);
+	buffer.putInt(MAGIC).putInt(VERSION).putDouble(quantum);
+    }
+
+    /**
+     * Gets the quantization step.
+     *
+     * @return the quantum
+     */
+    public double getQuantum() {
+	return quantum;
+    }
+
+    /**
+     * Encodes the spots of a track. Can be called concurrently.
+     *
+     * @param spots
+     *            the spots of the track
+     * @param quantum
+     *            the quantization step of the coordinates
+     * @return the encoded block
+     */
+    public static byte[] encode(final Collection<Spot> spots, final double quantum) {
+	final Spot[] sorted = spots.toArray(new Spot[spots.size()]);
+	Arrays.sort(sorted, Spot.timeComparator);
+	// at most 10 bytes per varint
+	final byte[] out = new byte[5 + 50 * sorted.length];
+	int pos = putVarLong(out, 0, sorted.length);
+	long frame = 0, id = 0, x = 0, y = 0, z = 0;
+	for (final Spot spot : sorted) {
+	    final long f = spot.getFeature(Spot.FRAME).longValue();
+	    final long i = spot.ID();
+	    final long qx = Math.round(spot.getFeature(Spot.POSITION_X) / quantum);
+	    final long qy = Math.round(spot.getFeature(Spot.POSITION_Y) / quantum);
+	    final long qz = Math.round(spot.getFeature(Spot.POSITION_Z) / quantum);
+	    pos = putVarLong(out, pos, zigzag(f - frame));
+	    pos = putVarLong(out, pos, zigzag(i - id));
+	    pos = putVarLong(out, pos, zigzag(qx - x));
+	    pos = putVarLong(out, pos, zigzag(qy - y));
+	    pos = putVarLong(out, pos, zigzag(qz - z));
+	    frame = f;
+	    id = i;
+	    x = qx;
+	    y = qy;
+	    z = qz;
+	}
+	return Arrays.copyOf(out, pos);
+    }
+
+    /**
+     * Appends an encoded track.
+     *
+     * @param trackID
+     *            the track ID
+     * @param block
+     *            the block returned by {@link #encode(Collection, double)}
+     *            with the quantum of this writer
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void addTrack(final int trackID, final byte[] block) throws IOException {
+	if (nTracks == trackIDs.length) {
+	    trackIDs = Arrays.copyOf(trackIDs, 2 * nTracks);
+	    lengths = Arrays.copyOf(lengths, 2 * nTracks);
+	    offsets = Arrays.copyOf(offsets, 2 * nTracks);
+	}
+	trackIDs[nTracks] = trackID;
+	lengths[nTracks] = block.length;
+	offsets[nTracks] = position + buffer.position();
+	nTracks++;
+	int offset = 0;
+	while (offset < block.length) {
+	    if (!buffer.hasRemaining())
+		flush();
+	    final int n = Math.min(buffer.remaining(), block.length - offset);
+	    buffer.put(block, offset, n);
+	    offset += n;
+	}
+    }
+
+    /**
+     * Writes the footer and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+	try {
+	    final long footer = position + buffer.position();
+	    for (int i = 0; i < nTracks; i++) {
+		if (buffer.remaining() < ENTRY_SIZE)
+		    flush();
+		buffer.putInt(trackIDs[i]).putInt(lengths[i]).putLong(offsets[i]);
+	    }
+	    if (buffer.remaining() < TRAILER_SIZE)
+		flush();
+	    buffer.putLong(footer).putInt(nTracks).putInt(MAGIC);
+	    flush();
+	} finally {
+	    channel.close();
+	}
+    }
+
+    private void flush() throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining())
+	    position += channel.write(buffer);
+	buffer.clear();
+    }
+
+    private static long zigzag(final long v) {
+	return (v << 1) ^ (v >> 63);
+    }
+
+    private static int putVarLong(final byte[] out, int pos, long v) {
+	while ((v & ~0x7FL) != 0) {
+	    out[pos++] = (byte) ((v & 0x7F) | 0x80);
+	    v >>>= 7;
+	}
+	out[pos++] = (byte) v;
+	return pos;
+    }
+}
@@ -3,8 +3,6 @@ package net.chicoronny.trackmate.lineartracker;
 import java.io.File;
 import java.io.FileFilter;
 import java.util.Collection;
-import fiji.plugin.trackmate.Spot;
-import fiji.plugin.trackmate.features.spot.MySpotRadiusEstimatorFactory;
 
 public class LTUtils {
     
@@ -87,23 +85,6 @@ public class LTUtils {
 	return Math.acos(Math.abs(dotProduct / (lenFirst * lenSecond)))* 180 / Math.PI;
     }
 
-    /**
-     * Set Radius to estimated Radius.
-     * 
-     * @param spot
-     *            the spot
-     * @return the spot with estimated Radius
-     */
-    public static final Spot RadiusToEstimated(Spot spot) {
-	final Double diameter = spot.getFeature(MySpotRadiusEstimatorFactory.ESTIMATED_DIAMETER);
-	if (null == diameter || diameter == 0) {
-	    return spot;
-	}
-	spot.putFeature(Spot.RADIUS, diameter / 2);
-	return spot;
-    }
- 
-    
     /**
      * List files.
      * 
@@ -0,0 +1,125 @@
+package net.chicoronny.trackmate.lineartracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.spot.MySpotRadiusEstimatorFactory;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzer;
+
+/**
+ * The Class LazyRadiusEstimator.
+ *
+ * Sets the radius of a spot to its estimated radius the first time the cost
+ * function of the tracker needs it. Spots already carrying the
+ * {@link MySpotRadiusEstimatorFactory#ESTIMATED_DIAMETER} feature use this
+ * value. Otherwise, if an image is given, the diameter is estimated on demand
+ * with one analyzer per frame for all pending spots of this frame.
+ *
+ * @param <T>
+ *            the pixel type of the image
+ */
+public class LazyRadiusEstimator<T extends RealType<T> & NativeType<T>> {
+
+    /** The image used for estimation, may be null. */
+    private final ImgPlus<T> img;
+
+    /** The channel used for estimation. */
+    private final int channel;
+
+    /** The factory creating the per-frame analyzers. */
+    private final MySpotRadiusEstimatorFactory<T> factory = new MySpotRadiusEstimatorFactory<T>();
+
+    /** The analyzers per frame. */
+    private final Map<Integer, SpotAnalyzer<T>> analyzers = new HashMap<Integer, SpotAnalyzer<T>>();
+
+    /** The spots whose radius is already set. */
+    private final Set<Spot> resolved = new HashSet<Spot>();
+
+    /**
+     * Instantiates a new lazy radius estimator.
+     *
+     * @param img
+     *            the image to estimate missing diameters on, or
+     *            <code>null</code> to use only precomputed diameters
+     * @param channel
+     *            the channel to estimate on
+     */
+    public LazyRadiusEstimator(final ImgPlus<T> img, final int channel) {
+	this.img = img;
+	this.channel = channel;
+    }
+
+    /**
+     * Returns the (estimated) radius of a spot.
+     *
+     * @param spot
+     *            the spot
+     * @return the radius
+     */
+    public double radius(final Spot spot) {
+	resolve(Collections.singletonList(spot));
+	return spot.getFeature(Spot.RADIUS);
+    }
+
+    /**
+     * Sets the radius of all given spots to their estimated radius, if not
+     * done yet. Missing diameters are estimated in one batch per frame.
+     *
+     * @param spots
+     *            the spots
+     */
+    public synchronized void resolve(final Collection<Spot> spots) {
+	Map<Integer, List<Spot>> pending = null;
+	for (final Spot spot : spots) {
+	    if (resolved.contains(spot))
+		continue;
+	    if (null != img && null == spot.getFeature(MySpotRadiusEstimatorFactory.ESTIMATED_DIAMETER)) {
+		if (null == pending)
+		    pending = new HashMap<Integer, List<Spot>>();
+		final int frame = spot.getFeature(Spot.FRAME).intValue();
+		List<Spot> frameSpots = pending.get(frame);
+		if (null == frameSpots) {
+		    frameSpots = new ArrayList<Spot>();
+		    pending.put(frame, frameSpots);
+		}
+		frameSpots.add(spot);
+		continue;
+	    }
+	    apply(spot);
+	}
+	if (null == pending)
+	    return;
+
+	for (final Map.Entry<Integer, List<Spot>> entry : pending.entrySet()) {
+	    getAnalyzer(entry.getKey()).process(entry.getValue());
+	    for (final Spot spot : entry.getValue())
+		apply(spot);
+	}
+    }
+
+    private SpotAnalyzer<T> getAnalyzer(final int frame) {
+	SpotAnalyzer<T> analyzer = analyzers.get(frame);
+	if (null == analyzer) {
+	    analyzer = factory.getAnalyzer(img, frame, channel);
+	    analyzers.put(frame, analyzer);
+	}
+	return analyzer;
+    }
+
+    private void apply(final Spot spot) {
+	final Double diameter = spot.getFeature(MySpotRadiusEstimatorFactory.ESTIMATED_DIAMETER);
+	if (null != diameter && diameter > 0)
+	    spot.putFeature(Spot.RADIUS, diameter / 2);
+	resolved.add(spot);
+    }
+}
@@ -15,7 +15,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import net.imagej.ImgPlus;
 import net.imglib2.RealCursor;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.MultiThreaded;
@@ -71,6 +77,15 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 
     private int numThreads;
 
+    /** The image used for lazy radius estimation, may be null. */
+    private ImgPlus<?> img;
+
+    /** The channel used for lazy radius estimation. */
+    private int channel;
+
+    /** The lazy radius estimator, null if radius estimation is off. */
+    private LazyRadiusEstimator<?> radiusEstimator;
+
     protected int MAX_GAP = 2;
 
     private double ANGLE_DIFF = 0.1745d;
@@ -166,34 +181,15 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 		final double maxCost = (Double) settings.get(KEY_MAX_COST);
 		final boolean estimRadius = (Boolean) settings.get(KEY_ESTIMATE_RADIUS);
 
+		// estimated radii are set on demand by the cost function
+		radiusEstimator = estimRadius ? createRadiusEstimator() : null;
+
 		// Make List of KD-Trees
-		int nFrames = spots.keySet().size();
-		final List<KDTree<FlagNode<Spot>>> treeList = new ArrayList<KDTree<FlagNode<Spot>>>(nFrames);
-		final Iterator<Integer> frameIt = spots.keySet().iterator();
-
-		while (frameIt.hasNext()) {
-			final int curFrame = frameIt.next();
-			final int nNextSpots = spots.getNSpots(curFrame, true);
-
-			final List<RealPoint> nextCoords = new ArrayList<RealPoint>(nNextSpots);
-			final List<FlagNode<Spot>> nextNodes = new ArrayList<FlagNode<Spot>>(nNextSpots);
-			final Iterator<Spot> nextIt = spots.iterator(curFrame, true);
-			while (nextIt.hasNext()) {
-				final double[] coords = new double[3];
-				// use estimated radius
-				final Spot spot;
-				if (estimRadius)
-					spot = LTUtils.RadiusToEstimated(nextIt.next());
-				else
-					spot = nextIt.next();
-				TMUtils.localize(spot, coords);
-				nextCoords.add(new RealPoint(coords));
-				nextNodes.add(new FlagNode<Spot>(spot));
-			}
-			if (!nextNodes.isEmpty() && !nextCoords.isEmpty()) treeList.add(new KDTree<FlagNode<Spot>>(nextNodes, nextCoords));
-		}
+		final List<KDTree<FlagNode<Spot>>> treeList = buildTrees();
+		if (null == treeList) 
+			return false;
 
-		nFrames = treeList.size(); // for the case there are empty frames
+		final int nFrames = treeList.size(); // for the case there are empty frames
 		KDTree<FlagNode<Spot>> frameTree = treeList.get(0);
 
 		int dd = 0;
@@ -207,7 +203,7 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 			int curFrame = 1;
 			final List<FlagNode<Spot>> nodeList = new ArrayList<FlagNode<Spot>>();
 			while (curFrame < nFrames) {
-				final RadiusNeighborFlagSearchOnKDTree bsearch = new RadiusNeighborFlagSearchOnKDTree(treeList.get(curFrame));
+				final RadiusNeighborFlagSearchOnKDTree bsearch = new RadiusNeighborFlagSearchOnKDTree(treeList.get(curFrame), radiusEstimator);
 				curFrame++;
 				bsearch.search(source.getValue(), stickR, false);
 				if (bsearch.numNeighbors() > 0) {
@@ -245,7 +241,7 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 		// Main Loop over all frames
 		for (int Tree = 1; Tree < nFrames; Tree++) {
 			// go to next frame for searching
-			final RadiusNeighborFlagSearchOnKDTree rsearch = new RadiusNeighborFlagSearchOnKDTree(treeList.get(Tree));
+			final RadiusNeighborFlagSearchOnKDTree rsearch = new RadiusNeighborFlagSearchOnKDTree(treeList.get(Tree), radiusEstimator);
 
 			// retrieve spots from current frame
 			final RealCursor<FlagNode<Spot>> spotIt = frameTree.cursor();
@@ -254,7 +250,7 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 				final Spot source = spotIt.next().getValue();
 				final double[] sourceCoords = new double[3];
 				TMUtils.localize(source, sourceCoords);
-				rsearch.search(source, initR, source.getFeature(Spot.RADIUS).floatValue(), maxCost,true); // use initial radius for searching spot in the next frame
+				rsearch.search(source, initR, maxCost, true); // use initial radius for searching spot in the next frame
 
 				if (rsearch.numNeighbors() < 1) continue;
 
@@ -276,7 +272,7 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 				ArrayList<DefaultWeightedEdge> edges = new ArrayList<DefaultWeightedEdge>();
 
 				while (succFrame < nFrames - 1) {
-					final RadiusNeighborFlagSearchOnKDTree lsearch = new RadiusNeighborFlagSearchOnKDTree(treeList.get(succFrame));
+					final RadiusNeighborFlagSearchOnKDTree lsearch = new RadiusNeighborFlagSearchOnKDTree(treeList.get(succFrame), radiusEstimator);
 					estim = LTUtils.Add(estim, preVector);
 					final double[] estimMean = LTUtils.DivideScalar(estim, count); // calculate means
 					final double[] estimCoords = LTUtils.Add(searchCoords, estimMean); // estimate search position										
@@ -399,6 +395,89 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 		return true;
 	}
 
+    /**
+     * Builds the KD-trees of all frames concurrently on a pool of
+     * {@link #getNumThreads()} threads. Empty frames are skipped, the order of
+     * the frames is kept.
+     * 
+     * @return the list of KD-trees, or <code>null</code> if building failed
+     */
+    private List<KDTree<FlagNode<Spot>>> buildTrees() {
+	final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+	final List<Future<KDTree<FlagNode<Spot>>>> futures = new ArrayList<Future<KDTree<FlagNode<Spot>>>>(spots.keySet().size());
+	for (final int frame : spots.keySet()) {
+	    futures.add(executor.submit(new Callable<KDTree<FlagNode<Spot>>>() {
+		@Override
+		public KDTree<FlagNode<Spot>> call() {
+		    return buildTree(frame);
+		}
+	    }));
+	}
+
+	final List<KDTree<FlagNode<Spot>>> treeList = new ArrayList<KDTree<FlagNode<Spot>>>(futures.size());
+	try {
+	    for (final Future<KDTree<FlagNode<Spot>>> future : futures) {
+		final KDTree<FlagNode<Spot>> tree = future.get();
+		if (null != tree)
+		    treeList.add(tree);
+	    }
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    errorMessage = "Building the KD-trees was interrupted.";
+	    return null;
+	} catch (final ExecutionException e) {
+	    errorMessage = "Error building the KD-trees: " + e.getCause().getMessage();
+	    return null;
+	} finally {
+	    executor.shutdownNow();
+	}
+	return treeList;
+    }
+
+    /**
+     * Builds the KD-tree of one frame.
+     * 
+     * @param frame
+     *            the frame
+     * @return the KD-tree, or <code>null</code> if the frame has no visible spots
+     */
+    private KDTree<FlagNode<Spot>> buildTree(final int frame) {
+	final int nSpots = spots.getNSpots(frame, true);
+	final List<RealPoint> coordList = new ArrayList<RealPoint>(nSpots);
+	final List<FlagNode<Spot>> nodeList = new ArrayList<FlagNode<Spot>>(nSpots);
+	final Iterator<Spot> it = spots.iterator(frame, true);
+	while (it.hasNext()) {
+	    final double[] coords = new double[3];
+	    final Spot spot = it.next();
+	    TMUtils.localize(spot, coords);
+	    coordList.add(new RealPoint(coords));
+	    nodeList.add(new FlagNode<Spot>(spot));
+	}
+	if (nodeList.isEmpty())
+	    return null;
+	return new KDTree<FlagNode<Spot>>(nodeList, coordList);
+    }
+
+    /**
+     * Sets the image used to estimate spot radii on demand when
+     * {@link LinearTrackerKeys#KEY_ESTIMATE_RADIUS} is set. Without an image only
+     * precomputed estimated diameters are used.
+     * 
+     * @param img
+     *            the image, may be null
+     * @param channel
+     *            the channel to estimate on
+     */
+    public void setImage(final ImgPlus<?> img, final int channel) {
+	this.img = img;
+	this.channel = channel;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private LazyRadiusEstimator<?> createRadiusEstimator() {
+	return new LazyRadiusEstimator(img, channel);
+    }
+
     /* (non-Javadoc)
      * @see fiji.plugin.trackmate.tracking.SpotTracker#setLogger(fiji.plugin.trackmate.Logger)
      */
@@ -435,7 +514,7 @@ public class LinearTracker implements SpotTracker, MultiThreaded
     
 
 	/**
-	 * Ignored.
+	 * Uses all available processors to build the KD-trees.
 	 */
 	@Override
 	public void setNumThreads()
@@ -444,7 +523,7 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 	}
 
 	/**
-	 * Ignored.
+	 * Sets the number of threads used to build the KD-trees.
 	 */
 	@Override
 	public void setNumThreads( final int numThreads )
@@ -453,7 +532,7 @@ public class LinearTracker implements SpotTracker, MultiThreaded
 	}
 
 	/**
-	 * Ignored.
+	 * Gets the number of threads used to build the KD-trees.
 	 */
 	@Override
 	public int getNumThreads()
@@ -18,6 +18,8 @@ import java.util.Map;
 
 import javax.swing.ImageIcon;
 
+import net.imagej.ImgPlus;
+
 import org.jdom2.Element;
 import org.scijava.plugin.Plugin;
 
@@ -49,6 +51,26 @@ public class LinearTrackerFactory implements SpotTrackerFactory {
     /** The error message. */
     private String errorMessage;
 
+    /** The image used for lazy radius estimation. */
+    private ImgPlus<?> img;
+
+    /** The channel used for lazy radius estimation. */
+    private int channel;
+
+    /**
+     * Sets the image handed to created trackers for estimating spot radii on
+     * demand.
+     * 
+     * @param img
+     *            the image, may be null
+     * @param channel
+     *            the channel to estimate on
+     */
+    public void setImage(final ImgPlus<?> img, final int channel) {
+	this.img = img;
+	this.channel = channel;
+    }
+
     /* (non-Javadoc)
      * @see fiji.plugin.trackmate.TrackMateModule#getInfoText()
      */
@@ -86,7 +108,9 @@ public class LinearTrackerFactory implements SpotTrackerFactory {
      */
     @Override
     public SpotTracker create(final SpotCollection spots, final Map<String, Object> settings) {
-    	return new LinearTracker(spots, settings);
+    	final LinearTracker tracker = new LinearTracker(spots, settings);
+    	tracker.setImage(img, channel);
+    	return tracker;
     }
 
     /* (non-Javadoc)
@@ -197,7 +221,9 @@ public class LinearTrackerFactory implements SpotTrackerFactory {
 
 	@Override
 	public LinearTrackerFactory copy() {
-		return new LinearTrackerFactory();
+		final LinearTrackerFactory factory = new LinearTrackerFactory();
+		factory.setImage(img, channel);
+		return factory;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,155 @@
+package net.chicoronny.trackmate.lineartracker;
+
+import java.util.Arrays;
+
+/**
+ * The Class LinkingCostKernel.
+ *
+ * Evaluates the linking cost of the {@link RadiusNeighborFlagSearchOnKDTree}
+ * for a whole set of candidates at once. Candidate coordinates, radii and
+ * qualities are held in primitive arrays, so the cost loop runs without
+ * boxing, allocation or virtual calls and can be vectorized by the JIT.
+ * <p>
+ * The cost is the same as in the search:
+ * <code>cost = D²/8 + 1 + 3*|dR| + |dQ|/4 + A</code>, where the angle A (in °)
+ * is computed with {@link #acosDegrees(double)} instead of {@link Math#acos(double)}.
+ */
+public class LinkingCostKernel {
+
+    /** The initial capacity. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The candidate coordinates. */
+    private double[] x, y, z;
+
+    /** The candidate radii. */
+    private float[] radius;
+
+    /** The candidate qualities. */
+    private float[] quality;
+
+    /** The computed costs. */
+    private double[] cost;
+
+    /** The number of candidates. */
+    private int size;
+
+    /**
+     * Instantiates a new linking cost kernel.
+     */
+    public LinkingCostKernel() {
+	x = new double[INITIAL_CAPACITY];
+	y = new double[INITIAL_CAPACITY];
+	z = new double[INITIAL_CAPACITY];
+	radius = new float[INITIAL_CAPACITY];
+	quality = new float[INITIAL_CAPACITY];
+	cost = new double[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Removes all candidates.
+     */
+    public void clear() {
+	size = 0;
+    }
+
+    /**
+     * Gets the number of candidates.
+     *
+     * @return the size
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Adds a candidate.
+     *
+     * @param cx
+     *            the x coordinate
+     * @param cy
+     *            the y coordinate
+     * @param cz
+     *            the z coordinate
+     * @param cRadius
+     *            the radius
+     * @param cQuality
+     *            the quality
+     */
+    public void add(final double cx, final double cy, final double cz, final float cRadius, final float cQuality) {
+	if (size == x.length) {
+	    final int capacity = 2 * size;
+	    x = Arrays.copyOf(x, capacity);
+	    y = Arrays.copyOf(y, capacity);
+	    z = Arrays.copyOf(z, capacity);
+	    radius = Arrays.copyOf(radius, capacity);
+	    quality = Arrays.copyOf(quality, capacity);
+	    cost = Arrays.copyOf(cost, capacity);
+	}
+	x[size] = cx;
+	y[size] = cy;
+	z[size] = cz;
+	radius[size] = cRadius;
+	quality[size] = cQuality;
+	size++;
+    }
+
+    /**
+     * Evaluate the costs of all candidates.
+     *
+     * @param pos
+     *            the (estimated) search position
+     * @param oldCoords
+     *            old spot coordinates for angle calculation
+     * @param spotRadius
+     *            the reference spot radius
+     * @param spotQuality
+     *            the reference spot quality
+     */
+    public void evaluate(final double[] pos, final double[] oldCoords, final float spotRadius, final float spotQuality) {
+	final double px = pos[0], py = pos[1], pz = pos[2];
+	final double ox = oldCoords[0], oy = oldCoords[1], oz = oldCoords[2];
+	// reference vector from estimated search position to the old found position
+	final double lx = px - ox, ly = py - oy, lz = pz - oz;
+	final double lenLong = lx * lx + ly * ly + lz * lz;
+	for (int i = 0; i < size; i++) {
+	    final double dx = x[i] - px, dy = y[i] - py, dz = z[i] - pz;
+	    final double squDistance = dx * dx + dy * dy + dz * dz;
+	    // actual vector from the candidate position to the old found position
+	    final double cx = x[i] - ox, cy = y[i] - oy, cz = z[i] - oz;
+	    final double lenLongCurrent = lenLong * (cx * cx + cy * cy + cz * cz);
+	    final double dotProduct = lx * cx + ly * cy + lz * cz;
+	    final double angle = lenLongCurrent == 0d ? 0d : acosDegrees(Math.abs(dotProduct) / Math.sqrt(lenLongCurrent));
+	    final double qualityDiff = Math.abs(quality[i] - spotQuality);
+	    final double spotRadiusDiff = 1 + Math.abs(radius[i] - spotRadius) * 3d;
+	    cost[i] = squDistance / 8 + spotRadiusDiff + qualityDiff / 4 + angle;
+	}
+    }
+
+    /**
+     * Gets the cost of a candidate computed by the last evaluation.
+     *
+     * @param i
+     *            the candidate index
+     * @return the cost
+     */
+    public double getCost(final int i) {
+	return cost[i];
+    }
+
+    /**
+     * Polynomial approximation of <code>acos(x)</code> in degrees for
+     * <code>0 &lt;= x &lt;= 1</code> (Abramowitz &amp; Stegun 4.4.45). It is
+     * strictly decreasing like acos and its absolute error is below 0.004°,
+     * which is negligible against the other terms of the cost.
+     *
+     * @param v
+     *            the cosine, clamped to [0, 1]
+     * @return the angle in degrees
+     */
+    public static final double acosDegrees(final double v) {
+	final double a = v < 0d ? 0d : v > 1d ? 1d : v;
+	final double p = 1.5707288d + a * (-0.2121144d + a * (0.0742610d - 0.0187293d * a));
+	return Math.sqrt(1d - a) * p * (180d / Math.PI);
+    }
+}
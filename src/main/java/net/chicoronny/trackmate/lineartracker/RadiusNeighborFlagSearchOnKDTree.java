@@ -32,6 +32,15 @@ public class RadiusNeighborFlagSearchOnKDTree implements RadiusNeighborSearch<Fl
     
     /** The result points. */
     protected ArrayList<ValuePair<KDTreeNode<FlagNode<Spot>>, Double>> resultPoints;
+    
+    /** The candidate nodes within the search radius. */
+    protected final ArrayList<KDTreeNode<FlagNode<Spot>>> candidates;
+    
+    /** The lazy radius estimator, may be null. */
+    protected final LazyRadiusEstimator<?> estimator;
+    
+    /** The batch cost kernel. */
+    protected final LinkingCostKernel kernel = new LinkingCostKernel();
 
     /**
      * Instantiates a new radius neighbor flag search on the KD tree.
@@ -40,56 +49,40 @@ public class RadiusNeighborFlagSearchOnKDTree implements RadiusNeighborSearch<Fl
      *            the KD tree
      */
     public RadiusNeighborFlagSearchOnKDTree(KDTree<FlagNode<Spot>> tree) {
+    	this(tree, null);
+    }
+
+    /**
+     * Instantiates a new radius neighbor flag search on the KD tree.
+     * 
+     * @param tree
+     *            the KD tree
+     * @param estimator
+     *            the estimator setting the radius of candidate spots on
+     *            demand, or <code>null</code> to use the radius as is
+     */
+    public RadiusNeighborFlagSearchOnKDTree(KDTree<FlagNode<Spot>> tree, LazyRadiusEstimator<?> estimator) {
     	n = tree.numDimensions();
     	pos = new double[n];
     	this.tree = tree;
+    	this.estimator = estimator;
     	this.resultPoints = new ArrayList<ValuePair<KDTreeNode<FlagNode<Spot>>, Double>>();
+    	this.candidates = new ArrayList<KDTreeNode<FlagNode<Spot>>>();
     }
 
     /**
-     * Find and order spots by a cost function
-     * <p>
-     * The cost function is calculated as follow:
-     * <code>cost = D² + (1 + 1.5*R)² + A</code>
-     * 
-     * <p>
-     * where D is the distance between 2 spots, R is the difference in estimated radii and A the enclosed angle (in °) between the estimated and the actual vector.
-     * The angle is calculated as <code>acos(|a x b|)</code> to give the angle of 90° the maximum value.
+     * Collect all not visited nodes within the search radius.
      * 
      * @param current
      *            the current node that holds the spot
      * @param squRadius
      *            the square radius
-     * @param spotRadius
-     *            the estimated spot radius
-     * @param maxCost 
-     * 		  set a maximum cost for linking
      */
-    protected void searchNode(final KDTreeNode<FlagNode<Spot>> current,
-	    final double squRadius, float spotRadius, float quality, double[] oldCoords, double maxCost) {
+    protected void searchNode(final KDTreeNode<FlagNode<Spot>> current, final double squRadius) {
 	// consider the current node
 	final double squDistance = current.squDistanceTo(pos);
-	boolean visited = current.get().isVisited();
-	final Spot currentSpot = current.get().getValue();
-	// get coordinates of current position
-	final double[] currentPos = new double[3];
-	TMUtils.localize(currentSpot, currentPos);
-	
-	if (squDistance <= squRadius && !visited) {
-		// calculate reference vector from estimated search position to the old found position from the frame before
-		double[] longVector = LTUtils.Subtract(pos, oldCoords); 
-		//
-	    final double qualityDiff =  Math.abs(currentSpot.getFeature(Spot.QUALITY).floatValue() - quality);
-	    // same factor as in LAP tracker
-	    final double spotRadiusDiff = 1 + Math.abs(currentSpot.getFeature(Spot.RADIUS).floatValue() - spotRadius) * 3d; 
-	    // include angle into cost function with calculation of actual vector from the current position to the old found position
-	    final double angle = LTUtils.angleFromVectors(longVector, LTUtils.Subtract(currentPos, oldCoords)); 
-	    // set score
-	    final double cost = squDistance/8 + spotRadiusDiff + qualityDiff/4 + angle;
-	    // set maximal cost
-	    if (cost < maxCost) 
-	    	resultPoints.add(new ValuePair<KDTreeNode<FlagNode<Spot>>, Double>(current, cost));
-	}
+	if (squDistance <= squRadius && !current.get().isVisited())
+	    candidates.add(current);
 
 	final double axisDiff = pos[current.getSplitDimension()] - current.getSplitCoordinate();
 	final double axisSquDistance = axisDiff * axisDiff;
@@ -99,11 +92,54 @@ public class RadiusNeighborFlagSearchOnKDTree implements RadiusNeighborSearch<Fl
 	final KDTreeNode<FlagNode<Spot>> nearChild = leftIsNearBranch ? current.left : current.right;
 	final KDTreeNode<FlagNode<Spot>> awayChild = leftIsNearBranch ? current.right : current.left;
 	if (nearChild != null)
-	    searchNode(nearChild, squRadius, spotRadius, quality, oldCoords, maxCost);
+	    searchNode(nearChild, squRadius);
 
 	// search the away branch - maybe
 	if ((axisSquDistance <= squRadius) && (awayChild != null))
-	    searchNode(awayChild, squRadius, spotRadius, quality, oldCoords, maxCost);
+	    searchNode(awayChild, squRadius);
+    }
+
+    /**
+     * Find and order spots by a cost function
+     * <p>
+     * The cost function is calculated as follow:
+     * <code>cost = D² + (1 + 1.5*R)² + A</code>
+     * 
+     * <p>
+     * where D is the distance between 2 spots, R is the difference in estimated radii and A the enclosed angle (in °) between the estimated and the actual vector.
+     * The angle is calculated as <code>acos(|a x b|)</code> to give the angle of 90° the maximum value.
+     * All candidates are evaluated in one pass of the {@link LinkingCostKernel}.
+     * 
+     * @param spotRadius
+     *            the estimated spot radius
+     * @param quality
+     *            the spot quality
+     * @param oldCoords
+     *            old spot coordinates for angle calculation
+     * @param maxCost 
+     * 		  set a maximum cost for linking
+     */
+    protected void evaluateCandidates(float spotRadius, float quality, double[] oldCoords, double maxCost) {
+	if (estimator != null) {
+	    final ArrayList<Spot> candidateSpots = new ArrayList<Spot>(candidates.size());
+	    for (final KDTreeNode<FlagNode<Spot>> current : candidates)
+		candidateSpots.add(current.get().getValue());
+	    estimator.resolve(candidateSpots);
+	}
+	// evaluate all candidates at once
+	kernel.clear();
+	for (final KDTreeNode<FlagNode<Spot>> current : candidates) {
+	    final Spot currentSpot = current.get().getValue();
+	    kernel.add(current.getDoublePosition(0), current.getDoublePosition(1), current.getDoublePosition(2),
+		    currentSpot.getFeature(Spot.RADIUS).floatValue(), currentSpot.getFeature(Spot.QUALITY).floatValue());
+	}
+	kernel.evaluate(pos, oldCoords, spotRadius, quality);
+	for (int i = 0; i < candidates.size(); i++) {
+	    final double cost = kernel.getCost(i);
+	    // set maximal cost
+	    if (cost < maxCost) 
+	    	resultPoints.add(new ValuePair<KDTreeNode<FlagNode<Spot>>, Double>(candidates.get(i), cost));
+	}
     }
 
     /**
@@ -182,7 +218,9 @@ public class RadiusNeighborFlagSearchOnKDTree implements RadiusNeighborSearch<Fl
 	final float sourceSpotRadius = reference.getFeature(Spot.RADIUS).floatValue();
 	final float quality = reference.getFeature(Spot.QUALITY).floatValue();
 	resultPoints.clear();
-	searchNode(tree.getRoot(), radius * radius, sourceSpotRadius, quality, oldCoords, maxCost);
+	candidates.clear();
+	searchNode(tree.getRoot(), radius * radius);
+	evaluateCandidates(sourceSpotRadius, quality, oldCoords, maxCost);
 	if (sortResults) {
 	    Collections.sort(resultPoints,
 			    new Comparator<ValuePair<KDTreeNode<FlagNode<Spot>>, Double>>() {
@@ -196,6 +234,39 @@ public class RadiusNeighborFlagSearchOnKDTree implements RadiusNeighborSearch<Fl
 		}
     }
 
+    /**
+     * Search function returning results sorted by cost. The radius of the
+     * reference spot is only looked up if there are candidates to compare.
+     * 
+     * @param reference
+     *            the reference spot
+     * @param radius
+     *            the radius
+     * @param maxCost 
+     * 		  set a maximum cost for linking
+     * @param sortResults
+     *            sorting results
+     */
+    public void search(final Spot reference, final double radius, final double maxCost, final boolean sortResults) {
+	TMUtils.localize(reference, pos);
+	resultPoints.clear();
+	candidates.clear();
+	searchNode(tree.getRoot(), radius * radius);
+	if (candidates.isEmpty())
+	    return;
+	final double spotRadius = null == estimator ? reference.getFeature(Spot.RADIUS) : estimator.radius(reference);
+	evaluateCandidates((float) spotRadius, 255f, new double[3], maxCost);
+	if (sortResults) {
+	    Collections.sort(resultPoints,
+			    new Comparator<ValuePair<KDTreeNode<FlagNode<Spot>>, Double>>() {
+				@Override
+				public int compare(final ValuePair<KDTreeNode<FlagNode<Spot>>, Double> o1, final ValuePair<KDTreeNode<FlagNode<Spot>>, Double> o2) {
+					return Double.compare(o1.b, o2.b);
+				}
+			    });
+	}
+    }
+
     // more are less obsolete
     /* (non-Javadoc)
      * @see net.imglib2.neighborsearch.RadiusNeighborSearch#search(net.imglib2.RealLocalizable, double, boolean)
@@ -205,7 +276,9 @@ public class RadiusNeighborFlagSearchOnKDTree implements RadiusNeighborSearch<Fl
 	assert radius >= 0;
 	reference.localize(pos);
 	resultPoints.clear();
-	searchNode(tree.getRoot(), radius * radius, 3f, 255f, new double[3],100000d);
+	candidates.clear();
+	searchNode(tree.getRoot(), radius * radius);
+	evaluateCandidates(3f, 255f, new double[3], 100000d);
 	if (sortResults) {
 	    Collections.sort(resultPoints,
 			    new Comparator<ValuePair<KDTreeNode<FlagNode<Spot>>, Double>>() {
@@ -221,7 +294,9 @@ public class RadiusNeighborFlagSearchOnKDTree implements RadiusNeighborSearch<Fl
     	assert radius >= 0;
     	reference.localize(pos);
     	resultPoints.clear();
-    	searchNode(tree.getRoot(), radius * radius, spotRadius, 255f, new double[3], maxCost);
+    	candidates.clear();
+    	searchNode(tree.getRoot(), radius * radius);
+    	evaluateCandidates(spotRadius, 255f, new double[3], maxCost);
     	if (sortResults) {
     	    Collections.sort(resultPoints,
     			    new Comparator<ValuePair<KDTreeNode<FlagNode<Spot>>, Double>>() {
@@ -0,0 +1,71 @@
+package net.chicoronny.trackmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks which changes of a movie change its {@link DetectionCache}
+ * fingerprint.
+ */
+public class DetectionCacheTest
+{
+
+	/** Larger than the sampled blocks, so some bytes are not sampled. */
+	private static final int LENGTH = 4 << 20;
+
+	/** A byte between the first and the second sampled block. */
+	private static final int UNSAMPLED = 200000;
+
+	@Test
+	public void testFingerprint() throws IOException
+	{
+		final File file = File.createTempFile( "movie", ".tif" );
+		try
+		{
+			final byte[] content = new byte[ LENGTH ];
+			new Random( 3 ).nextBytes( content );
+			final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+			try
+			{
+				raf.write( content );
+			}
+			finally
+			{
+				raf.close();
+			}
+			final long modified = file.lastModified() - 10000;
+			file.setLastModified( modified );
+			final String fingerprint = DetectionCache.fingerprint( file );
+			assertEquals( fingerprint, DetectionCache.fingerprint( file ) );
+
+			// edited in place, same length
+			final RandomAccessFile edit = new RandomAccessFile( file, "rw" );
+			try
+			{
+				edit.seek( UNSAMPLED );
+				edit.write( content[ UNSAMPLED ] + 1 );
+			}
+			finally
+			{
+				edit.close();
+			}
+			file.setLastModified( modified + 2000 );
+			assertFalse( fingerprint.equals( DetectionCache.fingerprint( file ) ) );
+
+			// the documented limit: an unsampled edit with the old time
+			file.setLastModified( modified );
+			assertEquals( fingerprint, DetectionCache.fingerprint( file ) );
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package net.chicoronny.trackmate.action;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the fields of the {@link CsvEncoder} against
+ * {@link String#format(Locale, String, Object...)}, which the exports used
+ * before.
+ */
+public class CsvEncoderTest {
+
+    private static final double[] SPECIAL = { 0, -0d, 0.5, -0.5, 2.5, 9.325, 0.465, 0.00005, -0.00005, -0.00001, 0.00015, 1.00005,
+	    123456789.123456, 1e12 + 0.5, 4503599627370496.5, 1e16, 1e20, -1e20, Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE,
+	    Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+    private static String encode(final double value, final int decimals) {
+	return new String(new CsvEncoder(16).field(value, decimals).toByteArray());
+    }
+
+    private static void check(final double value) {
+	for (int decimals = 0; decimals <= 8; decimals++)
+	    assertEquals(String.format(Locale.US, "%." + decimals + "f", value), encode(value, decimals));
+	// the exports write float values
+	final float single = (float) value;
+	assertEquals(String.format(Locale.US, "%.4f", single), encode(single, 4));
+    }
+
+    @Test
+    public void testSpecialDecimals() {
+	for (final double value : SPECIAL)
+	    check(value);
+    }
+
+    @Test
+    public void testRandomDecimals() {
+	final Random random = new Random(1);
+	for (int i = 0; i < 20000; i++) {
+	    check(random.nextGaussian() * 1000);
+	    // halves of the last decimal, where rounding differs most easily
+	    check((random.nextInt(2000000) - 1000000) / 1e4 + 0.00005);
+	    check(random.nextDouble() * Math.pow(10, random.nextInt(20) - 6));
+	}
+    }
+
+    @Test
+    public void testIntegers() {
+	final Random random = new Random(2);
+	final long[] special = { 0, 1, -1, 9, 10, -10, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+	for (final long value : special)
+	    assertEquals(String.format(Locale.US, "%d", value), new String(new CsvEncoder(4).field(value).toByteArray()));
+	for (int i = 0; i < 100000; i++) {
+	    final long value = random.nextLong() >> random.nextInt(64);
+	    assertEquals(String.format(Locale.US, "%d", value), new String(new CsvEncoder(4).field(value).toByteArray()));
+	}
+    }
+
+    @Test
+    public void testLine() {
+	final CsvEncoder encoder = new CsvEncoder(4);
+	encoder.field("TrackID").field(7).field(1.23456, 4).field((Double) null, 4).field(Long.MIN_VALUE).endLine();
+	encoder.field(-0.00001, 2).endLine();
+	assertEquals(String.format(Locale.US, "TrackID, %d, %.4f, , %d\n%.2f\n", 7, 1.23456, Long.MIN_VALUE, -0.00001),
+		new String(encoder.toByteArray()));
+	encoder.reset();
+	encoder.field(1).endLine();
+	assertEquals("1\n", new String(encoder.toByteArray()));
+    }
+}
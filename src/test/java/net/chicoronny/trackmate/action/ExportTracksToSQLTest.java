@@ -0,0 +1,263 @@
+package net.chicoronny.trackmate.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * Checks that the incremental export of {@link ExportTracksToSQL} leaves the
+ * same database as a full export of the edited model.
+ */
+public class ExportTracksToSQLTest {
+
+    private static final int TRACKS = 20, LENGTH = 10;
+
+    /** The spots of each track, in frame order. */
+    private final List<List<Spot>> tracks = new ArrayList<List<Spot>>();
+
+    private Model model() {
+	final Random random = new Random(5);
+	final Model model = new Model();
+	model.beginUpdate();
+	try {
+	    for (int t = 0; t < TRACKS; t++) {
+		final List<Spot> track = new ArrayList<Spot>();
+		for (int frame = 0; frame < LENGTH; frame++) {
+		    final Spot spot = new Spot(random.nextDouble() * 100, random.nextDouble() * 100, 0, 1, random.nextDouble());
+		    spot.putFeature(Spot.POSITION_T, (double) frame);
+		    model.addSpotTo(spot, frame);
+		    if (frame > 0)
+			model.addEdge(track.get(frame - 1), spot, 1);
+		    track.add(spot);
+		}
+		tracks.add(track);
+	    }
+	} finally {
+	    model.endUpdate();
+	}
+	return model;
+    }
+
+    /**
+     * Lists the rows of the tables, without the row IDs of the edges.
+     */
+    private static List<String> dump(final File file, final boolean spatialIndex) throws SQLException {
+	final List<String> rows = new ArrayList<String>();
+	final Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+	try {
+	    final Statement statement = connection.createStatement();
+	    final List<String> tables = new ArrayList<String>(Arrays.asList("tracks", "spots", "edges"));
+	    if (spatialIndex)
+		tables.addAll(Arrays.asList("track_bbox", "track_summary", "frame_summary"));
+	    for (final String table : tables) {
+		final ResultSet rs = statement.executeQuery("SELECT * FROM " + table);
+		final ResultSetMetaData meta = rs.getMetaData();
+		while (rs.next()) {
+		    final StringBuilder row = new StringBuilder(table);
+		    for (int i = 1; i <= meta.getColumnCount(); i++)
+			if (!(table.equals("edges") && meta.getColumnName(i).equals("id")))
+			    row.append(", ").append(rs.getString(i));
+		    rows.add(row.toString());
+		}
+		rs.close();
+	    }
+	    statement.close();
+	} finally {
+	    connection.close();
+	}
+	Collections.sort(rows);
+	return rows;
+    }
+
+    /**
+     * Exports the changes and compares the file with a full export.
+     */
+    private static long checkUpdate(final ExportTracksToSQL exporter, final Model model, final File file, final File full,
+	    final boolean spatialIndex) throws SQLException, IOException {
+	final long rows = exporter.exportChanges(model, file);
+	final ExportTracksToSQL fullExporter = new ExportTracksToSQL();
+	fullExporter.setSpatialIndex(spatialIndex);
+	assertTrue(fullExporter.export(model, null, full));
+	assertEquals(dump(full, spatialIndex), dump(file, spatialIndex));
+	return rows;
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+	update(false);
+    }
+
+    @Test
+    public void testUpdateSpatialIndex() throws Exception {
+	update(true);
+    }
+
+    private void update(final boolean spatialIndex) throws Exception {
+	final Model model = model();
+	final TrackModel tm = model.getTrackModel();
+	final File file = File.createTempFile("tracks", ".db");
+	final File full = File.createTempFile("full", ".db");
+	try {
+	    final ExportTracksToSQL exporter = new ExportTracksToSQL();
+	    exporter.setNumThreads(2);
+	    exporter.setSpatialIndex(spatialIndex);
+	    // tracks, spots and edges
+	    final long all = TRACKS * (1 + LENGTH + LENGTH - 1);
+	    assertEquals(all, exporter.exportChanges(model, file));
+
+	    // a moved spot rewrites its track only
+	    final Spot moved = tracks.get(3).get(4);
+	    model.beginUpdate();
+	    try {
+		moved.putFeature(Spot.POSITION_X, -1d);
+		model.updateFeatures(moved);
+	    } finally {
+		model.endUpdate();
+	    }
+	    assertEquals(2 * LENGTH, checkUpdate(exporter, model, file, full, spatialIndex));
+
+	    // nothing changed
+	    assertEquals(0, checkUpdate(exporter, model, file, full, spatialIndex));
+
+	    // a track split in two
+	    final List<Spot> split = tracks.get(5);
+	    model.beginUpdate();
+	    try {
+		model.removeEdge(split.get(4), split.get(5));
+	    } finally {
+		model.endUpdate();
+	    }
+	    assertEquals(2 + LENGTH + LENGTH - 2, checkUpdate(exporter, model, file, full, spatialIndex));
+
+	    // two tracks merged by a branch, the first spot of the second
+	    // track is left alone
+	    model.beginUpdate();
+	    try {
+		model.addEdge(tracks.get(7).get(0), tracks.get(8).get(1), 1);
+		model.removeEdge(tracks.get(8).get(0), tracks.get(8).get(1));
+	    } finally {
+		model.endUpdate();
+	    }
+	    assertEquals(1 + (2 * LENGTH - 1) + (2 * LENGTH - 2), checkUpdate(exporter, model, file, full, spatialIndex));
+
+	    // visibility changes are not recorded, the file is written anew;
+	    // one spot less and one track hidden
+	    final Integer hidden = tm.trackIDOf(tracks.get(10).get(0));
+	    model.beginUpdate();
+	    try {
+		model.setTrackVisibility(hidden, false);
+	    } finally {
+		model.endUpdate();
+	    }
+	    assertEquals(all - 2 - 2 * LENGTH, checkUpdate(exporter, model, file, full, spatialIndex));
+	} finally {
+	    file.delete();
+	    full.delete();
+	}
+    }
+
+    /**
+     * A split changes the track features of all tracks, as the track index
+     * of TrackMate may, without naming them in the change events.
+     */
+    @Test
+    public void testUpdateTrackIndex() throws Exception {
+	final Model model = model();
+	final Map<String, String> names = new HashMap<String, String>();
+	final Map<String, Dimension> dimensions = new HashMap<String, Dimension>();
+	final Map<String, Boolean> isInt = new HashMap<String, Boolean>();
+	for (final String feature : Arrays.asList(TRACK_INDEX, TRACK_SIZE)) {
+	    names.put(feature, feature);
+	    dimensions.put(feature, Dimension.NONE);
+	}
+	isInt.put(TRACK_INDEX, true);
+	isInt.put(TRACK_SIZE, false);
+	model.getFeatureModel().declareTrackFeatures(Arrays.asList(TRACK_INDEX, TRACK_SIZE), names, names, dimensions, isInt);
+	index(model, 0);
+	final File file = File.createTempFile("tracks", ".db");
+	final File full = File.createTempFile("full", ".db");
+	try {
+	    final ExportTracksToSQL exporter = new ExportTracksToSQL();
+	    exporter.exportChanges(model, file);
+
+	    // the features of the other tracks are unchanged
+	    final Spot moved = tracks.get(3).get(4);
+	    model.beginUpdate();
+	    try {
+		moved.putFeature(Spot.POSITION_X, -1d);
+		model.updateFeatures(moved);
+	    } finally {
+		model.endUpdate();
+	    }
+	    assertEquals(2 * LENGTH, checkUpdate(exporter, model, file, full, false));
+
+	    final List<Spot> split = tracks.get(5);
+	    model.beginUpdate();
+	    try {
+		model.removeEdge(split.get(4), split.get(5));
+	    } finally {
+		model.endUpdate();
+	    }
+	    index(model, 100);
+	    // the two halves are rewritten, the other tracks updated
+	    assertEquals(2 + LENGTH + LENGTH - 2 + TRACKS - 1, checkUpdate(exporter, model, file, full, false));
+	} finally {
+	    file.delete();
+	    full.delete();
+	}
+    }
+
+    private static final String TRACK_INDEX = "TRACK_INDEX", TRACK_SIZE = "TRACK_SIZE";
+
+    /**
+     * Numbers the visible tracks in model order and stores their sizes.
+     */
+    private static void index(final Model model, final int first) {
+	final TrackModel tm = model.getTrackModel();
+	int index = first;
+	for (final Integer trackID : tm.trackIDs(true)) {
+	    model.getFeatureModel().putTrackFeature(trackID, TRACK_INDEX, (double) index++);
+	    model.getFeatureModel().putTrackFeature(trackID, TRACK_SIZE, tm.trackSpots(trackID).size() / 3d);
+	}
+    }
+
+    @Test
+    public void testModifiedFile() throws Exception {
+	final Model model = model();
+	final File file = File.createTempFile("tracks", ".db");
+	try {
+	    final ExportTracksToSQL exporter = new ExportTracksToSQL();
+	    final long all = exporter.exportChanges(model, file);
+	    // written elsewhere in between, so written anew
+	    assertTrue(new ExportTracksToSQL().export(model, null, file));
+	    assertTrue(file.setLastModified(file.lastModified() - 10000));
+	    assertEquals(all, exporter.exportChanges(model, file));
+	    exporter.setIncremental(false);
+	    assertEquals(all, exporter.exportChanges(model, file));
+	} finally {
+	    file.delete();
+	}
+    }
+}
@@ -0,0 +1,134 @@
+package net.chicoronny.trackmate.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Reads planes through a {@link LazyVirtualStack} from a source that fails.
+ */
+public class LazyVirtualStackTest {
+
+    /**
+     * A movie of single channel planes, failing the first reads of a frame.
+     */
+    private static class FailingSource implements PlaneSource {
+
+	private final int sizeT = 5;
+
+	private final int failingFrame;
+
+	private final AtomicInteger failures;
+
+	private final AtomicInteger reads = new AtomicInteger();
+
+	FailingSource(final int failingFrame, final int failures) {
+	    this.failingFrame = failingFrame;
+	    this.failures = new AtomicInteger(failures);
+	}
+
+	@Override
+	public int getWidth() {
+	    return 4;
+	}
+
+	@Override
+	public int getHeight() {
+	    return 3;
+	}
+
+	@Override
+	public int getSizeC() {
+	    return 1;
+	}
+
+	@Override
+	public int getSizeZ() {
+	    return 1;
+	}
+
+	@Override
+	public int getSizeT() {
+	    return sizeT;
+	}
+
+	@Override
+	public int getBitDepth() {
+	    return 8;
+	}
+
+	@Override
+	public Calibration getCalibration() {
+	    return new Calibration();
+	}
+
+	@Override
+	public ImageProcessor openPlane(final int c, final int z, final int t) throws IOException {
+	    reads.incrementAndGet();
+	    if (t == failingFrame && failures.getAndDecrement() > 0)
+		throw new IOException("Cannot read frame " + t);
+	    final byte[] pixels = new byte[getWidth() * getHeight()];
+	    pixels[0] = (byte) t;
+	    return new ByteProcessor(getWidth(), getHeight(), pixels, null);
+	}
+
+	@Override
+	public void close() {
+	    // nothing to release
+	}
+    }
+
+    @Test
+    public void testRetry() throws IOException {
+	final FailingSource source = new FailingSource(2, 2);
+	final LazyVirtualStack stack = new LazyVirtualStack(source, 3, 0);
+	try {
+	    assertEquals(1, ((byte[]) stack.getPixels(2))[0]);
+	    // the failed read is not cached, every request reads again
+	    for (int i = 0; i < 2; i++) {
+		try {
+		    stack.getPixels(3);
+		    fail("The read should fail.");
+		} catch (final UncheckedIOException e) {
+		    assertEquals("Cannot read frame 2", e.getCause().getMessage());
+		}
+	    }
+	    assertEquals(2, ((byte[]) stack.getPixels(3))[0]);
+	    assertEquals(4, source.reads.get());
+	    // cached once read
+	    stack.getPixels(3);
+	    assertEquals(4, source.reads.get());
+	} finally {
+	    stack.close();
+	}
+    }
+
+    @Test
+    public void testFailedReadAhead() throws IOException {
+	final FailingSource source = new FailingSource(3, 1);
+	final LazyVirtualStack stack = new LazyVirtualStack(source, 2, 2);
+	try {
+	    // reads frames 2 and 3 ahead, frame 3 fails once, in the
+	    // background or on the first request
+	    assertEquals(1, ((byte[]) stack.getPixels(2))[0]);
+	    assertEquals(2, ((byte[]) stack.getPixels(3))[0]);
+	    try {
+		stack.getPixels(4);
+		fail("The read should fail.");
+	    } catch (final UncheckedIOException e) {
+		assertEquals("Cannot read frame 3", e.getCause().getMessage());
+	    }
+	    assertEquals(3, ((byte[]) stack.getPixels(4))[0]);
+	} finally {
+	    stack.close();
+	}
+    }
+}
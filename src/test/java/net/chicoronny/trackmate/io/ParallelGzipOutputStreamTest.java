@@ -0,0 +1,106 @@
+package net.chicoronny.trackmate.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+/**
+ * Checks that the output of the {@link ParallelGzipOutputStream} is read
+ * back by {@link GZIPInputStream}.
+ */
+public class ParallelGzipOutputStreamTest {
+
+    private static final int BLOCK_SIZE = 1 << 12;
+
+    /**
+     * Random CSV-like text, compressible like the exports.
+     */
+    private static byte[] data(final int size, final long seed) {
+	final Random random = new Random(seed);
+	final ByteArrayOutputStream bos = new ByteArrayOutputStream(size + 64);
+	while (bos.size() < size) {
+	    final byte[] line = (random.nextInt(1000) + ", " + random.nextGaussian() + "\n").getBytes();
+	    bos.write(line, 0, line.length);
+	}
+	final byte[] data = bos.toByteArray();
+	final byte[] cut = new byte[size];
+	System.arraycopy(data, 0, cut, 0, size);
+	return cut;
+    }
+
+    private static byte[] gunzip(final byte[] compressed) throws IOException {
+	final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+	try {
+	    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    final byte[] buffer = new byte[8192];
+	    int n;
+	    while ((n = in.read(buffer)) > 0)
+		bos.write(buffer, 0, n);
+	    return bos.toByteArray();
+	} finally {
+	    in.close();
+	}
+    }
+
+    private static int members(final byte[] compressed) {
+	// every member starts with the gzip magic and deflate method
+	int n = 0;
+	for (int i = 0; i + 2 < compressed.length; i++)
+	    if (compressed[i] == 0x1f && compressed[i + 1] == (byte) 0x8b && compressed[i + 2] == 8)
+		n++;
+	return n;
+    }
+
+    @Test
+    public void testChunkedWrites() throws IOException {
+	final Random random = new Random(7);
+	for (final int size : new int[] { 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 37 * BLOCK_SIZE + 123 }) {
+	    final byte[] data = data(size, size);
+	    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    final ParallelGzipOutputStream gz = new ParallelGzipOutputStream(bos, 4, BLOCK_SIZE);
+	    int off = 0;
+	    while (off < size) {
+		final int len = Math.min(size - off, random.nextInt(3 * BLOCK_SIZE));
+		gz.write(data, off, len);
+		off += len;
+		if (random.nextInt(10) == 0)
+		    gz.flush();
+	    }
+	    gz.close();
+	    final byte[] compressed = bos.toByteArray();
+	    assertArrayEquals(data, gunzip(compressed));
+	    assertTrue(members(compressed) >= (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+	}
+    }
+
+    @Test
+    public void testSingleBytes() throws IOException {
+	final byte[] data = data(3 * BLOCK_SIZE + 5, 3);
+	final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	final ParallelGzipOutputStream gz = new ParallelGzipOutputStream(bos, 2, BLOCK_SIZE);
+	for (final byte b : data)
+	    gz.write(b);
+	gz.close();
+	assertArrayEquals(data, gunzip(bos.toByteArray()));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+	final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	final ParallelGzipOutputStream gz = new ParallelGzipOutputStream(bos, 2);
+	gz.close();
+	// a closed stream is still a valid gzip file
+	assertEquals(1, members(bos.toByteArray()));
+	assertEquals(0, gunzip(bos.toByteArray()).length);
+	gz.close();
+    }
+}
@@ -0,0 +1,216 @@
+package net.chicoronny.trackmate.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips of movies through the {@link RawPlaneCache}.
+ */
+public class RawPlaneCacheTest {
+
+    /**
+     * A movie of random planes held in memory.
+     */
+    private static class MemorySource implements PlaneSource {
+
+	private final int width = 37, height = 23, sizeC = 2, sizeZ = 3, sizeT = 4;
+
+	private final int bitDepth;
+
+	private final Object[] planes;
+
+	private final Calibration calibration = new Calibration();
+
+	MemorySource(final int bitDepth, final long seed) {
+	    this.bitDepth = bitDepth;
+	    final Random random = new Random(seed);
+	    planes = new Object[sizeC * sizeZ * sizeT];
+	    for (int i = 0; i < planes.length; i++) {
+		final int n = width * height;
+		if (bitDepth == 8) {
+		    final byte[] pixels = new byte[n];
+		    random.nextBytes(pixels);
+		    planes[i] = pixels;
+		} else if (bitDepth == 16) {
+		    final short[] pixels = new short[n];
+		    for (int j = 0; j < n; j++)
+			pixels[j] = (short) random.nextInt();
+		    planes[i] = pixels;
+		} else {
+		    final float[] pixels = new float[n];
+		    for (int j = 0; j < n; j++)
+			pixels[j] = (float) random.nextGaussian();
+		    planes[i] = pixels;
+		}
+	    }
+	    calibration.pixelWidth = 0.16;
+	    calibration.pixelHeight = 0.17;
+	    calibration.pixelDepth = 0.5;
+	    calibration.frameInterval = 30;
+	    calibration.setUnit("micron");
+	    calibration.setTimeUnit("sec");
+	}
+
+	/** The index of a plane in the order of the channel, slice and frame loops of the cache. */
+	int index(final int c, final int z, final int t) {
+	    return (t * sizeZ + z) * sizeC + c;
+	}
+
+	@Override
+	public int getWidth() {
+	    return width;
+	}
+
+	@Override
+	public int getHeight() {
+	    return height;
+	}
+
+	@Override
+	public int getSizeC() {
+	    return sizeC;
+	}
+
+	@Override
+	public int getSizeZ() {
+	    return sizeZ;
+	}
+
+	@Override
+	public int getSizeT() {
+	    return sizeT;
+	}
+
+	@Override
+	public int getBitDepth() {
+	    return bitDepth;
+	}
+
+	@Override
+	public Calibration getCalibration() {
+	    return calibration.copy();
+	}
+
+	@Override
+	public ImageProcessor openPlane(final int c, final int z, final int t) {
+	    final Object pixels = planes[index(c, z, t)];
+	    if (bitDepth == 8)
+		return new ByteProcessor(width, height, (byte[]) pixels, null);
+	    if (bitDepth == 16)
+		return new ShortProcessor(width, height, (short[]) pixels, null);
+	    return new FloatProcessor(width, height, (float[]) pixels, null);
+	}
+
+	@Override
+	public void close() {
+	}
+    }
+
+    private static void check(final MemorySource source, final RawPlaneCache cache) throws IOException {
+	assertEquals(source.getWidth(), cache.getWidth());
+	assertEquals(source.getHeight(), cache.getHeight());
+	assertEquals(source.getSizeC(), cache.getSizeC());
+	assertEquals(source.getSizeZ(), cache.getSizeZ());
+	assertEquals(source.getSizeT(), cache.getSizeT());
+	assertEquals(source.getBitDepth(), cache.getBitDepth());
+	final Calibration cal = cache.getCalibration();
+	assertEquals(0.16, cal.pixelWidth, 0);
+	assertEquals(0.17, cal.pixelHeight, 0);
+	assertEquals(0.5, cal.pixelDepth, 0);
+	assertEquals(30, cal.frameInterval, 0);
+	assertEquals("micron", cal.getUnit());
+	assertEquals("sec", cal.getTimeUnit());
+	// read in reverse, planes are independent of the reading order
+	for (int t = source.getSizeT() - 1; t >= 0; t--)
+	    for (int z = source.getSizeZ() - 1; z >= 0; z--)
+		for (int c = source.getSizeC() - 1; c >= 0; c--) {
+		    final ImageProcessor expected = source.openPlane(c, z, t);
+		    final ImageProcessor actual = cache.openPlane(c, z, t);
+		    assertEquals(source.getWidth(), actual.getWidth());
+		    assertEquals(source.getHeight(), actual.getHeight());
+		    if (source.getBitDepth() == 8)
+			assertArrayEquals((byte[]) expected.getPixels(), (byte[]) actual.getPixels());
+		    else if (source.getBitDepth() == 16)
+			assertArrayEquals((short[]) expected.getPixels(), (short[]) actual.getPixels());
+		    else
+			assertArrayEquals((float[]) expected.getPixels(), (float[]) actual.getPixels(), 0);
+		}
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+	for (final int bitDepth : new int[] { 8, 16, 32 }) {
+	    final MemorySource source = new MemorySource(bitDepth, bitDepth);
+	    final File file = File.createTempFile("movie", RawPlaneCache.SUFFIX);
+	    try {
+		RawPlaneCache.write(source, 3, file);
+		assertFalse(new File(file.getPath() + ".part").exists());
+		final RawPlaneCache cache = new RawPlaneCache(file);
+		assertEquals(3, cache.getSeriesCount());
+		check(source, cache);
+	    } finally {
+		file.delete();
+	    }
+	}
+    }
+
+    @Test
+    public void testSingleSeries() throws IOException {
+	final MemorySource source = new MemorySource(16, 1);
+	final File file = File.createTempFile("movie", RawPlaneCache.SUFFIX);
+	try {
+	    RawPlaneCache.write(source, file);
+	    final RawPlaneCache cache = new RawPlaneCache(file);
+	    assertEquals(1, cache.getSeriesCount());
+	    check(source, cache);
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+	final File file = File.createTempFile("movie", RawPlaneCache.SUFFIX);
+	try {
+	    RawPlaneCache.write(new MemorySource(8, 2), file);
+	    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	    try {
+		raf.setLength(raf.length() - 1);
+	    } finally {
+		raf.close();
+	    }
+	    try {
+		new RawPlaneCache(file);
+		fail("A truncated cache was opened.");
+	    } catch (final IOException e) {
+		// expected
+	    }
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotACache() throws IOException {
+	final File file = File.createTempFile("movie", RawPlaneCache.SUFFIX);
+	try {
+	    new RawPlaneCache(file);
+	} finally {
+	    file.delete();
+	}
+    }
+}
@@ -0,0 +1,107 @@
+package net.chicoronny.trackmate.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * Round trips of spot collections through {@link SpotSnapshotWriter} and
+ * {@link SpotSnapshotReader}.
+ */
+public class SpotSnapshotTest {
+
+    private static final String MEAN = "MEAN_INTENSITY";
+
+    private static final String MISSING = "NOT_COMPUTED";
+
+    @Test
+    public void testRoundTrip() throws IOException {
+	final Random random = new Random(42);
+	final SpotCollection spots = new SpotCollection();
+	final Map<Integer, Spot> byID = new HashMap<Integer, Spot>();
+	// frame 2 stays empty, frame 5 holds a hidden spot only
+	for (final int frame : new int[] { 0, 1, 3, 4 })
+	    for (int i = 0; i < 50; i++) {
+		final Spot spot = new Spot(random.nextDouble() * 512, random.nextDouble() * 512, random.nextDouble() * 10,
+			1 + random.nextDouble(), random.nextDouble() * 100);
+		spot.putFeature(MEAN, random.nextGaussian());
+		spots.add(spot, frame);
+		spot.putFeature(SpotCollection.VISIBILITY, i % 5 == 0 ? SpotCollection.ZERO : SpotCollection.ONE);
+		byID.put(spot.ID(), spot);
+	    }
+	final Spot hidden = new Spot(1, 2, 3, 1, 1);
+	spots.add(hidden, 5);
+	hidden.putFeature(SpotCollection.VISIBILITY, SpotCollection.ZERO);
+
+	final File file = File.createTempFile("snapshot", ".tmss");
+	try {
+	    SpotSnapshotWriter.write(spots, Arrays.asList(MEAN, MISSING), true, file);
+	    final SpotSnapshotReader reader = new SpotSnapshotReader(file);
+
+	    assertEquals(spots.getNSpots(true), reader.numSpots());
+	    assertEquals(Arrays.asList(MEAN, MISSING), reader.getFeatureNames());
+	    assertEquals(4, reader.numFrames());
+	    int start = 0;
+	    for (int f = 0; f < reader.numFrames(); f++) {
+		assertEquals(start, reader.getFrameStart(f));
+		assertEquals(spots.getNSpots(true) / 4, reader.getFrameSize(f));
+		start += reader.getFrameSize(f);
+	    }
+
+	    for (int i = 0; i < reader.numSpots(); i++) {
+		final Spot spot = byID.get(reader.getID(i));
+		assertEquals(1d, spot.getFeature(SpotCollection.VISIBILITY), 0);
+		assertEquals(spot.getFeature(Spot.POSITION_X), reader.getX(i), 0);
+		assertEquals(spot.getFeature(Spot.POSITION_Y), reader.getY(i), 0);
+		assertEquals(spot.getFeature(Spot.POSITION_Z), reader.getZ(i), 0);
+		assertEquals(spot.getFeature(Spot.RADIUS).floatValue(), reader.getRadius(i), 0);
+		assertEquals(spot.getFeature(Spot.QUALITY).floatValue(), reader.getQuality(i), 0);
+		assertEquals(spot.getFeature(MEAN), reader.getFeature(i, 0), 0);
+		assertTrue(Double.isNaN(reader.getFeature(i, 1)));
+	    }
+
+	    final SpotCollection read = reader.toSpotCollection();
+	    assertEquals(spots.getNSpots(true), read.getNSpots(true));
+	    for (final Integer frame : spots.keySet()) {
+		final Iterator<Spot> it = read.iterator(frame, true);
+		while (it.hasNext()) {
+		    final Spot spot = it.next();
+		    final Spot original = byID.get(spot.ID());
+		    assertEquals(frame.intValue(), original.getFeature(Spot.FRAME).intValue());
+		    assertEquals(original.getFeature(Spot.POSITION_X), spot.getFeature(Spot.POSITION_X), 0);
+		    assertEquals(original.getFeature(MEAN), spot.getFeature(MEAN), 0);
+		    assertNull(spot.getFeature(MISSING));
+		}
+	    }
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+	final File file = File.createTempFile("snapshot", ".tmss");
+	try {
+	    SpotSnapshotWriter.write(new SpotCollection(), Arrays.<String> asList(), false, file);
+	    final SpotSnapshotReader reader = new SpotSnapshotReader(file);
+	    assertEquals(0, reader.numSpots());
+	    assertEquals(0, reader.numFrames());
+	    assertEquals(0, reader.toSpotCollection().getNSpots(false));
+	} finally {
+	    file.delete();
+	}
+    }
+}
@@ -0,0 +1,109 @@
+package net.chicoronny.trackmate.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * Reads TrackMate XML files with {@link SpotXmlStreamReader} and compares the
+ * spots with the content of the files.
+ */
+public class SpotXmlStreamReaderTest {
+
+    private static final File SAMPLE = new File("samples/CRTD14.xml");
+
+    private static final String[] FEATURES = { Spot.POSITION_X, Spot.POSITION_Y, Spot.POSITION_T, Spot.RADIUS, Spot.QUALITY,
+	    "MEAN_INTENSITY" };
+
+    @Test
+    public void testSample() throws Exception {
+	final SpotXmlStreamReader reader = new SpotXmlStreamReader(SAMPLE);
+	final SpotCollection spots = reader.readSpots();
+	assertNotNull(reader.getErrorMessage(), spots);
+
+	final NodeList elements = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(SAMPLE).getElementsByTagName("Spot");
+	assertEquals(4962, elements.getLength());
+	assertEquals(elements.getLength(), spots.getNSpots(false));
+	for (int i = 0; i < elements.getLength(); i++) {
+	    final Element element = (Element) elements.item(i);
+	    final int frame = Integer.parseInt(((Element) element.getParentNode()).getAttribute("frame"));
+	    final Spot spot = spots.search(Integer.parseInt(element.getAttribute("ID")));
+	    assertNotNull(spot);
+	    assertEquals(frame, spot.getFeature(Spot.FRAME).intValue());
+	    for (final String feature : FEATURES)
+		assertEquals(feature, Double.parseDouble(element.getAttribute(feature)), spot.getFeature(feature), 0);
+	}
+
+	// every spot is stored under its frame
+	int n = 0;
+	for (final Integer frame : spots.keySet())
+	    for (final Spot spot : spots.iterable(frame, false)) {
+		assertEquals(frame.intValue(), spot.getFeature(Spot.FRAME).intValue());
+		n++;
+	    }
+	assertEquals(elements.getLength(), n);
+    }
+
+    @Test
+    public void testDefaults() throws IOException {
+	final File file = write("<TrackMate><Model><AllSpots nspots=\"2\">"
+		+ "<SpotsInFrame frame=\"3\"><Spot ID=\"7\" name=\"ID7\" POSITION_X=\"1.5\" POSITION_Y=\"2.5\" /></SpotsInFrame>"
+		+ "<SpotsInFrame frame=\"4\"><Spot ID=\"8\" POSITION_X=\"3\" POSITION_Y=\"4\" POSITION_T=\"2.0\" VISIBILITY=\"0\" /></SpotsInFrame>"
+		+ "</AllSpots><AllTracks /></Model></TrackMate>");
+	try {
+	    final SpotCollection spots = new SpotXmlStreamReader(file).readSpots();
+	    assertEquals(2, spots.getNSpots(false));
+	    final Spot first = spots.search(7);
+	    assertEquals(1.5, first.getFeature(Spot.POSITION_X), 0);
+	    assertEquals(0, first.getFeature(Spot.POSITION_Z), 0);
+	    assertEquals(3, first.getFeature(Spot.FRAME), 0);
+	    assertEquals(3, first.getFeature(Spot.POSITION_T), 0);
+	    assertEquals(0.5, first.getFeature(Spot.RADIUS), 0);
+	    assertEquals(1, first.getFeature(SpotCollection.VISIBILITY), 0);
+	    final Spot second = spots.search(8);
+	    assertEquals(4, second.getFeature(Spot.FRAME), 0);
+	    assertEquals(2, second.getFeature(Spot.POSITION_T), 0);
+	    assertEquals(0, second.getFeature(SpotCollection.VISIBILITY), 0);
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+	final File file = write("<TrackMate><Model><AllSpots><SpotsInFrame frame=\"0\"><Spot ID=\"1\" POSITION_X=\"x\" />");
+	try {
+	    final SpotXmlStreamReader reader = new SpotXmlStreamReader(file);
+	    assertNull(reader.readSpots());
+	    assertTrue(reader.getErrorMessage(), reader.getErrorMessage().startsWith("Malformed number"));
+	} finally {
+	    file.delete();
+	}
+    }
+
+    private static File write(final String xml) throws IOException {
+	final File file = File.createTempFile("spots", ".xml");
+	final OutputStream out = new FileOutputStream(file);
+	try {
+	    out.write(xml.getBytes("UTF-8"));
+	} finally {
+	    out.close();
+	}
+	return file;
+    }
+}
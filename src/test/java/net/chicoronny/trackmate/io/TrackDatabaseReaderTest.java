@@ -0,0 +1,299 @@
+package net.chicoronny.trackmate.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import net.chicoronny.trackmate.action.ExportTracksToSQL;
+import net.chicoronny.trackmate.action.ExportTracksToSQL.Consolidated;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+
+/**
+ * Round trips of models through {@link ExportTracksToSQL} and
+ * {@link TrackDatabaseReader}, for single movie and consolidated databases.
+ */
+public class TrackDatabaseReaderTest {
+
+    private static final String MEAN = "MEAN_INTENSITY";
+
+    private static final String SPEED = "SPEED";
+
+    private static final String TRACK_SPEED = "TRACK_MEAN_SPEED";
+
+    private static final String TRACK_SPOTS = "NUMBER_SPOTS";
+
+    /**
+     * Creates tracks of random walks. Every third track splits in two
+     * branches, which frame order alone cannot restore.
+     */
+    private static Model model(final long seed, final int nTracks) {
+	final Random random = new Random(seed);
+	final Model model = new Model();
+	final FeatureModel fm = model.getFeatureModel();
+	final Map<String, String> names = new HashMap<String, String>();
+	final Map<String, Dimension> dimensions = new HashMap<String, Dimension>();
+	final Map<String, Boolean> isInt = new HashMap<String, Boolean>();
+	for (final String feature : new String[] { MEAN, EdgeTargetAnalyzer.EDGE_COST, SPEED, TRACK_SPEED, TRACK_SPOTS }) {
+	    names.put(feature, feature);
+	    dimensions.put(feature, Dimension.NONE);
+	    isInt.put(feature, feature.equals(TRACK_SPOTS));
+	}
+	fm.declareSpotFeatures(Arrays.asList(MEAN), names, names, dimensions, isInt);
+	fm.declareEdgeFeatures(Arrays.asList(EdgeTargetAnalyzer.EDGE_COST, SPEED), names, names, dimensions, isInt);
+	fm.declareTrackFeatures(Arrays.asList(TRACK_SPEED, TRACK_SPOTS), names, names, dimensions, isInt);
+
+	final List<DefaultWeightedEdge> edges = new ArrayList<DefaultWeightedEdge>();
+	model.beginUpdate();
+	try {
+	    for (int t = 0; t < nTracks; t++) {
+		Spot previous = spot(model, random, random.nextInt(5), null);
+		final int length = 3 + random.nextInt(8);
+		for (int i = 1; i < length; i++) {
+		    final Spot spot = spot(model, random, previous.getFeature(Spot.FRAME).intValue() + 1, previous);
+		    edges.add(model.addEdge(previous, spot, random.nextDouble()));
+		    if (t % 3 == 0 && i == 1) {
+			final Spot branch = spot(model, random, spot.getFeature(Spot.FRAME).intValue(), previous);
+			edges.add(model.addEdge(previous, branch, random.nextDouble()));
+		    }
+		    previous = spot;
+		}
+	    }
+	} finally {
+	    model.endUpdate();
+	}
+
+	for (final DefaultWeightedEdge edge : edges) {
+	    fm.putEdgeFeature(edge, EdgeTargetAnalyzer.EDGE_COST, model.getTrackModel().getEdgeWeight(edge));
+	    fm.putEdgeFeature(edge, SPEED, random.nextDouble());
+	}
+	for (final Integer trackID : model.getTrackModel().trackIDs(false)) {
+	    fm.putTrackFeature(trackID, TRACK_SPEED, random.nextDouble());
+	    fm.putTrackFeature(trackID, TRACK_SPOTS, (double) model.getTrackModel().trackSpots(trackID).size());
+	}
+	return model;
+    }
+
+    private static Spot spot(final Model model, final Random random, final int frame, final Spot previous) {
+	final double x = null == previous ? random.nextDouble() * 500 : previous.getFeature(Spot.POSITION_X) + random.nextGaussian();
+	final double y = null == previous ? random.nextDouble() * 500 : previous.getFeature(Spot.POSITION_Y) + random.nextGaussian();
+	final Spot spot = new Spot(x, y, 0, 2, random.nextDouble() * 50);
+	spot.putFeature(Spot.POSITION_T, frame * 2d);
+	spot.putFeature(MEAN, random.nextDouble() * 1000);
+	model.addSpotTo(spot, frame);
+	return spot;
+    }
+
+    private static Set<Integer> ids(final Set<Spot> spots) {
+	final Set<Integer> ids = new HashSet<Integer>();
+	for (final Spot spot : spots)
+	    ids.add(spot.ID());
+	return ids;
+    }
+
+    private static Map<String, DefaultWeightedEdge> links(final TrackModel tm) {
+	final Map<String, DefaultWeightedEdge> links = new HashMap<String, DefaultWeightedEdge>();
+	for (final Integer trackID : tm.trackIDs(false))
+	    for (final DefaultWeightedEdge edge : tm.trackEdges(trackID))
+		links.put(tm.getEdgeSource(edge).ID() + ">" + tm.getEdgeTarget(edge).ID(), edge);
+	return links;
+    }
+
+    /**
+     * Checks a stored value. Decimal features are stored in single precision.
+     */
+    private static void assertStored(final String feature, final Double expected, final Double actual) {
+	final double value = null == expected ? 0 : expected.doubleValue();
+	assertEquals(feature, (float) value, actual.floatValue(), 0);
+    }
+
+    /**
+     * Checks that the read model holds the visible tracks of the original.
+     */
+    private static void check(final Model expected, final Model actual) {
+	final TrackModel etm = expected.getTrackModel();
+	final TrackModel atm = actual.getTrackModel();
+	final FeatureModel efm = expected.getFeatureModel();
+	final FeatureModel afm = actual.getFeatureModel();
+	assertTrue(afm.getSpotFeatures().contains(MEAN));
+	assertTrue(afm.getEdgeFeatures().containsAll(Arrays.asList(EdgeTargetAnalyzer.EDGE_COST, SPEED)));
+	assertTrue(afm.getTrackFeatures().containsAll(Arrays.asList(TRACK_SPEED, TRACK_SPOTS)));
+	assertTrue(afm.getTrackFeatureIsInt().get(TRACK_SPOTS));
+
+	int nSpots = 0;
+	for (final Integer trackID : etm.trackIDs(true))
+	    nSpots += etm.trackSpots(trackID).size();
+	assertEquals(nSpots, actual.getSpots().getNSpots(false));
+	assertEquals(etm.nTracks(true), atm.nTracks(false));
+
+	final Map<Integer, Spot> spots = new HashMap<Integer, Spot>();
+	for (final Spot spot : actual.getSpots().iterable(false))
+	    spots.put(spot.ID(), spot);
+	for (final Integer trackID : etm.trackIDs(true)) {
+	    final Set<Spot> trackSpots = etm.trackSpots(trackID);
+	    // track IDs are assigned anew, the spots are the same
+	    final Integer readID = atm.trackIDOf(spots.get(trackSpots.iterator().next().ID()));
+	    assertNotNull(readID);
+	    assertEquals(ids(trackSpots), ids(atm.trackSpots(readID)));
+	    assertStored(TRACK_SPEED, efm.getTrackFeature(trackID, TRACK_SPEED), afm.getTrackFeature(readID, TRACK_SPEED));
+	    assertEquals(efm.getTrackFeature(trackID, TRACK_SPOTS), afm.getTrackFeature(readID, TRACK_SPOTS), 0);
+	    for (final Spot spot : trackSpots) {
+		final Spot read = spots.get(spot.ID());
+		for (final String feature : efm.getSpotFeatures())
+		    if (!Spot.VISIBILITY.equals(feature))
+			assertStored(feature, spot.getFeature(feature), read.getFeature(feature));
+		assertEquals(spot.getFeature(Spot.FRAME).intValue(), read.getFeature(Spot.FRAME).intValue());
+	    }
+	}
+
+	final Map<String, DefaultWeightedEdge> expectedLinks = new HashMap<String, DefaultWeightedEdge>();
+	for (final Integer trackID : etm.trackIDs(true))
+	    for (final DefaultWeightedEdge edge : etm.trackEdges(trackID))
+		expectedLinks.put(etm.getEdgeSource(edge).ID() + ">" + etm.getEdgeTarget(edge).ID(), edge);
+	final Map<String, DefaultWeightedEdge> actualLinks = links(atm);
+	assertEquals(expectedLinks.keySet(), actualLinks.keySet());
+	for (final Map.Entry<String, DefaultWeightedEdge> link : expectedLinks.entrySet()) {
+	    final DefaultWeightedEdge edge = actualLinks.get(link.getKey());
+	    assertStored(SPEED, efm.getEdgeFeature(link.getValue(), SPEED), afm.getEdgeFeature(edge, SPEED));
+	    assertStored(EdgeTargetAnalyzer.EDGE_COST, efm.getEdgeFeature(link.getValue(), EdgeTargetAnalyzer.EDGE_COST),
+		    afm.getEdgeFeature(edge, EdgeTargetAnalyzer.EDGE_COST));
+	    assertStored("weight", etm.getEdgeWeight(link.getValue()), atm.getEdgeWeight(edge));
+	}
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+	final Model model = model(1, 30);
+	final File file = File.createTempFile("tracks", ".db");
+	try {
+	    final ExportTracksToSQL exporter = new ExportTracksToSQL();
+	    exporter.setNumThreads(2);
+	    assertTrue(exporter.export(model, null, file));
+	    final TrackDatabaseReader reader = new TrackDatabaseReader(file);
+	    reader.setNumThreads(2);
+	    final Model read = reader.readModel();
+	    assertNotNull(reader.getErrorMessage(), read);
+	    check(model, read);
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+	// enough spots for several rowid ranges
+	final Model model = model(5, 4000);
+	final File file = File.createTempFile("tracks", ".db");
+	try {
+	    assertTrue(new ExportTracksToSQL().export(model, null, file));
+	    final TrackDatabaseReader reader = new TrackDatabaseReader(file);
+	    reader.setNumThreads(3);
+	    final Model read = reader.readModel();
+	    assertNotNull(reader.getErrorMessage(), read);
+	    check(model, read);
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testHiddenTracks() throws IOException {
+	final Model model = model(2, 12);
+	final TrackModel tm = model.getTrackModel();
+	int n = 0;
+	for (final Integer trackID : tm.trackIDs(false))
+	    if (n++ % 2 == 0)
+		tm.setVisibility(trackID, false);
+	final File file = File.createTempFile("tracks", ".db");
+	try {
+	    assertTrue(new ExportTracksToSQL().export(model, null, file));
+	    final Model read = new TrackDatabaseReader(file).readModel();
+	    assertEquals(6, read.getTrackModel().nTracks(false));
+	    check(model, read);
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testConsolidated() throws Exception {
+	final Model first = model(3, 10);
+	final Model second = model(4, 15);
+	final File file = File.createTempFile("consolidated", ".db");
+	file.delete();
+	try {
+	    final Consolidated db = new ExportTracksToSQL().openConsolidated(file);
+	    try {
+		db.append(new File("movie.tif"), 0, 1, first, null, 10).get();
+		db.append(new File("movie.tif"), 1, 1, second, null, 20).get();
+	    } finally {
+		db.close();
+	    }
+
+	    final TrackDatabaseReader reader = new TrackDatabaseReader(file);
+	    assertNull(reader.readModel());
+	    assertNotNull(reader.getErrorMessage());
+	    reader.setMovie(1);
+	    check(first, reader.readModel());
+	    reader.setMovie(2);
+	    check(second, reader.readModel());
+	    reader.setMovie(3);
+	    assertEquals(0, reader.readModel().getSpots().getNSpots(false));
+	} finally {
+	    file.delete();
+	    new File(file.getPath() + "-wal").delete();
+	    new File(file.getPath() + "-shm").delete();
+	}
+    }
+
+    @Test
+    public void testForeignDatabase() throws Exception {
+	final File file = File.createTempFile("other", ".db");
+	try {
+	    final Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+	    try {
+		final Statement statement = connection.createStatement();
+		statement.executeUpdate("CREATE TABLE spots (id INTEGER PRIMARY KEY, track_id INTEGER)");
+		statement.close();
+	    } finally {
+		connection.close();
+	    }
+	    final TrackDatabaseReader reader = new TrackDatabaseReader(file);
+	    assertNull(reader.readModel());
+	    assertEquals("Reading " + file.getName() + " failed: No table edges.", reader.getErrorMessage());
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testMissingFile() {
+	final File file = new File(System.getProperty("java.io.tmpdir"), "no-such-dir/tracks.db");
+	final TrackDatabaseReader reader = new TrackDatabaseReader(file);
+	assertNull(reader.readModel());
+	assertNotNull(reader.getErrorMessage());
+    }
+}
@@ -0,0 +1,146 @@
+package net.chicoronny.trackmate.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.chicoronny.trackmate.io.TrajectoryReader.Trajectory;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Round trips of tracks through {@link TrajectoryWriter} and
+ * {@link TrajectoryReader}.
+ */
+public class TrajectoryTest {
+
+    private static final double QUANTUM = TrajectoryWriter.DEFAULT_QUANTUM;
+
+    /**
+     * Creates a track of random walk spots, in random order.
+     */
+    private static List<Spot> track(final Random random, final int size, final double step) {
+	final List<Spot> spots = new ArrayList<Spot>(size);
+	double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000, z = random.nextDouble() * 10;
+	int frame = random.nextInt(10);
+	for (int i = 0; i < size; i++) {
+	    final Spot spot = new Spot(x, y, z, 1, 1);
+	    spot.putFeature(Spot.FRAME, (double) frame);
+	    spot.putFeature(Spot.POSITION_T, frame * 0.5);
+	    spots.add(spot);
+	    frame += 1 + random.nextInt(3);
+	    x += random.nextGaussian() * step;
+	    y -= random.nextGaussian() * step;
+	    z += random.nextGaussian() * step / 10;
+	}
+	Collections.shuffle(spots, random);
+	return spots;
+    }
+
+    private static void write(final Map<Integer, List<Spot>> tracks, final File file) throws IOException {
+	final TrajectoryWriter writer = new TrajectoryWriter(file, QUANTUM);
+	try {
+	    for (final Map.Entry<Integer, List<Spot>> track : tracks.entrySet())
+		writer.addTrack(track.getKey(), TrajectoryWriter.encode(track.getValue(), QUANTUM));
+	} finally {
+	    writer.close();
+	}
+    }
+
+    private static void check(final Map<Integer, List<Spot>> tracks, final TrajectoryReader reader) {
+	assertEquals(QUANTUM, reader.getQuantum(), 0);
+	assertEquals(tracks.size(), reader.numTracks());
+	final int[] ids = new int[tracks.size()];
+	int n = 0;
+	for (final Integer id : tracks.keySet())
+	    ids[n++] = id;
+	assertArrayEquals(ids, reader.getTrackIDs());
+	for (final Map.Entry<Integer, List<Spot>> track : tracks.entrySet()) {
+	    assertTrue(reader.contains(track.getKey()));
+	    final List<Spot> spots = new ArrayList<Spot>(track.getValue());
+	    Collections.sort(spots, Spot.timeComparator);
+	    final Trajectory t = reader.getTrack(track.getKey());
+	    assertEquals(track.getKey().intValue(), t.trackID);
+	    assertEquals(spots.size(), t.size());
+	    for (int k = 0; k < spots.size(); k++) {
+		final Spot spot = spots.get(k);
+		assertEquals(spot.getFeature(Spot.FRAME).intValue(), t.frames[k]);
+		assertEquals(spot.ID(), t.spotIDs[k]);
+		assertEquals(spot.getFeature(Spot.POSITION_X), t.x[k], QUANTUM);
+		assertEquals(spot.getFeature(Spot.POSITION_Y), t.y[k], QUANTUM);
+		assertEquals(spot.getFeature(Spot.POSITION_Z), t.z[k], QUANTUM);
+	    }
+	}
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+	final Random random = new Random(11);
+	final Map<Integer, List<Spot>> tracks = new LinkedHashMap<Integer, List<Spot>>();
+	for (int i = 0; i < 3000; i++)
+	    tracks.put(random.nextInt(Integer.MAX_VALUE), track(random, 1 + random.nextInt(60), 2));
+	tracks.put(-1, track(random, 1, 2));
+	final File file = File.createTempFile("trajectories", ".tmtr");
+	try {
+	    write(tracks, file);
+	    final TrajectoryReader reader = new TrajectoryReader(file);
+	    check(tracks, reader);
+	    assertFalse(reader.contains(-2));
+	    assertNull(reader.getTrack(-2));
+	} finally {
+	    file.delete();
+	}
+    }
+
+    /**
+     * The blocks are larger than the write buffer of the writer and the
+     * mapped segments of the reader, which are cut small to get several.
+     */
+    @Test
+    public void testLargeTracks() throws IOException {
+	final Random random = new Random(12);
+	final Map<Integer, List<Spot>> tracks = new LinkedHashMap<Integer, List<Spot>>();
+	tracks.put(1, track(random, 10, 2));
+	// large steps, over 10 bytes per spot
+	tracks.put(2, track(random, 100000, 1e4));
+	tracks.put(3, track(random, 10, 2));
+	tracks.put(4, track(random, 10, 2));
+	tracks.put(5, track(random, 100000, 1e4));
+	final File file = File.createTempFile("trajectories", ".tmtr");
+	try {
+	    write(tracks, file);
+	    assertTrue(file.length() > 2 << 20);
+	    check(tracks, new TrajectoryReader(file));
+	    check(tracks, new TrajectoryReader(file, 1 << 16));
+	    check(tracks, new TrajectoryReader(file, 1 << 10));
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+	final File file = File.createTempFile("trajectories", ".tmtr");
+	try {
+	    write(new LinkedHashMap<Integer, List<Spot>>(), file);
+	    final TrajectoryReader reader = new TrajectoryReader(file);
+	    assertEquals(0, reader.numTracks());
+	    assertNull(reader.getTrack(0));
+	} finally {
+	    file.delete();
+	}
+    }
+}
@@ -0,0 +1,102 @@
+package net.chicoronny.trackmate.lineartracker;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the per-node cost evaluation of the KD-tree search with the batch
+ * evaluation of the {@link LinkingCostKernel}. Run {@link #main(String[])} on
+ * the test class path after <code>mvn test-compile</code>, which generates the
+ * JMH harness through the annotation processor.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+public class LinkingCostBenchmark
+{
+
+	@Param( { "16", "256", "4096" } )
+	private int nCandidates;
+
+	private double[][] coords;
+
+	private float[] radius;
+
+	private float[] quality;
+
+	private final double[] pos = new double[] { 50, 50, 0 };
+
+	private final double[] oldCoords = new double[] { 45, 47, 0 };
+
+	private final LinkingCostKernel kernel = new LinkingCostKernel();
+
+	@Setup
+	public void setup()
+	{
+		final Random random = new Random( 1l );
+		coords = new double[ nCandidates ][ 3 ];
+		radius = new float[ nCandidates ];
+		quality = new float[ nCandidates ];
+		for ( int i = 0; i < nCandidates; i++ )
+		{
+			coords[ i ][ 0 ] = 40 + 20 * random.nextDouble();
+			coords[ i ][ 1 ] = 40 + 20 * random.nextDouble();
+			radius[ i ] = 2 + random.nextFloat();
+			quality[ i ] = 100 * random.nextFloat();
+		}
+	}
+
+	@Benchmark
+	public void perNode( final Blackhole bh )
+	{
+		final double[] longVector = LTUtils.Subtract( pos, oldCoords );
+		for ( int i = 0; i < nCandidates; i++ )
+		{
+			final double[] c = coords[ i ];
+			final double squDistance = ( c[ 0 ] - pos[ 0 ] ) * ( c[ 0 ] - pos[ 0 ] ) + ( c[ 1 ] - pos[ 1 ] ) * ( c[ 1 ] - pos[ 1 ] ) + ( c[ 2 ] - pos[ 2 ] ) * ( c[ 2 ] - pos[ 2 ] );
+			final double qualityDiff = Math.abs( quality[ i ] - 50f );
+			final double spotRadiusDiff = 1 + Math.abs( radius[ i ] - 2.5f ) * 3d;
+			final double angle = LTUtils.angleFromVectors( longVector, LTUtils.Subtract( c, oldCoords ) );
+			bh.consume( squDistance / 8 + spotRadiusDiff + qualityDiff / 4 + angle );
+		}
+	}
+
+	@Benchmark
+	public void batchKernel( final Blackhole bh )
+	{
+		kernel.clear();
+		for ( int i = 0; i < nCandidates; i++ )
+			kernel.add( coords[ i ][ 0 ], coords[ i ][ 1 ], coords[ i ][ 2 ], radius[ i ], quality[ i ] );
+		kernel.evaluate( pos, oldCoords, 2.5f, 50f );
+		for ( int i = 0; i < nCandidates; i++ )
+			bh.consume( kernel.getCost( i ) );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options opt = new OptionsBuilder()
+				.include( LinkingCostBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( opt ).run();
+	}
+}